@@ -0,0 +1,95 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.common;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Package metadata read from .nuspec by {@link NuSpecParser}
+ */
+public class NuSpec {
+  private final Map<String, String> myProperties;
+  private final Map<String, String> myMetadataAttributes;
+  private final List<Dependency> myDependencies;
+
+  public NuSpec(@NotNull final Map<String, String> properties,
+                @NotNull final Map<String, String> metadataAttributes,
+                @NotNull final List<Dependency> dependencies) {
+    myProperties = properties;
+    myMetadataAttributes = metadataAttributes;
+    myDependencies = dependencies;
+  }
+
+  /**
+   * @param name name of metadata element, i.e. id, version, title
+   * @return normalized text of the element or null if there is no such element
+   */
+  @Nullable
+  public String getProperty(@NotNull final String name) {
+    return myProperties.get(name);
+  }
+
+  @Nullable
+  public String getMetadataAttribute(@NotNull final String name) {
+    return myMetadataAttributes.get(name);
+  }
+
+  /**
+   * @return dependencies without group first, then dependencies of groups in order of groups
+   */
+  @NotNull
+  public List<Dependency> getDependencies() {
+    return Collections.unmodifiableList(myDependencies);
+  }
+
+  public static class Dependency {
+    private final String myId;
+    private final String myVersion;
+    private final String myTargetFramework;
+
+    public Dependency(@Nullable final String id,
+                      @Nullable final String version,
+                      @Nullable final String targetFramework) {
+      myId = id;
+      myVersion = version;
+      myTargetFramework = targetFramework;
+    }
+
+    @Nullable
+    public String getId() {
+      return myId;
+    }
+
+    @Nullable
+    public String getVersion() {
+      return myVersion;
+    }
+
+    /**
+     * @return targetFramework of the dependencies group or null
+     */
+    @Nullable
+    public String getTargetFramework() {
+      return myTargetFramework;
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.common;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming parser of .nuspec metadata.
+ *
+ * Reads the first metadata element only and stops after it without building a document.
+ * Elements are matched by local name in any namespace, as nuspec schema namespace depends on NuGet version.
+ */
+public class NuSpecParser {
+  private static final XMLInputFactory ourFactory = createFactory();
+
+  private static final int METADATA = 2;
+  private static final int PROPERTY = 3;
+  private static final int DEPENDENCY = 4;
+  private static final int GROUP_DEPENDENCY = 5;
+
+  @NotNull
+  public static NuSpec parse(@NotNull final InputStream stream) throws XMLStreamException {
+    final Map<String, String> properties = new HashMap<String, String>();
+    final Map<String, String> attributes = new HashMap<String, String>();
+    final List<NuSpec.Dependency> dependencies = new ArrayList<NuSpec.Dependency>();
+    final List<NuSpec.Dependency> groupDependencies = new ArrayList<NuSpec.Dependency>();
+
+    final XMLStreamReader reader = ourFactory.createXMLStreamReader(stream);
+    try {
+      boolean inMetadata = false;
+      boolean metadataRead = false;
+      boolean inDependencies = false;
+      boolean dependenciesRead = false;
+      String property = null;
+      String targetFramework = null;
+      final StringBuilder text = new StringBuilder();
+      int depth = 0;
+
+      while (reader.hasNext()) {
+        switch (reader.next()) {
+          case XMLStreamConstants.START_ELEMENT:
+            depth++;
+            final String name = reader.getLocalName();
+
+            if (depth == METADATA && "metadata".equals(name)) {
+              inMetadata = true;
+              readAttributes(reader, attributes);
+            } else if (depth == PROPERTY && inMetadata) {
+              if ("dependencies".equals(name)) {
+                inDependencies = !dependenciesRead;
+              } else if (!properties.containsKey(name)) {
+                property = name;
+                text.setLength(0);
+              }
+            } else if (depth == DEPENDENCY && inDependencies) {
+              if ("dependency".equals(name)) {
+                dependencies.add(dependency(reader, null));
+              } else if ("group".equals(name)) {
+                targetFramework = reader.getAttributeValue(null, "targetFramework");
+              }
+            } else if (depth == GROUP_DEPENDENCY && inDependencies && "dependency".equals(name)) {
+              groupDependencies.add(dependency(reader, targetFramework));
+            }
+            break;
+
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+          case XMLStreamConstants.SPACE:
+            if (property != null && depth == PROPERTY) {
+              text.append(reader.getText());
+            }
+            break;
+
+          case XMLStreamConstants.END_ELEMENT:
+            if (depth == METADATA && inMetadata) {
+              //the rest of .nuspec is not used
+              metadataRead = true;
+            } else if (depth == PROPERTY && property != null) {
+              properties.put(property, normalize(text));
+              property = null;
+            } else if (depth == PROPERTY && inDependencies) {
+              inDependencies = false;
+              dependenciesRead = true;
+            } else if (depth == DEPENDENCY) {
+              targetFramework = null;
+            }
+            depth--;
+            break;
+        }
+        if (metadataRead) break;
+      }
+    } finally {
+      reader.close();
+    }
+
+    dependencies.addAll(groupDependencies);
+    return new NuSpec(properties, attributes, dependencies);
+  }
+
+  @NotNull
+  private static NuSpec.Dependency dependency(@NotNull final XMLStreamReader reader,
+                                              @Nullable final String targetFramework) {
+    return new NuSpec.Dependency(
+            reader.getAttributeValue(null, "id"),
+            reader.getAttributeValue(null, "version"),
+            targetFramework);
+  }
+
+  private static void readAttributes(@NotNull final XMLStreamReader reader,
+                                     @NotNull final Map<String, String> attributes) {
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+    }
+  }
+
+  /**
+   * Trims the text and replaces whitespace sequences with a single space
+   */
+  @NotNull
+  private static String normalize(@NotNull final CharSequence text) {
+    final StringBuilder sb = new StringBuilder(text.length());
+    boolean space = false;
+    for (int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+      if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+        space = sb.length() > 0;
+      } else {
+        if (space) sb.append(' ');
+        space = false;
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  @NotNull
+  private static XMLInputFactory createFactory() {
+    final XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory;
+  }
+}
@@ -19,16 +19,18 @@ package jetbrains.buildServer.nuget.common;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
-import org.jdom.Element;
-import org.jdom.JDOMException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import javax.xml.stream.XMLStreamException;
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.*;
+import java.util.Enumeration;
+import java.util.Map;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 /**
@@ -37,17 +39,16 @@ import java.util.zip.ZipInputStream;
  */
 public abstract class PackageInfoLoaderBase {
   private static final Logger LOG = Logger.getInstance(PackageInfoLoaderBase.class.getName());
-  public static final String NS = "http://schemas.microsoft.com/packaging/2010/07/nuspec.xsd";
 
   @NotNull
   protected <T> T loadPackage(@NotNull PackageHolder holder, @NotNull PackageInfoLoader<T> loader) throws PackageLoadException {
-    final Element root = parseNuSpec(holder);
-    if (root == null) {
+    final NuSpec nuspec = parseNuSpec(holder);
+    if (nuspec == null) {
       throw new PackageLoadException("Failed to fetch .nuspec from package");
     }
 
-    final String id = parseProperty(root, "id");
-    final String version = parseProperty(root, "version");
+    final String id = nuspec.getProperty("id");
+    final String version = nuspec.getProperty("version");
 
     if (id == null || StringUtil.isEmptyOrSpaces(id)) {
       throw new PackageLoadException("Invalid package. Failed to parse package Id for package: " + holder.getPackageName());
@@ -57,7 +58,7 @@ public abstract class PackageInfoLoaderBase {
       throw new PackageLoadException("Invalid package. Failed to parse package Version for package: " + holder.getPackageName());
     }
 
-    return loader.createPackageInfo(root, id, version);
+    return loader.createPackageInfo(nuspec, id, version);
   }
 
   protected interface PackageHolder {
@@ -66,49 +67,69 @@ public abstract class PackageInfoLoaderBase {
 
     @NotNull
     InputStream openPackage() throws IOException, PackageLoadException;
+
+    /**
+     * @return local file of the package to read .nuspec from without reading the whole package, or null
+     */
+    @Nullable
+    File getPackageFile();
   }
 
   protected interface PackageInfoLoader<T> {
     @NotNull
-    T createPackageInfo(@NotNull Element nuspec, @NotNull final String id, @NotNull final String version) throws PackageLoadException;
+    T createPackageInfo(@NotNull NuSpec nuspec, @NotNull final String id, @NotNull final String version) throws PackageLoadException;
   }
 
-  @Nullable
-  protected static String parseProperty(@NotNull final Element root, final @NotNull String name) {
-    final Element child = getChild(getChild(root, "metadata"), name);
-    return child == null ? null : child.getTextNormalize();
+  protected static void addParameter(@NotNull final Map<String, String> map,
+                            @NotNull final String key,
+                            @Nullable final String value) {
+    if (!StringUtil.isEmptyOrSpaces(value)) {
+      map.put(key, value);
+    }
   }
 
   @Nullable
-  protected static Element getChild(@Nullable final Element root, final String child) {
-    if (root == null) return null;
-    Element metadata = root.getChild(child);
-    if (metadata != null) return metadata;
-    return root.getChild(child, root.getNamespace(NS));
-  }
-
-  @NotNull
-  protected static List<Element> getChildren(@Nullable final Element root, final String child) {
-    if (root == null) return Collections.emptyList();
-    List<Element> result = new ArrayList<Element>();
-    for (List list : Arrays.asList(root.getChildren(child), root.getChildren(child, root.getNamespace(NS)))) {
-      for (Object o : list) {
-        result.add((Element)o);
+  private static NuSpec parseNuSpec(@NotNull final PackageHolder nupkg) throws PackageLoadException {
+    final File file = nupkg.getPackageFile();
+    if (file != null && file.isFile()) {
+      try {
+        return parseNuSpec(file);
+      } catch (IOException e) {
+        LOG.debug("Failed to read " + file + " as zip file, reading it as a stream. " + e.getMessage());
       }
     }
-    return result;
+    return parseNuSpecFromStream(nupkg);
   }
 
-  protected static void addParameter(@NotNull final Map<String, String> map,
-                            @NotNull final String key,
-                            @Nullable final String value) {
-    if (!StringUtil.isEmptyOrSpaces(value)) {
-      map.put(key, value);
+  /**
+   * Finds .nuspec in the zip central directory without reading other entries
+   */
+  @Nullable
+  private static NuSpec parseNuSpec(@NotNull final File nupkg) throws IOException {
+    final ZipFile zip = new ZipFile(nupkg);
+    try {
+      final Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        final ZipEntry ze = entries.nextElement();
+        if (!ze.getName().endsWith(".nuspec")) continue;
+
+        final InputStream stream = zip.getInputStream(ze);
+        try {
+          return NuSpecParser.parse(stream);
+        } catch (XMLStreamException e) {
+          LOG.warn("Failed to parse " + ze + " in " + nupkg);
+        } finally {
+          FileUtil.close(stream);
+        }
+      }
+    } finally {
+      zip.close();
     }
+    return null;
   }
 
   @Nullable
-  private static Element parseNuSpec(@NotNull final PackageHolder nupkg) throws PackageLoadException {
+  private static NuSpec parseNuSpecFromStream(@NotNull final PackageHolder nupkg) throws PackageLoadException {
     ZipInputStream zos = null;
     InputStream stream = null;
     try {
@@ -118,8 +139,8 @@ public abstract class PackageInfoLoaderBase {
       while ((ze = zos.getNextEntry()) != null) {
         if (ze.getName().endsWith(".nuspec")) {
           try {
-            return FileUtil.parseDocument(zos, false);
-          } catch (JDOMException e) {
+            return NuSpecParser.parse(zos);
+          } catch (XMLStreamException e) {
             LOG.warn("Failed to parse " + ze + " in " + nupkg);
           }
         }
@@ -16,7 +16,6 @@
 
 package jetbrains.buildServer.nuget.common;
 
-import org.jdom.Element;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
@@ -42,10 +41,15 @@ public class SimplePackageInfoLoader extends PackageInfoLoaderBase {
               public InputStream openPackage() throws IOException, PackageLoadException {
                 return new FileInputStream(pkg);
               }
+
+              @NotNull
+              public File getPackageFile() {
+                return pkg;
+              }
             },
             new PackageInfoLoader<PackageInfo>() {
               @NotNull
-              public PackageInfo createPackageInfo(@NotNull Element nuspec, @NotNull String id, @NotNull String version) throws PackageLoadException {
+              public PackageInfo createPackageInfo(@NotNull NuSpec nuspec, @NotNull String id, @NotNull String version) throws PackageLoadException {
                 return new PackageInfo(id, version);
               }
             }
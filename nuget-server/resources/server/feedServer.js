@@ -30,7 +30,7 @@ BS.NuGet.FeedServer = {
     }, 1000);
   },
 
-  _request : function(el, enabled) {
+  _request : function(el, parameters) {
     var url = $j(el).closest("div").data("url");
 
     $j(el).closest("div").find("span:last").html(BS.loadingIcon);
@@ -38,9 +38,7 @@ BS.NuGet.FeedServer = {
 
     BS.ajaxRequest(url, {
       method : "POST",
-      parameters : {
-        'nuget-feed-enabled' : enabled
-      },
+      parameters : parameters,
       onComplete : function() {
         $j(el).closest("div").find("span:last").html('');
         $('nugetEnableDisable').refresh();
@@ -50,10 +48,18 @@ BS.NuGet.FeedServer = {
   },
 
   disableFeedServer : function(el) {
-    BS.NuGet.FeedServer._request(el, false);
+    BS.NuGet.FeedServer._request(el, {'nuget-feed-enabled' : false});
   },
 
   enableFeedServer : function(el) {
-    BS.NuGet.FeedServer._request(el, true);
+    BS.NuGet.FeedServer._request(el, {'nuget-feed-enabled' : true});
+  },
+
+  startReindex : function(el) {
+    BS.NuGet.FeedServer._request(el, {'nuget-reindex' : 'start'});
+  },
+
+  stopReindex : function(el) {
+    BS.NuGet.FeedServer._request(el, {'nuget-reindex' : 'stop'});
   }
 };
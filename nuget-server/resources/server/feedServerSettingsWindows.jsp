@@ -22,6 +22,8 @@
 
 <jsp:useBean id="nugetStatusRefreshUrl" scope="request" type="java.lang.String"/>
 <jsp:useBean id="nugetSettingsPostUrl" scope="request" type="java.lang.String"/>
+<jsp:useBean id="nugetReindexPostUrl" scope="request" type="java.lang.String"/>
+<jsp:useBean id="reindexStatus" scope="request" type="jetbrains.buildServer.nuget.server.feed.server.index.impl.PackagesReindexer.Status"/>
 <jsp:useBean id="privateFeedUrl" scope="request" type="java.lang.String" />
 <jsp:useBean id="publicFeedUrl" scope="request" type="java.lang.String" />
 <jsp:useBean id="actualServerUrl" scope="request" type="java.lang.String" />
@@ -30,6 +32,7 @@
 
 <c:set var="nugetStatusRefreshFullUrl"><c:url value="${nugetStatusRefreshUrl}"/></c:set>
 <c:set var="nugetSettingsPostFullUrl"><c:url value="${nugetSettingsPostUrl}"/></c:set>
+<c:set var="nugetReindexPostFullUrl"><c:url value="${nugetReindexPostUrl}"/></c:set>
 
 <bs:refreshable containerId="nugetEnableDisable" pageUrl="${nugetStatusRefreshFullUrl}">
   <div data-url="${nugetSettingsPostFullUrl}">
@@ -75,6 +78,24 @@
         </c:choose>
         </td>
       </tr>
+      <tr>
+        <th>Packages Re-index:</th>
+        <td>
+          <div data-url="${nugetReindexPostFullUrl}">
+            <c:out value="${reindexStatus.description}"/>
+            <c:choose>
+              <c:when test="${reindexStatus.running}">
+                <input type="button" class="btn btn_mini" value="Stop" onclick="return BS.NuGet.FeedServer.stopReindex(this);" />
+              </c:when>
+              <c:otherwise>
+                <input type="button" class="btn btn_mini" value="Re-index" onclick="return BS.NuGet.FeedServer.startReindex(this);" />
+              </c:otherwise>
+            </c:choose>
+            <span><%--used for loading icon--%></span>
+          </div>
+          <span class="smallNote">Reads NuGet packages from artifacts of all finished builds again, e.g. after packages indexing settings were changed</span>
+        </td>
+      </tr>
     </table>
   </c:if>
 
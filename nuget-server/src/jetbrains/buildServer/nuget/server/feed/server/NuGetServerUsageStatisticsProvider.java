@@ -20,6 +20,7 @@ import com.intellij.openapi.util.Pair;
 import jetbrains.buildServer.nuget.server.feed.server.controllers.requests.RecentNuGetRequests;
 import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
 import jetbrains.buildServer.nuget.server.feed.server.index.PackagesIndex;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.PackagesIndexingPool;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsProvider;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsPublisher;
 import jetbrains.buildServer.usageStatistics.presentation.UsageStatisticsFormatter;
@@ -41,18 +42,23 @@ public class NuGetServerUsageStatisticsProvider implements UsageStatisticsProvid
   public static final String TOTAL_REQUESTS = "jetbrains.nuget.feedDailyRequests";
   public static final String TOTAL_PACKAGES = "jetbrains.nuget.totalPackages";
   public static final String DIFF_PACKAGES = "jetbrains.nuget.packagesIds";
+  public static final String INDEXED_PACKAGES = "jetbrains.nuget.indexedPackages";
+  public static final String INDEXING_TIME = "jetbrains.nuget.packageIndexingTime";
   public static final String NUGET_SERVER_STAT_GROUP_NAME = "NuGet";
 
   private final NuGetServerSettings mySettings;
   private final RecentNuGetRequests myRequests;
   private final PackagesIndex myIndex;
+  private final PackagesIndexingPool myIndexingPool;
 
   public NuGetServerUsageStatisticsProvider(@NotNull final NuGetServerSettings settings,
                                             @NotNull final RecentNuGetRequests requests,
-                                            @NotNull final PackagesIndex index) {
+                                            @NotNull final PackagesIndex index,
+                                            @NotNull final PackagesIndexingPool indexingPool) {
     mySettings = settings;
     myRequests = requests;
     myIndex = index;
+    myIndexingPool = indexingPool;
   }
 
   public void accept(@NotNull UsageStatisticsPublisher publisher) {
@@ -63,6 +69,12 @@ public class NuGetServerUsageStatisticsProvider implements UsageStatisticsProvid
       publisher.publishStatistic(TOTAL_PACKAGES, entries.first);
       publisher.publishStatistic(DIFF_PACKAGES, entries.second);
     }
+
+    final long indexed = myIndexingPool.getIndexedPackages();
+    publisher.publishStatistic(INDEXED_PACKAGES, indexed);
+    if (indexed > 0) {
+      publisher.publishStatistic(INDEXING_TIME, myIndexingPool.getIndexingTime() / indexed);
+    }
   }
   
   private Pair<Integer, Integer> countEntries() {
@@ -81,6 +93,8 @@ public class NuGetServerUsageStatisticsProvider implements UsageStatisticsProvid
     presentationManager.applyPresentation(TOTAL_REQUESTS, "Feed Requests Count per Day", NUGET_SERVER_STAT_GROUP_NAME, null, null);
     presentationManager.applyPresentation(TOTAL_PACKAGES, "Packages Count", NUGET_SERVER_STAT_GROUP_NAME, null, null);
     presentationManager.applyPresentation(DIFF_PACKAGES, "Different Package Ids Count", NUGET_SERVER_STAT_GROUP_NAME, null, null);
+    presentationManager.applyPresentation(INDEXED_PACKAGES, "Packages Indexed since Server Start", NUGET_SERVER_STAT_GROUP_NAME, null, null);
+    presentationManager.applyPresentation(INDEXING_TIME, "Average Package Indexing Time (ms)", NUGET_SERVER_STAT_GROUP_NAME, null, null);
     presentationManager.applyPresentation(SERVER_ENABLED_KEY, "NuGet Feed Server", NUGET_SERVER_STAT_GROUP_NAME, new UsageStatisticsFormatter() {
       @NotNull
       public String format(@Nullable Object statisticValue) {
@@ -18,6 +18,7 @@ package jetbrains.buildServer.nuget.server.feed.server.index;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Collection;
 import java.util.Iterator;
 
 /**
@@ -35,4 +36,31 @@ public interface PackagesIndex {
 
   @NotNull
   Iterator<NuGetIndexEntry> getNuGetEntries(long buildId);
+
+  /**
+   * @param packageId package Id, case-insensitive
+   * @return all versions of the given package
+   */
+  @NotNull
+  Iterator<NuGetIndexEntry> getNuGetEntries(@NotNull String packageId);
+
+  /**
+   * @return only entries with IsLatestVersion or IsAbsoluteLatestVersion set
+   */
+  @NotNull
+  Iterator<NuGetIndexEntry> getLatestNuGetEntries();
+
+  /**
+   * @param terms texts to search, case-insensitive
+   * @param latestOnly true to return only entries with IsLatestVersion or IsAbsoluteLatestVersion set
+   * @return entries of packages that could contain any of the terms in Id, Title, Description or Tags.
+   * The result could contain other packages as well, so it still has to be filtered
+   */
+  @NotNull
+  Iterator<NuGetIndexEntry> searchNuGetEntries(@NotNull Collection<String> terms, boolean latestOnly);
+
+  /**
+   * @return true if entries are returned sorted by package Id and version
+   */
+  boolean isSorted();
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.index.impl;
+
+import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
+import jetbrains.buildServer.serverSide.metadata.BuildMetadataEntry;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+/**
+ * Package metadata entry as it is kept in {@link IndexedPackages}.
+ * The metadata is kept as compact {@link PackageAttributes} and must not be modified.
+ */
+public class IndexedPackage implements BuildMetadataEntry {
+  private final String myKey;
+  private final long myBuildId;
+  private final Map<String, String> myMetadata;
+  private final SemanticVersion myVersion;
+
+  public IndexedPackage(@NotNull final String key,
+                        final long buildId,
+                        @NotNull final Map<String, String> metadata) {
+    myKey = key;
+    myBuildId = buildId;
+    myMetadata = metadata instanceof PackageAttributes ? metadata : new PackageAttributes(metadata);
+
+    final String version = metadata.get(NuGetIndexEntry.VERSION);
+    myVersion = version == null ? null : SemanticVersion.valueOf(version);
+  }
+
+  public IndexedPackage(@NotNull final BuildMetadataEntry entry) {
+    this(entry.getKey(), entry.getBuildId(), entry.getMetadata());
+  }
+
+  @NotNull
+  public String getKey() {
+    return myKey;
+  }
+
+  public long getBuildId() {
+    return myBuildId;
+  }
+
+  @NotNull
+  public Map<String, String> getMetadata() {
+    return myMetadata;
+  }
+
+  @NotNull
+  public String getId() {
+    return myMetadata.get(NuGetIndexEntry.ID);
+  }
+
+  @NotNull
+  public String getVersion() {
+    return myMetadata.get(NuGetIndexEntry.VERSION);
+  }
+
+  /**
+   * @return version parsed once the package was indexed
+   */
+  @NotNull
+  public SemanticVersion getSemanticVersion() {
+    return myVersion;
+  }
+
+  public boolean isSameEntry(@NotNull final IndexedPackage other) {
+    return myBuildId == other.myBuildId && myKey.equals(other.myKey);
+  }
+
+  @Override
+  public String toString() {
+    return "IndexedPackage{" +
+            "myKey='" + myKey + '\'' +
+            ", myBuildId=" + myBuildId +
+            '}';
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.index.impl;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Immutable list of all indexed versions of one package Id.
+ * Entries are sorted by semantic version, entries with the same
+ * version are sorted from newer to older builds.
+ *
+ * Version ranks are computed once the list is created, so latest
+ * versions are found without comparing versions on each request.
+ */
+public class IndexedPackageVersions {
+  private static final Comparator<IndexedPackage> VERSIONS_COMPARATOR = new Comparator<IndexedPackage>() {
+    public int compare(@NotNull IndexedPackage o1, @NotNull IndexedPackage o2) {
+      int cmp;
+      if ((cmp = o1.getSemanticVersion().compareTo(o2.getSemanticVersion())) != 0) return cmp;
+
+      final long b1 = o1.getBuildId();
+      final long b2 = o2.getBuildId();
+      return b1 > b2 ? -1 : b1 == b2 ? 0 : 1;
+    }
+  };
+
+  private final String myId;
+  private final IndexedPackage[] myPackages;
+  private final int[] myVersionRanks;
+
+  private IndexedPackageVersions(@NotNull final String id, @NotNull final IndexedPackage[] packages) {
+    myId = id;
+    myPackages = packages;
+    myVersionRanks = new int[packages.length];
+    for (int i = 1; i < packages.length; i++) {
+      final boolean sameVersion = packages[i - 1].getSemanticVersion().compareTo(packages[i].getSemanticVersion()) == 0;
+      myVersionRanks[i] = sameVersion ? myVersionRanks[i - 1] : i;
+    }
+  }
+
+  public IndexedPackageVersions(@NotNull final IndexedPackage pkg) {
+    this(pkg.getId(), new IndexedPackage[]{pkg});
+  }
+
+  /**
+   * Creates sorted list from packages of the same Id, used for bulk index loading
+   */
+  @NotNull
+  public static IndexedPackageVersions create(@NotNull final String id, @NotNull final Collection<IndexedPackage> packages) {
+    final IndexedPackage[] sorted = packages.toArray(new IndexedPackage[packages.size()]);
+    Arrays.sort(sorted, VERSIONS_COMPARATOR);
+
+    final List<IndexedPackage> list = new ArrayList<IndexedPackage>(sorted.length);
+    for (IndexedPackage p : sorted) {
+      if (!list.isEmpty() && list.get(list.size() - 1).isSameEntry(p)) continue;
+      list.add(p);
+    }
+    return new IndexedPackageVersions(id, list.toArray(new IndexedPackage[list.size()]));
+  }
+
+  @NotNull
+  public String getId() {
+    return myId;
+  }
+
+  @NotNull
+  public List<IndexedPackage> getPackages() {
+    return Collections.unmodifiableList(Arrays.asList(myPackages));
+  }
+
+  public int size() {
+    return myPackages.length;
+  }
+
+  /**
+   * @return rank of the package version. Packages of the same version have the same rank,
+   * which is the index of the first such package, newer versions have greater ranks
+   */
+  public int getVersionRank(final int index) {
+    return myVersionRanks[index];
+  }
+
+  /**
+   * @return new list containing given package. An entry for the same key and build is replaced
+   */
+  @NotNull
+  public IndexedPackageVersions addPackage(@NotNull final IndexedPackage pkg) {
+    final List<IndexedPackage> list = new ArrayList<IndexedPackage>(myPackages.length + 1);
+    for (IndexedPackage p : myPackages) {
+      if (!p.isSameEntry(pkg)) list.add(p);
+    }
+
+    int idx = Collections.binarySearch(list, pkg, VERSIONS_COMPARATOR);
+    if (idx < 0) idx = -idx - 1;
+    list.add(idx, pkg);
+
+    return new IndexedPackageVersions(myId, list.toArray(new IndexedPackage[list.size()]));
+  }
+
+  /**
+   * @return new list without packages of the given build or null if no packages left
+   */
+  @Nullable
+  public IndexedPackageVersions removeBuild(final long buildId) {
+    final List<IndexedPackage> list = new ArrayList<IndexedPackage>(myPackages.length);
+    for (IndexedPackage p : myPackages) {
+      if (p.getBuildId() != buildId) list.add(p);
+    }
+
+    if (list.isEmpty()) return null;
+    if (list.size() == myPackages.length) return this;
+    return new IndexedPackageVersions(myId, list.toArray(new IndexedPackage[list.size()]));
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.index.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache.ResponseCacheReset;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SFinishedBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.metadata.BuildMetadataEntry;
+import jetbrains.buildServer.serverSide.metadata.MetadataStorage;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static jetbrains.buildServer.nuget.server.feed.server.index.impl.NuGetArtifactsMetadataProvider.NUGET_PROVIDER_ID;
+
+/**
+ * Long-living in-memory copy of NuGet packages metadata.
+ * The collection is loaded from {@link MetadataStorage} on first access
+ * and is updated incrementally as packages are indexed or builds are removed.
+ * Packages are kept sorted by Id and semantic version,
+ * a case-insensitive Id lookup is maintained for Id queries
+ * and an n-gram text index is maintained for search queries, see {@link PackagesTextIndex}.
+ * Equal metadata values of different packages share one instance, see {@link MetadataValuesPool}.
+ * Cached feed responses of removed packages are reset.
+ */
+public class IndexedPackages {
+  private static final Logger LOG = Logger.getInstance(IndexedPackages.class.getName());
+
+  private static final Comparator<IndexedPackageVersions> ID_COMPARATOR = new Comparator<IndexedPackageVersions>() {
+    public int compare(@NotNull IndexedPackageVersions o1, @NotNull IndexedPackageVersions o2) {
+      return o1.getId().compareTo(o2.getId());
+    }
+  };
+
+  private final MetadataStorage myStorage;
+  private final ResponseCacheReset myReset;
+  private final MetadataValuesPool myValuesPool = new MetadataValuesPool(TeamCityProperties.getInteger("teamcity.nuget.feed.index.valuesPool.size", 100000));
+  private final Object myLock = new Object();
+  private volatile ConcurrentSkipListMap<String, IndexedPackageVersions> myPackages = new ConcurrentSkipListMap<String, IndexedPackageVersions>();
+  private volatile ConcurrentHashMap<String, IndexedPackageVersions[]> myIdLookup = new ConcurrentHashMap<String, IndexedPackageVersions[]>();
+  private volatile PackagesTextIndex myTextIndex = new PackagesTextIndex();
+  private final Map<Long, Set<String>> myBuildPackages = new HashMap<Long, Set<String>>();
+  private final List<IndexedPackage> myPendingPackages = new ArrayList<IndexedPackage>();
+  private volatile boolean myLoaded = false;
+
+  public IndexedPackages(@NotNull final MetadataStorage storage,
+                         @NotNull final ResponseCacheReset reset,
+                         @NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    myStorage = storage;
+    myReset = reset;
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void entryDeleted(@NotNull SFinishedBuild build) {
+        super.entryDeleted(build);
+        removeBuild(build.getBuildId());
+      }
+
+      @Override
+      public void cleanupFinished() {
+        super.cleanupFinished();
+        //metadata could also be removed with artifacts, so reload everything
+        reset();
+      }
+    });
+  }
+
+  /**
+   * @return all package versions grouped by package Id, sorted by Id
+   */
+  @NotNull
+  public Collection<IndexedPackageVersions> getPackages() {
+    ensureLoaded();
+    return Collections.unmodifiableCollection(myPackages.values());
+  }
+
+  /**
+   * @param id package Id, case-insensitive
+   * @return all versions of packages with the given Id
+   */
+  @NotNull
+  public Collection<IndexedPackageVersions> getPackages(@NotNull final String id) {
+    ensureLoaded();
+    final IndexedPackageVersions[] versions = myIdLookup.get(lookupKey(id));
+    if (versions == null) return Collections.emptyList();
+    return Collections.unmodifiableList(Arrays.asList(versions));
+  }
+
+  /**
+   * @param terms texts to search, case-insensitive
+   * @return versions of packages that could contain any of the terms in Id, Title, Description or Tags,
+   * sorted by Id. All packages are returned if some term is too short to be searched in the index
+   */
+  @NotNull
+  public Collection<IndexedPackageVersions> search(@NotNull final Collection<String> terms) {
+    ensureLoaded();
+    final ConcurrentHashMap<String, IndexedPackageVersions[]> lookup = myIdLookup;
+    final PackagesTextIndex textIndex = myTextIndex;
+
+    final Set<String> keys = new HashSet<String>();
+    for (String term : terms) {
+      final Collection<String> found = textIndex.search(term);
+      if (found == null) return getPackages();
+      keys.addAll(found);
+    }
+
+    final List<IndexedPackageVersions> result = new ArrayList<IndexedPackageVersions>(keys.size());
+    for (String key : keys) {
+      final IndexedPackageVersions[] versions = lookup.get(key);
+      if (versions != null) result.addAll(Arrays.asList(versions));
+    }
+    Collections.sort(result, ID_COMPARATOR);
+    return result;
+  }
+
+  public void addPackage(@NotNull final IndexedPackage entry) {
+    final IndexedPackage pkg = createPackage(entry);
+    synchronized (myLock) {
+      //the package may be not yet committed to the storage when the collection is loaded
+      if (!myLoaded) myPendingPackages.add(pkg);
+      addPackage(myPackages, myIdLookup, myTextIndex, pkg);
+    }
+  }
+
+  public void removeBuild(final long buildId) {
+    final Set<String> removed = new HashSet<String>();
+    final boolean loaded;
+    synchronized (myLock) {
+      loaded = myLoaded;
+      for (Iterator<IndexedPackage> it = myPendingPackages.iterator(); it.hasNext(); ) {
+        final IndexedPackage pkg = it.next();
+        if (pkg.getBuildId() != buildId) continue;
+        removed.add(pkg.getId());
+        it.remove();
+      }
+
+      final Set<String> ids = myBuildPackages.remove(buildId);
+      if (ids != null) {
+        removed.addAll(ids);
+        for (String id : ids) {
+          final IndexedPackageVersions versions = myPackages.get(id);
+          if (versions == null) continue;
+
+          final IndexedPackageVersions updated = versions.removeBuild(buildId);
+          if (updated == null) {
+            myPackages.remove(id);
+          } else {
+            myPackages.put(id, updated);
+          }
+          updateLookup(myIdLookup, myTextIndex, id, updated);
+        }
+      }
+    }
+
+    if (!loaded) {
+      //packages of the build are not known until the collection is loaded
+      myReset.resetCache();
+      return;
+    }
+    for (String id : removed) {
+      myReset.resetPackage(id);
+    }
+  }
+
+  /**
+   * Drops the collection, it will be reloaded from metadata storage on next access
+   */
+  public void reset() {
+    //under the lock, so a reset during loading is not overwritten by the loader
+    synchronized (myLock) {
+      myLoaded = false;
+    }
+  }
+
+  private void ensureLoaded() {
+    if (myLoaded) return;
+    synchronized (myLock) {
+      if (myLoaded) return;
+
+      final long start = System.currentTimeMillis();
+      final Map<String, List<IndexedPackage>> ids = new HashMap<String, List<IndexedPackage>>();
+      final Iterator<BuildMetadataEntry> it = myStorage.getAllEntries(NUGET_PROVIDER_ID);
+      int count = 0;
+      while (it.hasNext()) {
+        final IndexedPackage pkg = createPackage(it.next());
+        if (!isValid(pkg)) continue;
+
+        List<IndexedPackage> list = ids.get(pkg.getId());
+        if (list == null) {
+          list = new ArrayList<IndexedPackage>();
+          ids.put(pkg.getId(), list);
+        }
+        list.add(pkg);
+        count++;
+      }
+
+      final ConcurrentSkipListMap<String, IndexedPackageVersions> packages = new ConcurrentSkipListMap<String, IndexedPackageVersions>();
+      final ConcurrentHashMap<String, IndexedPackageVersions[]> lookup = new ConcurrentHashMap<String, IndexedPackageVersions[]>();
+      myBuildPackages.clear();
+      for (Map.Entry<String, List<IndexedPackage>> e : ids.entrySet()) {
+        final IndexedPackageVersions versions = IndexedPackageVersions.create(e.getKey(), e.getValue());
+        packages.put(e.getKey(), versions);
+        updateLookup(lookup, null, e.getKey(), versions);
+        for (IndexedPackage pkg : e.getValue()) {
+          registerBuild(pkg);
+        }
+      }
+
+      for (IndexedPackage pkg : myPendingPackages) {
+        addPackage(packages, lookup, null, pkg);
+      }
+      myPendingPackages.clear();
+
+      myPackages = packages;
+      myIdLookup = lookup;
+      myTextIndex = PackagesTextIndex.create(lookup);
+      myLoaded = true;
+      LOG.info("Loaded " + count + " NuGet packages into the feed index in " + (System.currentTimeMillis() - start) + "ms");
+    }
+  }
+
+  private void addPackage(@NotNull final ConcurrentSkipListMap<String, IndexedPackageVersions> packages,
+                          @NotNull final ConcurrentHashMap<String, IndexedPackageVersions[]> lookup,
+                          @Nullable final PackagesTextIndex textIndex,
+                          @NotNull final IndexedPackage pkg) {
+    if (!isValid(pkg)) return;
+
+    final String id = pkg.getId();
+    final IndexedPackageVersions versions = packages.get(id);
+    final IndexedPackageVersions updated = versions == null ? new IndexedPackageVersions(pkg) : versions.addPackage(pkg);
+    packages.put(id, updated);
+    updateLookup(lookup, textIndex, id, updated);
+    registerBuild(pkg);
+  }
+
+  /**
+   * Replaces (or removes if versions is null) the entry for the given exact Id
+   * in the case-insensitive lookup and in the text index if it is given.
+   * Arrays in the lookup are never modified in place.
+   */
+  private static void updateLookup(@NotNull final ConcurrentHashMap<String, IndexedPackageVersions[]> lookup,
+                                   @Nullable final PackagesTextIndex textIndex,
+                                   @NotNull final String id,
+                                   @Nullable final IndexedPackageVersions versions) {
+    final String key = lookupKey(id);
+    final IndexedPackageVersions[] current = lookup.get(key);
+
+    final List<IndexedPackageVersions> list = new ArrayList<IndexedPackageVersions>(current == null ? 1 : current.length + 1);
+    if (current != null) {
+      for (IndexedPackageVersions v : current) {
+        if (!v.getId().equals(id)) list.add(v);
+      }
+    }
+    if (versions != null) list.add(versions);
+
+    if (list.isEmpty()) {
+      lookup.remove(key);
+      if (textIndex != null) textIndex.update(key, null);
+      return;
+    }
+
+    //keep the same order as in the full packages list
+    Collections.sort(list, ID_COMPARATOR);
+    final IndexedPackageVersions[] updated = list.toArray(new IndexedPackageVersions[list.size()]);
+    lookup.put(key, updated);
+    if (textIndex != null) textIndex.update(key, updated);
+  }
+
+  @NotNull
+  private static String lookupKey(@NotNull final String id) {
+    return id.toLowerCase(Locale.ENGLISH);
+  }
+
+  private void registerBuild(@NotNull final IndexedPackage pkg) {
+    Set<String> ids = myBuildPackages.get(pkg.getBuildId());
+    if (ids == null) {
+      ids = new HashSet<String>();
+      myBuildPackages.put(pkg.getBuildId(), ids);
+    }
+    ids.add(pkg.getId());
+  }
+
+  @NotNull
+  private IndexedPackage createPackage(@NotNull final BuildMetadataEntry entry) {
+    return new IndexedPackage(entry.getKey(), entry.getBuildId(), myValuesPool.getMetadata(entry.getMetadata()));
+  }
+
+  private static boolean isValid(@NotNull final IndexedPackage pkg) {
+    final Map<String, String> metadata = pkg.getMetadata();
+    return metadata.get(NuGetIndexEntry.ID) != null && metadata.get(NuGetIndexEntry.VERSION) != null;
+  }
+}
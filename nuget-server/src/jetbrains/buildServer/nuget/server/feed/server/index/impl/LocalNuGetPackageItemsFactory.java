@@ -17,19 +17,22 @@
 package jetbrains.buildServer.nuget.server.feed.server.index.impl;
 
 import com.intellij.openapi.util.text.StringUtil;
+import jetbrains.buildServer.nuget.common.NuSpec;
 import jetbrains.buildServer.nuget.common.PackageInfoLoaderBase;
 import jetbrains.buildServer.nuget.common.PackageLoadException;
 import jetbrains.buildServer.serverSide.artifacts.BuildArtifact;
 import jetbrains.buildServer.util.FileUtil;
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.digest.DigestUtils;
-import org.jdom.Element;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -43,21 +46,23 @@ public class LocalNuGetPackageItemsFactory extends PackageInfoLoaderBase {
   @NotNull
   public Map<String, String> loadPackage(@NotNull final BuildArtifact nupkg,
                                          @NotNull final Date finishDate) throws PackageLoadException {
-    return loadPackage(
-            new PackageHolder() {
-              @NotNull
-              public String getPackageName() {
-                return nupkg.toString();
-              }
+    return loadPackage(nupkg, null, finishDate);
+  }
 
-              @NotNull
-              public InputStream openPackage() throws IOException, PackageLoadException {
-                return nupkg.getInputStream();
-              }
-            },
+  /**
+   * @param file local file of the artifact if available, .nuspec is read from it without reading the whole package
+   */
+  @NotNull
+  public Map<String, String> loadPackage(@NotNull final BuildArtifact nupkg,
+                                         @Nullable final File file,
+                                         @NotNull final Date finishDate) throws PackageLoadException {
+    //bytes read to find .nuspec are digested, the rest of the package is read for the hash only
+    final HashingPackageHolder holder = new HashingPackageHolder(nupkg, file);
+    return loadPackage(
+            holder,
             new PackageInfoLoader<Map<String, String>>() {
               @NotNull
-              public Map<String, String> createPackageInfo(@NotNull final Element root,
+              public Map<String, String> createPackageInfo(@NotNull final NuSpec nuspec,
                                                            @NotNull final String id,
                                                            @NotNull final String version) throws PackageLoadException {
                 Map<String, String> map = new LinkedHashMap<String, String>();
@@ -67,79 +72,184 @@ public class LocalNuGetPackageItemsFactory extends PackageInfoLoaderBase {
                 //not included here: addParameter(map, "TeamCityDownloadUrl", "");
                 addParameter(map, "Id", id);
                 addParameter(map, "Version", version);
-                addParameter(map, "Title", parseProperty(root, "title"));
-                addParameter(map, "ReleaseNotes", parseProperty(root, "releaseNotes"));
-                addParameter(map, "Authors", parseProperty(root, "authors"));
-                addParameter(map, "Dependencies", parseDependencies(root));
-                addParameter(map, "Description", parseProperty(root, "description"));
-                addParameter(map, "Copyright", parseProperty(root, "copyright"));
-                addParameter(map, "ProjectUrl", parseProperty(root, "projectUrl"));
-                addParameter(map, "Tags", parseProperty(root, "tags"));
-                addParameter(map, "IconUrl", parseProperty(root, "iconUrl"));
-                addParameter(map, "LicenseUrl", parseProperty(root, "licenseUrl"));
-                addParameter(map, "RequireLicenseAcceptance", parseProperty(root, "requireLicenseAcceptance"));
-                addParameter(map, "PackageHash", sha512(nupkg));
+                addParameter(map, "Title", nuspec.getProperty("title"));
+                addParameter(map, "ReleaseNotes", nuspec.getProperty("releaseNotes"));
+                addParameter(map, "Authors", nuspec.getProperty("authors"));
+                addParameter(map, "Dependencies", formatDependencies(nuspec));
+                addParameter(map, "Description", nuspec.getProperty("description"));
+                addParameter(map, "Copyright", nuspec.getProperty("copyright"));
+                addParameter(map, "ProjectUrl", nuspec.getProperty("projectUrl"));
+                addParameter(map, "Tags", nuspec.getProperty("tags"));
+                addParameter(map, "IconUrl", nuspec.getProperty("iconUrl"));
+                addParameter(map, "LicenseUrl", nuspec.getProperty("licenseUrl"));
+                addParameter(map, "RequireLicenseAcceptance", nuspec.getProperty("requireLicenseAcceptance"));
+                addParameter(map, "PackageHash", holder.getHash());
                 addParameter(map, "PackageHashAlgorithm", "SHA512");
                 addParameter(map, "PackageSize", String.valueOf(nupkg.getSize()));
                 //addParameter(map, "IsLatestVersion", "");
                 addParameter(map, "LastUpdated", ODataDataFormat.formatDate(finishDate));
                 //addParameter(map, "Updated", formatDate(updated));
-                addParameter(map, "MinClientVersion", parseMetadataAttribute(root, "minClientVersion"));
+                addParameter(map, "MinClientVersion", nuspec.getMetadataAttribute("minClientVersion"));
 
                 return map;
               }
 
-              @Nullable
-              private String parseMetadataAttribute(@NotNull final Element root, @NotNull final String attribute) {
-                final Element metadata = getChild(root, "metadata");
-                if (metadata == null) return null;
-                return metadata.getAttributeValue(attribute);
-              }
-
               @NotNull
-              private String parseDependencies(@NotNull final Element root) {
-                final Element metadata = getChild(root, "metadata");
-                final Element dependencies = getChild(metadata, "dependencies");
-                if (dependencies == null) return "";
+              private String formatDependencies(@NotNull final NuSpec nuspec) {
                 final StringBuilder sb = new StringBuilder();
-                processDependencies(dependencies, null, sb);
-
-                for (Element group : getChildren(dependencies, "group")) {
-                  processDependencies(group, group.getAttributeValue("targetFramework"), sb);
-                }
-
-                return sb.toString();
-              }
-
-              private void processDependencies(@NotNull final Element dependencies,
-                                               @Nullable final String platform,
-                                               @NotNull final StringBuilder sb) {
-                for (Element dep : getChildren(dependencies, "dependency")) {
-                  final String id = dep.getAttributeValue("id");
-                  final String versionConstraint = dep.getAttributeValue("version");
+                for (NuSpec.Dependency dep : nuspec.getDependencies()) {
                   if (sb.length() != 0) sb.append("|");
-                  sb.append(id).append(":").append(versionConstraint);
+                  sb.append(dep.getId()).append(":").append(dep.getVersion());
+                  final String platform = dep.getTargetFramework();
                   if (!StringUtil.isEmptyOrSpaces(platform)) {
                     sb.append(":").append(platform);
                   }
                 }
-              }
-
-              @NotNull
-              private String sha512(@NotNull final BuildArtifact file) throws PackageLoadException {
-                InputStream is = null;
-                try {
-                  is = new BufferedInputStream(file.getInputStream());
-                  final byte[] hash = DigestUtils.sha512(is);
-                  //Buggy commons.codes added unnecessary newlines
-                  return Base64.encodeBase64String(hash).replaceAll("[\r\n]+", "");
-                } catch (IOException e) {
-                  throw new PackageLoadException("Failed to compute SHA-512 for " + file);
-                } finally {
-                  FileUtil.close(is);
-                }
+                return sb.toString();
               }
             }
     );
   }
+
+  private static class HashingPackageHolder implements PackageHolder {
+    private final BuildArtifact myPackage;
+    private final File myFile;
+    private HashingInputStream myStream;
+
+    private HashingPackageHolder(@NotNull final BuildArtifact aPackage, @Nullable final File file) {
+      myPackage = aPackage;
+      myFile = file;
+    }
+
+    @NotNull
+    public String getPackageName() {
+      return myPackage.toString();
+    }
+
+    @NotNull
+    public InputStream openPackage() throws IOException, PackageLoadException {
+      final InputStream stream = myPackage.getInputStream();
+      try {
+        myStream = new HashingInputStream(stream, MessageDigest.getInstance("SHA-512"));
+      } catch (NoSuchAlgorithmException e) {
+        FileUtil.close(stream);
+        throw new PackageLoadException("Failed to compute SHA-512 for " + myPackage);
+      }
+      return myStream;
+    }
+
+    @Nullable
+    public File getPackageFile() {
+      return myFile;
+    }
+
+    /**
+     * @return Base64 encoded SHA-512 of the package
+     */
+    @NotNull
+    public String getHash() throws PackageLoadException {
+      try {
+        if (myStream == null) {
+          //.nuspec was read from the file, the package is read for the hash only
+          final InputStream stream = openPackage();
+          try {
+            final byte[] buffer = new byte[65536];
+            //noinspection StatementWithEmptyBody
+            while (stream.read(buffer) >= 0) ;
+          } finally {
+            FileUtil.close(stream);
+          }
+        }
+        if (!myStream.isComplete()) {
+          myStream.digestRest(myPackage.getInputStream());
+        }
+      } catch (IOException e) {
+        throw new PackageLoadException("Failed to compute SHA-512 for " + myPackage);
+      }
+      //Buggy commons.codes added unnecessary newlines
+      return Base64.encodeBase64String(myStream.getMessageDigest().digest()).replaceAll("[\r\n]+", "");
+    }
+  }
+
+  /**
+   * Digests all bytes read from the stream, the bytes not read are digested by {@link #digestRest(java.io.InputStream)}
+   */
+  private static class HashingInputStream extends DigestInputStream {
+    private boolean myComplete;
+    private long myPosition;
+
+    private HashingInputStream(@NotNull final InputStream stream, @NotNull final MessageDigest digest) {
+      super(stream, digest);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b < 0) {
+        myComplete = true;
+      } else {
+        myPosition++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(@NotNull final byte[] b, final int off, final int len) throws IOException {
+      final int read = super.read(b, off, len);
+      if (read < 0) {
+        myComplete = true;
+      } else {
+        myPosition += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      //skipped bytes are digested too
+      final byte[] buffer = new byte[(int) Math.min(n, 65536)];
+      long skipped = 0;
+      while (skipped < n) {
+        final int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+        if (read < 0) break;
+        skipped += read;
+      }
+      return skipped;
+    }
+
+    /**
+     * Digests the bytes of the package that were not read from this stream
+     * @param stream another stream of the same package, it is closed
+     */
+    public void digestRest(@NotNull final InputStream stream) throws IOException {
+      try {
+        long skip = myPosition;
+        while (skip > 0) {
+          final long skipped = stream.skip(skip);
+          if (skipped > 0) {
+            skip -= skipped;
+          } else if (stream.read() >= 0) {
+            skip--;
+          } else {
+            throw new EOFException("Package is shorter than " + myPosition + " bytes");
+          }
+        }
+
+        final MessageDigest digest = getMessageDigest();
+        final byte[] buffer = new byte[65536];
+        int read;
+        while ((read = stream.read(buffer)) >= 0) {
+          digest.update(buffer, 0, read);
+          myPosition += read;
+        }
+        myComplete = true;
+      } finally {
+        FileUtil.close(stream);
+      }
+    }
+
+    public boolean isComplete() {
+      return myComplete;
+    }
+  }
 }
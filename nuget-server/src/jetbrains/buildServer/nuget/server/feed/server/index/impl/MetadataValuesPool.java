@@ -0,0 +1,82 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.index.impl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+import static jetbrains.buildServer.nuget.server.feed.server.index.PackagesIndex.TEAMCITY_ARTIFACT_RELPATH;
+
+/**
+ * Pool of package metadata values, so that equal values of different packages,
+ * i.e. Authors, Tags or LicenseUrl, share one string instance.
+ *
+ * Values are weakly referenced and are removed once no package uses them.
+ * The pool is bounded, it is cleared once it reaches the maximum size.
+ */
+public class MetadataValuesPool {
+  /**
+   * Attributes that are unique for each package, there is no sense to pool them
+   */
+  private static final Set<String> UNIQUE_ATTRIBUTES = new HashSet<String>(Arrays.asList(
+          "PackageHash",
+          "PackageSize",
+          TEAMCITY_ARTIFACT_RELPATH
+  ));
+
+  private final int myMaxSize;
+  private final Map<String, WeakReference<String>> myValues = new WeakHashMap<String, WeakReference<String>>();
+
+  public MetadataValuesPool(final int maxSize) {
+    myMaxSize = maxSize;
+  }
+
+  /**
+   * @return pooled instance equal to the given value
+   */
+  @NotNull
+  public synchronized String getValue(@NotNull final String value) {
+    final WeakReference<String> ref = myValues.get(value);
+    final String pooled = ref == null ? null : ref.get();
+    if (pooled != null) return pooled;
+
+    if (myValues.size() >= myMaxSize) myValues.clear();
+    myValues.put(value, new WeakReference<String>(value));
+    return value;
+  }
+
+  /**
+   * @return compact copy of the metadata with pooled values
+   */
+  @NotNull
+  public PackageAttributes getMetadata(@NotNull final Map<String, String> metadata) {
+    final PackageAttributes result = new PackageAttributes();
+    for (Map.Entry<String, String> e : metadata.entrySet()) {
+      final String key = e.getKey();
+      final String value = e.getValue();
+      if (value == null) continue;
+      result.put(key, UNIQUE_ATTRIBUTES.contains(key) ? value : getValue(value));
+    }
+    return result;
+  }
+
+  public synchronized int size() {
+    return myValues.size();
+  }
+}
@@ -19,6 +19,7 @@ package jetbrains.buildServer.nuget.server.feed.server.index.impl;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.nuget.common.FeedConstants;
 import jetbrains.buildServer.nuget.common.PackageLoadException;
+import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
 import jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache.ResponseCacheReset;
 import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SBuildType;
@@ -31,10 +32,13 @@ import jetbrains.buildServer.serverSide.metadata.MetadataStorageWriter;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import static jetbrains.buildServer.nuget.server.feed.server.index.PackagesIndex.TEAMCITY_ARTIFACT_RELPATH;
 import static jetbrains.buildServer.nuget.server.feed.server.index.PackagesIndex.TEAMCITY_BUILD_TYPE_ID;
@@ -52,11 +56,17 @@ public class NuGetArtifactsMetadataProvider implements BuildMetadataProvider {
 
   private final LocalNuGetPackageItemsFactory myFactory;
   private final ResponseCacheReset myReset;
+  private final IndexedPackages myPackages;
+  private final PackagesIndexingPool myPool;
 
   public NuGetArtifactsMetadataProvider(@NotNull final LocalNuGetPackageItemsFactory factory,
-                                        @NotNull final ResponseCacheReset reset) {
+                                        @NotNull final ResponseCacheReset reset,
+                                        @NotNull final IndexedPackages packages,
+                                        @NotNull final PackagesIndexingPool pool) {
     myFactory = factory;
     myReset = reset;
+    myPackages = packages;
+    myPool = pool;
   }
 
   @NotNull
@@ -64,14 +74,32 @@ public class NuGetArtifactsMetadataProvider implements BuildMetadataProvider {
     return NUGET_PROVIDER_ID;
   }
 
-  public void generateMedatadata(@NotNull SBuild build, @NotNull MetadataStorageWriter store) {
+  public void generateMedatadata(@NotNull final SBuild build, @NotNull MetadataStorageWriter store) {
+    final Map<BuildArtifact, Map<String, String>> packages = loadPackages(build);
+    if (packages == null) return;
+
+    for (Map.Entry<BuildArtifact, Map<String, String>> e : packages.entrySet()) {
+      if (e.getValue() == null) continue;
+      addPackage(build, e.getKey(), e.getValue(), store);
+    }
+  }
+
+  /**
+   * Reads NuGet packages of the build, packages are not stored
+   *
+   * @return metadata of packages in the order of artifacts, null metadata for packages that failed to load;
+   * null if loading was interrupted
+   */
+  @Nullable
+  public Map<BuildArtifact, Map<String, String>> loadPackages(@NotNull final SBuild build) {
+    final Map<BuildArtifact, Map<String, String>> result = new LinkedHashMap<BuildArtifact, Map<String, String>>();
     if (!TeamCityProperties.getBooleanOrTrue(TEAMCITY_NUGET_INDEX_PACKAGES_PROP_NAME)){
       LOG.info(String.format("Skip NuGet metadata generation for build %s. NuGet packages indexing disabled on the server.", LogUtil.describe(build)));
-      return;
+      return result;
     }
     if(!isIndexingEnabledForBuildType(build.getBuildType())){
       LOG.info(String.format("Skip NuGet metadata generation for build %s. NuGet packages indexing disabled for build type %s.", LogUtil.describe(build), LogUtil.describe(build.getBuildType())));
-      return;
+      return result;
     }
 
     LOG.debug("Looking for NuGet packages in " + LogUtil.describe(build));
@@ -79,24 +107,78 @@ public class NuGetArtifactsMetadataProvider implements BuildMetadataProvider {
     final List<BuildArtifact> packages = new ArrayList<BuildArtifact>();
     visitArtifacts(build.getArtifacts(BuildArtifactsViewMode.VIEW_ALL).getRootArtifact(), packages);
 
-    for (BuildArtifact aPackage : packages) {
-      LOG.info("Indexing NuGet package from artifact " + aPackage.getRelativePath() + " of build " + LogUtil.describe(build));
-      try {
-        Date finishDate = build.getFinishDate();
-        if (finishDate == null) finishDate = new Date();
+    final Date buildFinishDate = build.getFinishDate();
+    final Date finishDate = buildFinishDate != null ? buildFinishDate : new Date();
+
+    final List<Callable<Map<String, String>>> tasks = new ArrayList<Callable<Map<String, String>>>();
+    for (final BuildArtifact aPackage : packages) {
+      tasks.add(new Callable<Map<String, String>>() {
+        @Nullable
+        public Map<String, String> call() {
+          LOG.info("Indexing NuGet package from artifact " + aPackage.getRelativePath() + " of build " + LogUtil.describe(build));
+          try {
+            return myFactory.loadPackage(aPackage, getLocalFile(build, aPackage), finishDate);
+          } catch (PackageLoadException e) {
+            LOG.warn("Failed to read NuGet package: " + aPackage);
+            return null;
+          }
+        }
+      });
+    }
 
-        final Map<String,String> ma = myFactory.loadPackage(aPackage, finishDate);
+    //packages are loaded in parallel, results are kept in the order of artifacts
+    final List<Map<String, String>> loaded;
+    try {
+      loaded = myPool.index(tasks);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warn("Indexing of NuGet packages of build " + LogUtil.describe(build) + " was interrupted, no packages of the build are indexed");
+      return null;
+    }
+    for (int i = 0; i < packages.size(); i++) {
+      final BuildArtifact aPackage = packages.get(i);
+      final Map<String, String> ma = loaded.get(i);
+      if (ma != null) {
         ma.put(TEAMCITY_ARTIFACT_RELPATH, aPackage.getRelativePath());
         ma.put(TEAMCITY_BUILD_TYPE_ID, build.getBuildTypeId());
-
-        myReset.resetCache();
-        store.addParameters(aPackage.getName(), ma);
-      } catch (PackageLoadException e) {
-        LOG.warn("Failed to read NuGet package: " + aPackage);
       }
+      result.put(aPackage, ma);
+    }
+    return result;
+  }
+
+  /**
+   * Stores the loaded package, adds it to the feed and resets cached responses of the package
+   */
+  public void addPackage(@NotNull final SBuild build,
+                         @NotNull final BuildArtifact aPackage,
+                         @NotNull final Map<String, String> metadata,
+                         @NotNull final MetadataStorageWriter store) {
+    store.addParameters(aPackage.getName(), metadata);
+    myPackages.addPackage(new IndexedPackage(aPackage.getName(), build.getBuildId(), metadata));
+    resetCache(metadata.get(NuGetIndexEntry.ID));
+  }
+
+  /**
+   * Only cached responses that could include the package are reset
+   */
+  private void resetCache(@Nullable final String packageId) {
+    if (packageId == null) {
+      myReset.resetCache();
+    } else {
+      myReset.resetPackage(packageId);
     }
   }
 
+  /**
+   * @return file of the artifact in the build artifacts directory or null, e.g. for artifacts inside archives
+   */
+  @Nullable
+  private static File getLocalFile(@NotNull final SBuild build, @NotNull final BuildArtifact artifact) {
+    final File file = new File(build.getArtifactsDirectory(), artifact.getRelativePath());
+    return file.isFile() ? file : null;
+  }
+
   private boolean isIndexingEnabledForBuildType(@Nullable SBuildType buildType) {
     if(buildType == null) return true;
     final String indexEnabledConfigParamValue = buildType.getConfigParameters().get(TEAMCITY_NUGET_INDEX_PACKAGES_PROP_NAME);
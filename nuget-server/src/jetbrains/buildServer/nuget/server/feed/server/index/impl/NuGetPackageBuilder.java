@@ -21,7 +21,6 @@ import jetbrains.buildServer.serverSide.metadata.BuildMetadataEntry;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.HashMap;
 import java.util.Map;
 
 import static jetbrains.buildServer.nuget.server.feed.server.index.PackagesIndex.*;
@@ -42,7 +41,7 @@ public class NuGetPackageBuilder {
 
   public NuGetPackageBuilder(@NotNull final BuildMetadataEntry entry) {
     myKey = entry.getKey();
-    myMetadata = new HashMap<String, String>(entry.getMetadata());
+    myMetadata = new PackageAttributes(entry.getMetadata());
     myBuildId = entry.getBuildId();
     setMetadata(TEAMCITY_BUILD_ID, String.valueOf(myBuildId));
   }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.index.impl;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact map of package attributes.
+ * Attribute names are registered once and get global ordinals,
+ * values are kept in a flat array indexed by the ordinal,
+ * so there are no per-entry hash tables and map entries.
+ *
+ * Null values are not stored, putting null removes the attribute.
+ * The map is not thread-safe.
+ */
+public class PackageAttributes extends AbstractMap<String, String> {
+  private static final ConcurrentHashMap<String, Integer> ourOrdinals = new ConcurrentHashMap<String, Integer>();
+  private static final Object ourNamesLock = new Object();
+  private static volatile String[] ourNames = new String[0];
+
+  private String[] myValues;
+  private int mySize;
+
+  public PackageAttributes() {
+    myValues = new String[ourNames.length];
+  }
+
+  public PackageAttributes(@NotNull final Map<String, String> attributes) {
+    if (attributes instanceof PackageAttributes) {
+      final PackageAttributes other = (PackageAttributes) attributes;
+      myValues = other.myValues.clone();
+      mySize = other.mySize;
+    } else {
+      myValues = new String[ourNames.length];
+      putAll(attributes);
+    }
+  }
+
+  @Override
+  public String get(Object key) {
+    final int ordinal = findOrdinal(key);
+    if (ordinal < 0 || ordinal >= myValues.length) return null;
+    return myValues[ordinal];
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public String put(@NotNull final String key, @Nullable final String value) {
+    if (value == null) return remove(key);
+
+    final int ordinal = getOrdinal(key);
+    if (ordinal >= myValues.length) {
+      myValues = Arrays.copyOf(myValues, ourNames.length);
+    }
+
+    final String old = myValues[ordinal];
+    myValues[ordinal] = value;
+    if (old == null) mySize++;
+    return old;
+  }
+
+  @Override
+  public String remove(Object key) {
+    final int ordinal = findOrdinal(key);
+    if (ordinal < 0 || ordinal >= myValues.length) return null;
+    return removeOrdinal(ordinal);
+  }
+
+  @Override
+  public int size() {
+    return mySize;
+  }
+
+  @NotNull
+  @Override
+  public Set<Entry<String, String>> entrySet() {
+    return new AbstractSet<Entry<String, String>>() {
+      @NotNull
+      @Override
+      public Iterator<Entry<String, String>> iterator() {
+        return new EntriesIterator();
+      }
+
+      @Override
+      public int size() {
+        return mySize;
+      }
+    };
+  }
+
+  @Nullable
+  private String removeOrdinal(final int ordinal) {
+    final String old = myValues[ordinal];
+    myValues[ordinal] = null;
+    if (old != null) mySize--;
+    return old;
+  }
+
+  private static int findOrdinal(@Nullable final Object key) {
+    if (!(key instanceof String)) return -1;
+    final Integer ordinal = ourOrdinals.get(key);
+    return ordinal == null ? -1 : ordinal;
+  }
+
+  private static int getOrdinal(@NotNull final String key) {
+    final Integer ordinal = ourOrdinals.get(key);
+    if (ordinal != null) return ordinal;
+
+    synchronized (ourNamesLock) {
+      final Integer registered = ourOrdinals.get(key);
+      if (registered != null) return registered;
+
+      final String[] names = Arrays.copyOf(ourNames, ourNames.length + 1);
+      final int newOrdinal = names.length - 1;
+      names[newOrdinal] = key;
+      ourNames = names;
+      ourOrdinals.put(key, newOrdinal);
+      return newOrdinal;
+    }
+  }
+
+  private class EntriesIterator implements Iterator<Entry<String, String>> {
+    private int myNext = -1;
+    private int myCurrent = -1;
+
+    private EntriesIterator() {
+      advance();
+    }
+
+    private void advance() {
+      do {
+        myNext++;
+      } while (myNext < myValues.length && myValues[myNext] == null);
+    }
+
+    public boolean hasNext() {
+      return myNext < myValues.length;
+    }
+
+    public Entry<String, String> next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      myCurrent = myNext;
+      advance();
+      return new SimpleImmutableEntry<String, String>(ourNames[myCurrent], myValues[myCurrent]);
+    }
+
+    public void remove() {
+      if (myCurrent < 0) throw new IllegalStateException();
+      removeOrdinal(myCurrent);
+      myCurrent = -1;
+    }
+  }
+}
@@ -44,12 +44,15 @@ public class PackagesIndexImpl implements PackagesIndex, NuGetServerStatisticsPr
   private static final String NUMBER_OF_PACKAGE_IDS_STAT = "Number of unique package Ids";
 
   private final MetadataStorage myStorage;
+  private final IndexedPackages myPackages;
   private final Collection<PackageTransformation> myTransformations;
 
 
   public PackagesIndexImpl(@NotNull final MetadataStorage storage,
+                           @NotNull final IndexedPackages packages,
                            @NotNull final Collection<PackageTransformation> transformations) {
     myStorage = storage;
+    myPackages = packages;
     myTransformations = new ArrayList<PackageTransformation>(transformations);
   }
 
@@ -64,7 +67,62 @@ public class PackagesIndexImpl implements PackagesIndex, NuGetServerStatisticsPr
 
   @NotNull
   public Iterator<NuGetIndexEntry> getNuGetEntries() {
-    return decorateMetadata(myStorage.getAllEntries(NUGET_PROVIDER_ID));
+    if (TeamCityProperties.getBoolean("teamcity.nuget.simple.feed.sort")) {
+      return transformEntries(myStorage.getAllEntries(NUGET_PROVIDER_ID), getTranslatorsSimple());
+    }
+
+    //packages are already sorted in the index, so the entries are computed lazily package by package
+    return new IndexedPackagesIterator(myPackages.getPackages().iterator(), getTranslators(), false);
+  }
+
+  @NotNull
+  public Iterator<NuGetIndexEntry> getNuGetEntries(@NotNull final String packageId) {
+    if (TeamCityProperties.getBoolean("teamcity.nuget.simple.feed.sort")) {
+      return new DecoratingIterator<NuGetIndexEntry, NuGetIndexEntry>(
+              getNuGetEntries(),
+              new Mapper<NuGetIndexEntry, NuGetIndexEntry>() {
+                @Nullable
+                public NuGetIndexEntry mapKey(@NotNull NuGetIndexEntry e) {
+                  final String id = e.getAttributes().get(NuGetIndexEntry.ID);
+                  return packageId.equalsIgnoreCase(id) ? e : null;
+                }
+              });
+    }
+
+    return new IndexedPackagesIterator(myPackages.getPackages(packageId).iterator(), getTranslators(), false);
+  }
+
+  @NotNull
+  public Iterator<NuGetIndexEntry> getLatestNuGetEntries() {
+    if (TeamCityProperties.getBoolean("teamcity.nuget.simple.feed.sort")) {
+      return new DecoratingIterator<NuGetIndexEntry, NuGetIndexEntry>(
+              getNuGetEntries(),
+              new Mapper<NuGetIndexEntry, NuGetIndexEntry>() {
+                @Nullable
+                public NuGetIndexEntry mapKey(@NotNull NuGetIndexEntry e) {
+                  final Map<String, String> attributes = e.getAttributes();
+                  final boolean isLatest = Boolean.valueOf(attributes.get(NuGetPackageBuilder.IS_LATEST_VERSION))
+                          || Boolean.valueOf(attributes.get(NuGetPackageBuilder.IS_ABSOLUTE_LATEST_VERSION));
+                  return isLatest ? e : null;
+                }
+              });
+    }
+
+    return new IndexedPackagesIterator(myPackages.getPackages().iterator(), getTranslators(), true);
+  }
+
+  @NotNull
+  public Iterator<NuGetIndexEntry> searchNuGetEntries(@NotNull final Collection<String> terms, final boolean latestOnly) {
+    if (TeamCityProperties.getBoolean("teamcity.nuget.simple.feed.sort")) {
+      //the result is filtered anyway
+      return latestOnly ? getLatestNuGetEntries() : getNuGetEntries();
+    }
+
+    return new IndexedPackagesIterator(myPackages.search(terms).iterator(), getTranslators(), latestOnly);
+  }
+
+  public boolean isSorted() {
+    return !TeamCityProperties.getBoolean("teamcity.nuget.simple.feed.sort");
   }
 
   private Iterator<NuGetIndexEntry> decorateMetadata(Iterator<BuildMetadataEntry> entries) {
@@ -129,6 +187,111 @@ public class PackagesIndexImpl implements PackagesIndex, NuGetServerStatisticsPr
             });
   }
 
+  private static class IndexedPackagesIterator implements Iterator<NuGetIndexEntry> {
+    private final Iterator<IndexedPackageVersions> myPackages;
+    private final Collection<PackageTransformation> myTranslators;
+    private final boolean myLatestOnly;
+    private Iterator<NuGetIndexEntry> myVersions = Collections.<NuGetIndexEntry>emptyList().iterator();
+
+    private IndexedPackagesIterator(@NotNull final Iterator<IndexedPackageVersions> packages,
+                                    @NotNull final Collection<PackageTransformation> translators,
+                                    final boolean latestOnly) {
+      myPackages = packages;
+      myTranslators = translators;
+      myLatestOnly = latestOnly;
+    }
+
+    public boolean hasNext() {
+      while (!myVersions.hasNext()) {
+        if (!myPackages.hasNext()) return false;
+        final IndexedPackageVersions versions = myPackages.next();
+        myVersions = myLatestOnly ? processLatestVersions(versions) : processVersions(versions);
+      }
+      return true;
+    }
+
+    public NuGetIndexEntry next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      return myVersions.next();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @NotNull
+    private Iterator<NuGetIndexEntry> processVersions(@NotNull final IndexedPackageVersions versions) {
+      final List<IndexedPackage> packages = versions.getPackages();
+      final List<NuGetPackageBuilder> builders = new ArrayList<NuGetPackageBuilder>(packages.size());
+      NuGetPackageBuilder latest = null;
+      NuGetPackageBuilder absoluteLatest = null;
+      int latestRank = -1;
+      int absoluteLatestRank = -1;
+
+      for (int i = 0; i < packages.size(); i++) {
+        final NuGetPackageBuilder builder = applyTransformation(packages.get(i), myTranslators);
+        if (builder == null) continue;
+
+        //the first of the accessible packages with the greatest version is the latest one
+        final int rank = versions.getVersionRank(i);
+        if (rank > absoluteLatestRank) {
+          absoluteLatest = builder;
+          absoluteLatestRank = rank;
+        }
+        if (rank > latestRank && !builder.isPrerelease()) {
+          latest = builder;
+          latestRank = rank;
+        }
+        builders.add(builder);
+      }
+
+      return buildEntries(builders, latest, absoluteLatest);
+    }
+
+    /**
+     * Walks versions from the newest one and stops as soon as latest versions are found
+     */
+    @NotNull
+    private Iterator<NuGetIndexEntry> processLatestVersions(@NotNull final IndexedPackageVersions versions) {
+      final List<IndexedPackage> packages = versions.getPackages();
+      NuGetPackageBuilder latest = null;
+      NuGetPackageBuilder absoluteLatest = null;
+
+      int end = packages.size();
+      while (end > 0 && latest == null) {
+        final int start = versions.getVersionRank(end - 1);
+        for (int i = start; i < end && latest == null; i++) {
+          final NuGetPackageBuilder builder = applyTransformation(packages.get(i), myTranslators);
+          if (builder == null) continue;
+
+          if (absoluteLatest == null) absoluteLatest = builder;
+          if (!builder.isPrerelease()) latest = builder;
+        }
+        end = start;
+      }
+
+      final List<NuGetPackageBuilder> builders = new ArrayList<NuGetPackageBuilder>(2);
+      if (latest != null) builders.add(latest);
+      if (absoluteLatest != null && absoluteLatest != latest) builders.add(absoluteLatest);
+      return buildEntries(builders, latest, absoluteLatest);
+    }
+
+    @NotNull
+    private static Iterator<NuGetIndexEntry> buildEntries(@NotNull final List<NuGetPackageBuilder> builders,
+                                                          @Nullable final NuGetPackageBuilder latest,
+                                                          @Nullable final NuGetPackageBuilder absoluteLatest) {
+      if (latest != null) latest.setIsLatest(true);
+      if (absoluteLatest != null) absoluteLatest.setIsAbsoluteLatest(true);
+
+      final List<NuGetIndexEntry> result = new ArrayList<NuGetIndexEntry>(builders.size());
+      for (NuGetPackageBuilder builder : builders) {
+        final NuGetIndexEntry entry = builder.build();
+        if (entry != null) result.add(entry);
+      }
+      return result.iterator();
+    }
+  }
+
   @Nullable
   private static NuGetPackageBuilder applyTransformation(@NotNull final BuildMetadataEntry e,
                                                          @NotNull final Collection<PackageTransformation> trasformations) {
@@ -141,17 +304,16 @@ public class PackagesIndexImpl implements PackagesIndex, NuGetServerStatisticsPr
 
   @NotNull
   public Map<String, Long> getIndexStatistics() {
-    final Iterator<BuildMetadataEntry> entries = myStorage.getAllEntries(NUGET_PROVIDER_ID);
-
     long totalItemsNumber = 0;
     Set<Long> buildIds = new HashSet<Long>();
     Set<String> packageIds = new HashSet<String>();
 
-    while(entries.hasNext()){
-      final BuildMetadataEntry entry = entries.next();
-      totalItemsNumber++;
-      buildIds.add(entry.getBuildId());
-      packageIds.add(entry.getMetadata().get(NuGetIndexEntry.ID));
+    for (IndexedPackageVersions versions : myPackages.getPackages()) {
+      packageIds.add(versions.getId());
+      for (IndexedPackage entry : versions.getPackages()) {
+        totalItemsNumber++;
+        buildIds.add(entry.getBuildId());
+      }
     }
 
     final Map<String, Long> stats = new HashMap<String, Long>();
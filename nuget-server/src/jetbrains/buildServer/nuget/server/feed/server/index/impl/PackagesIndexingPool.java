@@ -0,0 +1,162 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.index.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.NamedDeamonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of threads which index NuGet packages of builds in parallel.
+ *
+ * Once all threads are busy and the queue is full, the calling thread indexes packages itself,
+ * so the number of pending packages is bounded.
+ */
+public class PackagesIndexingPool {
+  private static final Logger LOG = Logger.getInstance(PackagesIndexingPool.class.getName());
+
+  private final ThreadPoolExecutor myExecutor;
+  private final AtomicLong myIndexedPackages = new AtomicLong();
+  private final AtomicLong myIndexingTime = new AtomicLong();
+
+  public PackagesIndexingPool(@NotNull final EventDispatcher<BuildServerListener> events) {
+    this(TeamCityProperties.getInteger("teamcity.nuget.index.threads", Math.min(4, Runtime.getRuntime().availableProcessors())),
+            TeamCityProperties.getInteger("teamcity.nuget.index.queue.size", 16));
+
+    events.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        shutdown();
+      }
+    });
+  }
+
+  /**
+   * @param threads number of indexing threads, packages are indexed by the calling thread if less than 2
+   * @param queueSize maximum number of packages waiting for a thread
+   */
+  public PackagesIndexingPool(final int threads, final int queueSize) {
+    if (threads < 2) {
+      myExecutor = null;
+      return;
+    }
+
+    myExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+            new NamedDeamonThreadFactory("NuGet Packages Indexer"),
+            new RejectedExecutionHandler() {
+              public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                //back-pressure, also covers the pool being shut down
+                r.run();
+              }
+            });
+    myExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Indexes packages in parallel
+   *
+   * @param tasks tasks indexing a package each
+   * @return results of tasks in the order of tasks
+   * @throws InterruptedException if the calling thread was interrupted while waiting for results,
+   * tasks that are not completed yet are cancelled then
+   */
+  @NotNull
+  public <T> List<T> index(@NotNull final List<? extends Callable<T>> tasks) throws InterruptedException {
+    final List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(tasks.size());
+    for (Callable<T> task : tasks) {
+      final FutureTask<T> future = new FutureTask<T>(measured(task));
+      futures.add(future);
+      if (myExecutor == null) {
+        future.run();
+      } else {
+        myExecutor.execute(future);
+      }
+    }
+
+    final List<T> results = new ArrayList<T>(tasks.size());
+    try {
+      for (FutureTask<T> future : futures) {
+        results.add(getResult(future));
+      }
+    } catch (InterruptedException e) {
+      for (FutureTask<T> future : futures) {
+        future.cancel(true);
+      }
+      throw e;
+    }
+    return results;
+  }
+
+  /**
+   * @return number of packages indexed since the server start
+   */
+  public long getIndexedPackages() {
+    return myIndexedPackages.get();
+  }
+
+  /**
+   * @return total time spent indexing packages since the server start, in milliseconds
+   */
+  public long getIndexingTime() {
+    return myIndexingTime.get();
+  }
+
+  public void shutdown() {
+    if (myExecutor == null) return;
+    myExecutor.shutdown();
+  }
+
+  @NotNull
+  private <T> Callable<T> measured(@NotNull final Callable<T> task) {
+    return new Callable<T>() {
+      public T call() throws Exception {
+        final long start = System.currentTimeMillis();
+        try {
+          return task.call();
+        } finally {
+          final long time = System.currentTimeMillis() - start;
+          myIndexedPackages.incrementAndGet();
+          myIndexingTime.addAndGet(time);
+          LOG.debug("NuGet package indexing took " + time + "ms");
+        }
+      }
+    };
+  }
+
+  @Nullable
+  private static <T> T getResult(@NotNull final FutureTask<T> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+}
@@ -0,0 +1,571 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.index.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.artifacts.BuildArtifact;
+import jetbrains.buildServer.serverSide.metadata.MetadataStorage;
+import jetbrains.buildServer.serverSide.metadata.MetadataStorageWriter;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.ItemProcessor;
+import jetbrains.buildServer.util.NamedDeamonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static jetbrains.buildServer.nuget.server.feed.server.index.impl.NuGetArtifactsMetadataProvider.NUGET_PROVIDER_ID;
+
+/**
+ * Re-indexes NuGet packages of all finished builds, e.g. after packages indexing settings were changed.
+ *
+ * Builds are processed in the order of build ids by several threads, the read rate of packages is limited.
+ * Stored packages of a build are replaced only if all its packages are loaded, otherwise the build is counted as failed.
+ * The id of the build up to which all builds are processed is saved periodically,
+ * re-index interrupted by server shutdown continues from it on the next server start.
+ */
+public class PackagesReindexer {
+  private static final Logger LOG = Logger.getInstance(PackagesReindexer.class.getName());
+
+  private static final String LAST_BUILD_ID = "lastBuildId";
+  private static final String PROCESSED_BUILD_ID = "processedBuildId";
+  private static final long CHECKPOINT_INTERVAL = 30 * 1000L;
+  private static final String PACKAGE_SIZE = "PackageSize";
+
+  private final BuildHistory myHistory;
+  private final BuildsManager myBuilds;
+  private final MetadataStorage myStorage;
+  private final NuGetArtifactsMetadataProvider myProvider;
+  private final IndexedPackages myPackages;
+  private final File myStateFile;
+
+  private final Object myLock = new Object();
+  private Run myRun;
+  private Status myLastStatus = new Status();
+  private long myAllowedReadTime;
+
+  public PackagesReindexer(@NotNull final BuildHistory history,
+                           @NotNull final BuildsManager builds,
+                           @NotNull final MetadataStorage storage,
+                           @NotNull final NuGetArtifactsMetadataProvider provider,
+                           @NotNull final IndexedPackages packages,
+                           @NotNull final ServerPaths paths,
+                           @NotNull final EventDispatcher<BuildServerListener> events) {
+    this(history, builds, storage, provider, packages,
+            new File(new File(paths.getPluginDataDirectory(), "jetbrains.nuget"), "packages-reindex.properties"));
+
+    events.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverStartup() {
+        resume();
+      }
+
+      @Override
+      public void serverShutdown() {
+        stop(false);
+      }
+    });
+  }
+
+  /**
+   * @param stateFile file to save progress of running re-index to
+   */
+  public PackagesReindexer(@NotNull final BuildHistory history,
+                           @NotNull final BuildsManager builds,
+                           @NotNull final MetadataStorage storage,
+                           @NotNull final NuGetArtifactsMetadataProvider provider,
+                           @NotNull final IndexedPackages packages,
+                           @NotNull final File stateFile) {
+    myHistory = history;
+    myBuilds = builds;
+    myStorage = storage;
+    myProvider = provider;
+    myPackages = packages;
+    myStateFile = stateFile;
+  }
+
+  /**
+   * Starts re-index of all finished builds
+   *
+   * @return false if re-index is already running
+   */
+  public boolean start() {
+    synchronized (myLock) {
+      if (myRun != null) return false;
+      myRun = new Run(0, Long.MAX_VALUE);
+      myRun.start();
+      return true;
+    }
+  }
+
+  /**
+   * Continues re-index interrupted by server shutdown, if any
+   *
+   * @return true if re-index was continued
+   */
+  public boolean resume() {
+    final Properties state = loadState();
+    if (state == null) return false;
+
+    synchronized (myLock) {
+      if (myRun != null) return false;
+      try {
+        myRun = new Run(Long.parseLong(state.getProperty(PROCESSED_BUILD_ID)), Long.parseLong(state.getProperty(LAST_BUILD_ID)));
+      } catch (NumberFormatException e) {
+        LOG.warn("Failed to read NuGet packages re-index state from " + myStateFile + ". " + e.getMessage());
+        FileUtil.delete(myStateFile);
+        return false;
+      }
+      LOG.info("Continuing NuGet packages re-index after build id " + myRun.myProcessedBuildId);
+      myRun.start();
+      return true;
+    }
+  }
+
+  /**
+   * @param cancel true to drop the progress, otherwise re-index continues on the next {@link #resume()}
+   */
+  public void stop(final boolean cancel) {
+    final Run run;
+    synchronized (myLock) {
+      run = myRun;
+    }
+    if (run == null) {
+      if (cancel) FileUtil.delete(myStateFile);
+      return;
+    }
+    run.stop(cancel);
+  }
+
+  /**
+   * Waits for the running re-index, if any, to finish. Used in tests
+   */
+  public void waitFor() throws InterruptedException {
+    final Run run;
+    synchronized (myLock) {
+      run = myRun;
+    }
+    if (run != null) run.waitFor();
+  }
+
+  @NotNull
+  public Status getStatus() {
+    synchronized (myLock) {
+      return myRun == null ? myLastStatus : myRun.getStatus();
+    }
+  }
+
+  /**
+   * @return number of threads to index builds
+   */
+  protected int getThreads() {
+    return Math.max(1, TeamCityProperties.getInteger("teamcity.nuget.reindex.threads", 2));
+  }
+
+  /**
+   * @return maximum average rate of reading packages, bytes per second, 0 for unlimited
+   */
+  protected long getBytesPerSecond() {
+    return TeamCityProperties.getInteger("teamcity.nuget.reindex.throughput.mb", 20) * 1024L * 1024L;
+  }
+
+  /**
+   * Re-indexes packages of the build, stored packages are kept if some package fails to load
+   *
+   * @return size of loaded packages in bytes
+   * @throws InterruptedException if loading of packages was interrupted
+   */
+  private long reindex(final long buildId,
+                       @NotNull final AtomicLong packages,
+                       @NotNull final AtomicInteger failedBuilds) throws InterruptedException {
+    final SBuild build = myBuilds.findBuildInstanceById(buildId);
+    if (build == null || !build.isFinished()) return 0;
+
+    final Map<BuildArtifact, Map<String, String>> loaded = myProvider.loadPackages(build);
+    if (loaded == null) throw new InterruptedException();
+
+    long size = 0;
+    for (Map<String, String> metadata : loaded.values()) {
+      if (metadata == null) continue;
+      try {
+        size += Long.parseLong(metadata.get(PACKAGE_SIZE));
+      } catch (NumberFormatException e) {
+        //NOP
+      }
+    }
+
+    if (loaded.containsValue(null)) {
+      LOG.warn("Failed to re-index NuGet packages of build id " + buildId + ", previously indexed packages of the build are kept");
+      failedBuilds.incrementAndGet();
+      return size;
+    }
+
+    //packages of the build are removed from the feed and cached responses are reset for them
+    myStorage.deleteBuildEntry(buildId, NUGET_PROVIDER_ID);
+    myPackages.removeBuild(buildId);
+
+    final MetadataStorageWriter writer = new MetadataStorageWriter() {
+      public void addParameters(@NotNull final String key, @NotNull final Map<String, String> metadata) {
+        myStorage.addBuildEntry(buildId, NUGET_PROVIDER_ID, key, metadata, true);
+      }
+    };
+    for (Map.Entry<BuildArtifact, Map<String, String>> e : loaded.entrySet()) {
+      myProvider.addPackage(build, e.getKey(), e.getValue(), writer);
+      packages.incrementAndGet();
+    }
+    return size;
+  }
+
+  /**
+   * Delays the caller to keep the average read rate of all threads under the limit
+   */
+  private void throttle(final long bytes, final long bytesPerSecond) throws InterruptedException {
+    if (bytesPerSecond <= 0 || bytes <= 0) return;
+
+    final long delay;
+    synchronized (myLock) {
+      final long now = System.currentTimeMillis();
+      myAllowedReadTime = Math.max(myAllowedReadTime, now) + bytes * 1000 / bytesPerSecond;
+      delay = myAllowedReadTime - now;
+    }
+    if (delay > 0) Thread.sleep(delay);
+  }
+
+  @Nullable
+  private Properties loadState() {
+    if (!myStateFile.isFile()) return null;
+    InputStream stream = null;
+    try {
+      stream = new FileInputStream(myStateFile);
+      final Properties state = new Properties();
+      state.load(stream);
+      return state;
+    } catch (IOException e) {
+      LOG.warn("Failed to read NuGet packages re-index state from " + myStateFile + ". " + e.getMessage());
+      return null;
+    } finally {
+      FileUtil.close(stream);
+    }
+  }
+
+  private void saveState(final long processedBuildId, final long lastBuildId) {
+    final Properties state = new Properties();
+    state.setProperty(PROCESSED_BUILD_ID, String.valueOf(processedBuildId));
+    state.setProperty(LAST_BUILD_ID, String.valueOf(lastBuildId));
+
+    final File temp = new File(myStateFile.getPath() + ".tmp");
+    OutputStream stream = null;
+    try {
+      FileUtil.createParentDirs(temp);
+      stream = new FileOutputStream(temp);
+      state.store(stream, "NuGet packages re-index progress");
+      stream.close();
+      stream = null;
+      FileUtil.delete(myStateFile);
+      if (!temp.renameTo(myStateFile)) {
+        throw new IOException("Failed to rename " + temp);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to save NuGet packages re-index state to " + myStateFile + ". " + e.getMessage());
+    } finally {
+      FileUtil.close(stream);
+    }
+  }
+
+  /**
+   * Single re-index of builds with ids in (processedBuildId, lastBuildId]
+   */
+  private class Run {
+    private final long myLastBuildIdLimit;
+    private final AtomicInteger myNext = new AtomicInteger();
+    private final AtomicLong myPackagesCount = new AtomicLong();
+    private final AtomicInteger myFailedCount = new AtomicInteger();
+    private final AtomicLong myBytes = new AtomicLong();
+    private final Object myRunLock = new Object();
+    private ExecutorService myExecutor;
+    private long[] myIds;
+    private boolean[] myDone;
+    private int myDonePrefix;
+    private int myDoneCount;
+    private long myProcessedBuildId;
+    private long myLastBuildId;
+    private long myStartTime;
+    private long myCheckpointTime;
+    private int myActiveWorkers;
+    private boolean myFinished;
+    private volatile boolean myStopped;
+    private volatile boolean myCancelled;
+
+    private Run(final long processedBuildId, final long lastBuildId) {
+      myProcessedBuildId = processedBuildId;
+      myLastBuildIdLimit = lastBuildId;
+    }
+
+    private void start() {
+      final int threads = getThreads();
+      final long bytesPerSecond = getBytesPerSecond();
+
+      myStartTime = System.currentTimeMillis();
+      myCheckpointTime = myStartTime;
+      myActiveWorkers = threads;
+      myExecutor = Executors.newFixedThreadPool(threads, new NamedDeamonThreadFactory("NuGet Packages Re-index"));
+      myExecutor.submit(new Runnable() {
+        public void run() {
+          try {
+            collectBuilds();
+          } catch (Throwable t) {
+            LOG.warn("Failed to list builds for NuGet packages re-index. " + t.getMessage(), t);
+            synchronized (myRunLock) {
+              myIds = new long[0];
+              myDone = new boolean[0];
+            }
+            myStopped = true;
+          }
+
+          for (int i = 1; i < threads; i++) {
+            myExecutor.submit(new Runnable() {
+              public void run() {
+                work(bytesPerSecond);
+              }
+            });
+          }
+          myExecutor.shutdown();
+          work(bytesPerSecond);
+        }
+      });
+    }
+
+    private void collectBuilds() {
+      final long[][] ids = {new long[1024]};
+      final int[] count = {0};
+      myHistory.processEntries(new ItemProcessor<SFinishedBuild>() {
+        public boolean processItem(final SFinishedBuild build) {
+          final long id = build.getBuildId();
+          if (id <= myProcessedBuildId || id > myLastBuildIdLimit) return !myStopped;
+          if (count[0] == ids[0].length) ids[0] = Arrays.copyOf(ids[0], count[0] * 2);
+          ids[0][count[0]++] = id;
+          return !myStopped;
+        }
+      });
+
+      final long[] sorted = Arrays.copyOf(ids[0], count[0]);
+      Arrays.sort(sorted);
+      synchronized (myRunLock) {
+        myIds = sorted;
+        myDone = new boolean[sorted.length];
+        myLastBuildId = sorted.length == 0 ? myProcessedBuildId : Math.max(myProcessedBuildId, sorted[sorted.length - 1]);
+        if (myLastBuildIdLimit != Long.MAX_VALUE) myLastBuildId = myLastBuildIdLimit;
+      }
+      saveState(myProcessedBuildId, myLastBuildId);
+      LOG.info("Re-indexing NuGet packages of " + sorted.length + " builds");
+    }
+
+    private void work(final long bytesPerSecond) {
+      try {
+        int i;
+        while (!myStopped && (i = myNext.getAndIncrement()) < myIds.length) {
+          final long buildId = myIds[i];
+          try {
+            final long bytes = reindex(buildId, myPackagesCount, myFailedCount);
+            myBytes.addAndGet(bytes);
+            throttle(bytes, bytesPerSecond);
+          } catch (InterruptedException e) {
+            //the build is not marked as done, so it is re-indexed on resume
+            myStopped = true;
+            break;
+          } catch (Throwable t) {
+            LOG.warn("Failed to re-index NuGet packages of build id " + buildId + ". " + t.getMessage(), t);
+            myFailedCount.incrementAndGet();
+          }
+          markDone(i);
+        }
+      } finally {
+        workerFinished();
+      }
+    }
+
+    private void markDone(final int index) {
+      final boolean checkpoint;
+      synchronized (myRunLock) {
+        myDone[index] = true;
+        myDoneCount++;
+        while (myDonePrefix < myDone.length && myDone[myDonePrefix]) {
+          myProcessedBuildId = myIds[myDonePrefix++];
+        }
+        final long now = System.currentTimeMillis();
+        checkpoint = now - myCheckpointTime >= CHECKPOINT_INTERVAL;
+        if (checkpoint) myCheckpointTime = now;
+      }
+      if (checkpoint) {
+        checkpoint();
+        LOG.info("NuGet packages re-index: " + getStatus().getDescription());
+      }
+    }
+
+    private void checkpoint() {
+      final long processed;
+      final long last;
+      synchronized (myRunLock) {
+        processed = myProcessedBuildId;
+        last = myLastBuildId;
+      }
+      if (!myCancelled) saveState(processed, last);
+    }
+
+    private void workerFinished() {
+      synchronized (myRunLock) {
+        if (--myActiveWorkers > 0) return;
+      }
+
+      final boolean complete = !myStopped;
+      if (complete || myCancelled) {
+        FileUtil.delete(myStateFile);
+      } else {
+        checkpoint();
+      }
+      synchronized (myRunLock) {
+        myFinished = true;
+      }
+      final Status status = getStatus();
+      LOG.info("NuGet packages re-index " + (complete ? "finished" : "stopped") + ": " + status.getDescription());
+
+      synchronized (myLock) {
+        if (myRun == this) {
+          myRun = null;
+          myLastStatus = status;
+        }
+      }
+      synchronized (myRunLock) {
+        myRunLock.notifyAll();
+      }
+    }
+
+    private void stop(final boolean cancel) {
+      if (cancel) myCancelled = true;
+      myStopped = true;
+    }
+
+    private void waitFor() throws InterruptedException {
+      synchronized (myRunLock) {
+        while (!myFinished) myRunLock.wait();
+      }
+    }
+
+    @NotNull
+    private Status getStatus() {
+      synchronized (myRunLock) {
+        return new Status(
+                !myFinished,
+                myIds == null ? -1 : myIds.length,
+                myDoneCount,
+                myFailedCount.get(),
+                myPackagesCount.get(),
+                myBytes.get(),
+                System.currentTimeMillis() - myStartTime);
+      }
+    }
+  }
+
+  /**
+   * Progress and throughput of re-index
+   */
+  public static class Status {
+    private final boolean myRunning;
+    private final int myBuildsTotal;
+    private final int myBuildsProcessed;
+    private final int myBuildsFailed;
+    private final long myPackages;
+    private final long myBytes;
+    private final long myTime;
+
+    private Status() {
+      this(false, 0, 0, 0, 0, 0, 0);
+    }
+
+    private Status(final boolean running,
+                   final int buildsTotal,
+                   final int buildsProcessed,
+                   final int buildsFailed,
+                   final long packages,
+                   final long bytes,
+                   final long time) {
+      myRunning = running;
+      myBuildsTotal = buildsTotal;
+      myBuildsProcessed = buildsProcessed;
+      myBuildsFailed = buildsFailed;
+      myPackages = packages;
+      myBytes = bytes;
+      myTime = time;
+    }
+
+    public boolean isRunning() {
+      return myRunning;
+    }
+
+    /**
+     * @return number of builds to re-index or -1 if builds are not yet listed
+     */
+    public int getBuildsTotal() {
+      return myBuildsTotal;
+    }
+
+    public int getBuildsProcessed() {
+      return myBuildsProcessed;
+    }
+
+    /**
+     * @return number of processed builds whose packages failed to load, their previously indexed packages are kept
+     */
+    public int getBuildsFailed() {
+      return myBuildsFailed;
+    }
+
+    public long getPackages() {
+      return myPackages;
+    }
+
+    public long getBytes() {
+      return myBytes;
+    }
+
+    public double getBuildsPerSecond() {
+      return myTime <= 0 ? 0 : myBuildsProcessed * 1000.0 / myTime;
+    }
+
+    public double getBytesPerSecond() {
+      return myTime <= 0 ? 0 : myBytes * 1000.0 / myTime;
+    }
+
+    @NotNull
+    public String getDescription() {
+      if (!myRunning && myTime == 0) return "Not running";
+      if (myBuildsTotal < 0) return "Listing builds";
+      return String.format("%d of %d builds, %s%d packages, %.1f builds/s, %.1f MB/s",
+              myBuildsProcessed, myBuildsTotal, myBuildsFailed > 0 ? myBuildsFailed + " failed, " : "", myPackages,
+              getBuildsPerSecond(), getBytesPerSecond() / (1024 * 1024));
+    }
+  }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.index.impl;
+
+import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted n-gram index of package texts, used to answer substring searches
+ * without scanning all packages.
+ *
+ * Lower-cased Id, Title, Description and Tags of all versions of a package are split into
+ * 2- and 3-character grams, each gram refers to the sorted ordinals of package Ids containing it.
+ * A package could contain a term only if it contains all grams of the term,
+ * so the search returns candidate Ids that still have to be checked.
+ *
+ * Ordinals of removed keys are reused by new keys, a full reload assigns dense ordinals again.
+ *
+ * Updates must be serialized by the caller. Posting arrays are never modified in place
+ * and new postings are added before stale ones are removed, so concurrent searches
+ * see at least all packages that match either before or after the update.
+ */
+public class PackagesTextIndex {
+  /**
+   * Shorter terms are not indexed
+   */
+  public static final int MIN_TERM_LENGTH = 2;
+
+  private static final String[] TEXT_ATTRIBUTES = {NuGetIndexEntry.ID, "Title", "Description", "Tags"};
+  private static final long[] NO_GRAMS = new long[0];
+  private static final int[] NO_ORDINALS = new int[0];
+
+  private final ConcurrentHashMap<Long, int[]> myPostings;
+  private final Map<String, Integer> myOrdinals;
+  private final Map<String, long[]> myGrams;
+  private final IntList myFreeOrdinals = new IntList();
+  private volatile String[] myKeys;
+
+  public PackagesTextIndex() {
+    this(new ConcurrentHashMap<Long, int[]>(), new HashMap<String, Integer>(), new HashMap<String, long[]>(), new String[0]);
+  }
+
+  private PackagesTextIndex(@NotNull final ConcurrentHashMap<Long, int[]> postings,
+                            @NotNull final Map<String, Integer> ordinals,
+                            @NotNull final Map<String, long[]> grams,
+                            @NotNull final String[] keys) {
+    myPostings = postings;
+    myOrdinals = ordinals;
+    myGrams = grams;
+    myKeys = keys;
+  }
+
+  /**
+   * Builds the index at once, used for bulk index loading
+   * @param packages package versions by lookup key
+   */
+  @NotNull
+  public static PackagesTextIndex create(@NotNull final Map<String, IndexedPackageVersions[]> packages) {
+    final Map<Long, IntList> postings = new HashMap<Long, IntList>();
+    final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+    final Map<String, long[]> grams = new HashMap<String, long[]>();
+    final String[] keys = new String[packages.size()];
+
+    for (Map.Entry<String, IndexedPackageVersions[]> e : packages.entrySet()) {
+      final int ordinal = ordinals.size();
+      final long[] packageGrams = getGrams(e.getValue());
+      ordinals.put(e.getKey(), ordinal);
+      grams.put(e.getKey(), packageGrams);
+      keys[ordinal] = e.getKey();
+
+      for (long gram : packageGrams) {
+        IntList list = postings.get(gram);
+        if (list == null) {
+          list = new IntList();
+          postings.put(gram, list);
+        }
+        //ordinals grow, so the list stays sorted
+        list.add(ordinal);
+      }
+    }
+
+    final ConcurrentHashMap<Long, int[]> result = new ConcurrentHashMap<Long, int[]>(postings.size());
+    for (Map.Entry<Long, IntList> e : postings.entrySet()) {
+      result.put(e.getKey(), e.getValue().toArray());
+    }
+    return new PackagesTextIndex(result, ordinals, grams, keys);
+  }
+
+  /**
+   * Replaces (or removes if versions is null) indexed texts of the given lookup key
+   */
+  public void update(@NotNull final String key, @Nullable final IndexedPackageVersions[] versions) {
+    final long[] oldGrams = myGrams.containsKey(key) ? myGrams.get(key) : NO_GRAMS;
+    final long[] newGrams = versions == null ? NO_GRAMS : getGrams(versions);
+    if (oldGrams.length == 0 && newGrams.length == 0) return;
+
+    final int ordinal = getOrdinal(key);
+    for (long gram : newGrams) {
+      if (Arrays.binarySearch(oldGrams, gram) < 0) addPosting(gram, ordinal);
+    }
+    for (long gram : oldGrams) {
+      if (Arrays.binarySearch(newGrams, gram) < 0) removePosting(gram, ordinal);
+    }
+
+    if (newGrams.length == 0) {
+      myGrams.remove(key);
+      releaseOrdinal(key);
+    } else {
+      myGrams.put(key, newGrams);
+    }
+  }
+
+  /**
+   * @param term text to search, case-insensitive
+   * @return lookup keys of packages that could contain the term in Id, Title, Description or Tags,
+   * or null if the term is too short to be searched in the index
+   */
+  @Nullable
+  public Collection<String> search(@NotNull final String term) {
+    final String text = term.toLowerCase(Locale.ENGLISH);
+    if (text.length() < MIN_TERM_LENGTH) return null;
+
+    final long[] grams = getGrams(text, text.length() == 2 ? 2 : 3);
+    final int[][] postings = new int[grams.length][];
+    for (int i = 0; i < grams.length; i++) {
+      final int[] p = myPostings.get(grams[i]);
+      if (p == null) return Collections.emptyList();
+      postings[i] = p;
+    }
+
+    //intersect starting from the most selective gram
+    Arrays.sort(postings, new Comparator<int[]>() {
+      public int compare(int[] o1, int[] o2) {
+        return o1.length - o2.length;
+      }
+    });
+
+    final String[] keys = myKeys;
+    final List<String> result = new ArrayList<String>();
+    for (int ordinal : postings[0]) {
+      boolean matches = true;
+      for (int i = 1; i < postings.length && matches; i++) {
+        matches = Arrays.binarySearch(postings[i], ordinal) >= 0;
+      }
+      if (matches && ordinal < keys.length && keys[ordinal] != null) result.add(keys[ordinal]);
+    }
+    return result;
+  }
+
+  private int getOrdinal(@NotNull final String key) {
+    final Integer ordinal = myOrdinals.get(key);
+    if (ordinal != null) return ordinal;
+
+    if (!myFreeOrdinals.isEmpty()) {
+      //postings of the new key are added after this write, so searches that see them see the key too
+      final int reused = myFreeOrdinals.removeLast();
+      myKeys[reused] = key;
+      myOrdinals.put(key, reused);
+      return reused;
+    }
+
+    final int newOrdinal = myOrdinals.size();
+    final String[] keys = Arrays.copyOf(myKeys, Math.max(newOrdinal + 1, myKeys.length * 3 / 2));
+    keys[newOrdinal] = key;
+    myKeys = keys;
+    myOrdinals.put(key, newOrdinal);
+    return newOrdinal;
+  }
+
+  /**
+   * Called after all postings of the key are removed
+   */
+  private void releaseOrdinal(@NotNull final String key) {
+    final Integer ordinal = myOrdinals.remove(key);
+    if (ordinal == null) return;
+    myKeys[ordinal] = null;
+    myFreeOrdinals.add(ordinal);
+  }
+
+  private void addPosting(final long gram, final int ordinal) {
+    final int[] current = myPostings.containsKey(gram) ? myPostings.get(gram) : NO_ORDINALS;
+    final int idx = Arrays.binarySearch(current, ordinal);
+    if (idx >= 0) return;
+
+    final int pos = -idx - 1;
+    final int[] updated = new int[current.length + 1];
+    System.arraycopy(current, 0, updated, 0, pos);
+    updated[pos] = ordinal;
+    System.arraycopy(current, pos, updated, pos + 1, current.length - pos);
+    myPostings.put(gram, updated);
+  }
+
+  private void removePosting(final long gram, final int ordinal) {
+    final int[] current = myPostings.get(gram);
+    if (current == null) return;
+    final int idx = Arrays.binarySearch(current, ordinal);
+    if (idx < 0) return;
+
+    if (current.length == 1) {
+      myPostings.remove(gram);
+      return;
+    }
+
+    final int[] updated = new int[current.length - 1];
+    System.arraycopy(current, 0, updated, 0, idx);
+    System.arraycopy(current, idx + 1, updated, idx, current.length - idx - 1);
+    myPostings.put(gram, updated);
+  }
+
+  /**
+   * @return sorted distinct grams of all texts of the packages
+   */
+  @NotNull
+  private static long[] getGrams(@NotNull final IndexedPackageVersions[] versions) {
+    final Set<Long> grams = new HashSet<Long>();
+    for (IndexedPackageVersions v : versions) {
+      for (IndexedPackage pkg : v.getPackages()) {
+        for (String attribute : TEXT_ATTRIBUTES) {
+          final String value = pkg.getMetadata().get(attribute);
+          if (value == null) continue;
+          final String text = value.toLowerCase(Locale.ENGLISH);
+          addGrams(grams, text, 2);
+          addGrams(grams, text, 3);
+        }
+      }
+    }
+    return toSortedArray(grams);
+  }
+
+  @NotNull
+  private static long[] getGrams(@NotNull final String text, final int length) {
+    final Set<Long> grams = new HashSet<Long>();
+    addGrams(grams, text, length);
+    return toSortedArray(grams);
+  }
+
+  private static void addGrams(@NotNull final Set<Long> grams, @NotNull final String text, final int length) {
+    for (int i = 0; i + length <= text.length(); i++) {
+      long gram = length;
+      for (int j = i; j < i + length; j++) {
+        gram = (gram << 16) | text.charAt(j);
+      }
+      grams.add(gram);
+    }
+  }
+
+  @NotNull
+  private static long[] toSortedArray(@NotNull final Set<Long> values) {
+    final long[] result = new long[values.size()];
+    int i = 0;
+    for (Long value : values) {
+      result[i++] = value;
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  private static class IntList {
+    private int[] myData = new int[4];
+    private int mySize;
+
+    private void add(final int value) {
+      if (mySize == myData.length) myData = Arrays.copyOf(myData, mySize * 2);
+      myData[mySize++] = value;
+    }
+
+    private boolean isEmpty() {
+      return mySize == 0;
+    }
+
+    private int removeLast() {
+      return myData[--mySize];
+    }
+
+    @NotNull
+    private int[] toArray() {
+      return Arrays.copyOf(myData, mySize);
+    }
+  }
+}
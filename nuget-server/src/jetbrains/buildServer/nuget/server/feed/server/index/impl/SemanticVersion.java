@@ -0,0 +1,224 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.index.impl;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Immutable pre-parsed package version.
+ * The version is split into release, prerelease (after '-') and build (after '+') parts,
+ * each part is split by dots into elements. Numeric elements are parsed once,
+ * so {@link #compareTo(SemanticVersion)} does not allocate or parse anything.
+ *
+ * Elements are compared as numbers if both are numbers, numbers are less than text,
+ * text elements are compared as strings. A version without prerelease part is greater
+ * than the same version with prerelease part.
+ */
+public final class SemanticVersion implements Comparable<SemanticVersion> {
+  private static final String[] NO_ELEMENTS = new String[0];
+  private static final long NOT_A_NUMBER = Long.MIN_VALUE;
+
+  private final String myVersion;
+  private final Part myRelease;
+  private final Part myPrerelease;
+  private final Part myBuild;
+
+  private SemanticVersion(@NotNull final String version) {
+    myVersion = version;
+
+    final int plus = version.indexOf('+');
+    int dash = version.indexOf('-');
+    //dash after plus is a part of the build metadata
+    if (plus >= 0 && dash > plus) dash = -1;
+
+    int releaseEnd = version.length();
+    if (plus >= 0) releaseEnd = plus;
+    if (dash >= 0) releaseEnd = dash;
+
+    myRelease = Part.create(version.substring(0, releaseEnd));
+    myPrerelease = Part.create(dash < 0 ? null : version.substring(dash + 1, plus >= 0 ? plus : version.length()));
+    myBuild = Part.create(plus < 0 ? null : version.substring(plus + 1));
+  }
+
+  @NotNull
+  public static SemanticVersion valueOf(@NotNull final String version) {
+    return new SemanticVersion(version);
+  }
+
+  @NotNull
+  public String getVersion() {
+    return myVersion;
+  }
+
+  public boolean hasPrereleasePart() {
+    return myPrerelease.size() > 0;
+  }
+
+  public int compareTo(@NotNull final SemanticVersion other) {
+    if (this == other || myVersion.equals(other.myVersion)) return 0;
+
+    int cmp;
+    if ((cmp = myRelease.compareTo(other.myRelease)) != 0) return cmp;
+    if ((cmp = myRelease.size() - other.myRelease.size()) != 0) return sign(cmp);
+
+    if ((cmp = myPrerelease.compareTo(other.myPrerelease)) != 0) return cmp;
+    //release version is newer than any prerelease of it
+    if (myPrerelease.size() == 0 && other.myPrerelease.size() > 0) return 1;
+    if (other.myPrerelease.size() == 0 && myPrerelease.size() > 0) return -1;
+    if ((cmp = myPrerelease.size() - other.myPrerelease.size()) != 0) return sign(cmp);
+
+    if ((cmp = myBuild.compareTo(other.myBuild)) != 0) return cmp;
+    return sign(myBuild.size() - other.myBuild.size());
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return this == o || o instanceof SemanticVersion && compareTo((SemanticVersion) o) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    //equal versions could be written differently, i.e. 1.0 and 1.00
+    int hash = myRelease.size();
+    for (int i = 0; i < myRelease.size(); i++) {
+      hash = 31 * hash + myRelease.hashCode(i);
+    }
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return myVersion;
+  }
+
+  private static int sign(int value) {
+    return value < 0 ? -1 : value > 0 ? 1 : 0;
+  }
+
+  /**
+   * Dot-separated elements of one version part.
+   * Only text elements are kept as strings, numeric elements are kept as numbers
+   */
+  private static final class Part {
+    private static final Part EMPTY = new Part(NO_ELEMENTS);
+
+    private final String[] myElements;
+    private final long[] myNumbers;
+
+    private Part(@NotNull final String[] elements) {
+      myElements = elements;
+      myNumbers = new long[elements.length];
+      for (int i = 0; i < elements.length; i++) {
+        myNumbers[i] = parseNumber(elements[i]);
+        if (myNumbers[i] != NOT_A_NUMBER) elements[i] = null;
+      }
+    }
+
+    @NotNull
+    private static Part create(@Nullable final String part) {
+      final String[] elements = split(part);
+      return elements.length == 0 ? EMPTY : new Part(elements);
+    }
+
+    private int size() {
+      return myElements.length;
+    }
+
+    /**
+     * Compares common elements of both parts
+     */
+    private int compareTo(@NotNull final Part other) {
+      int cmp;
+      for (int i = 0, max = Math.min(size(), other.size()); i < max; i++) {
+        if ((cmp = compareElements(i, other)) != 0) return cmp;
+      }
+      return 0;
+    }
+
+    private int compareElements(final int i, @NotNull final Part other) {
+      final long n1 = myNumbers[i];
+      final long n2 = other.myNumbers[i];
+      final boolean isNumber1 = n1 != NOT_A_NUMBER;
+      final boolean isNumber2 = n2 != NOT_A_NUMBER;
+
+      if (isNumber1 && isNumber2) return n1 < n2 ? -1 : n1 == n2 ? 0 : 1;
+      if (isNumber1) return -1;
+      if (isNumber2) return 1;
+      return sign(myElements[i].compareTo(other.myElements[i]));
+    }
+
+    private int hashCode(final int i) {
+      final long n = myNumbers[i];
+      return n != NOT_A_NUMBER ? (int) (n ^ (n >>> 32)) : myElements[i].hashCode();
+    }
+
+    /**
+     * Splits by dots, trailing empty elements are dropped
+     */
+    @NotNull
+    private static String[] split(@Nullable final String part) {
+      if (part == null) return NO_ELEMENTS;
+
+      int count = 0;
+      int end = part.length();
+      while (end > 0 && part.charAt(end - 1) == '.') end--;
+      if (end == 0) return NO_ELEMENTS;
+
+      for (int i = 0; i < end; i++) {
+        if (part.charAt(i) == '.') count++;
+      }
+
+      final String[] result = new String[count + 1];
+      int start = 0;
+      int idx = 0;
+      for (int i = 0; i < end; i++) {
+        if (part.charAt(i) == '.') {
+          result[idx++] = part.substring(start, i);
+          start = i + 1;
+        }
+      }
+      result[idx] = part.substring(start, end);
+      return result;
+    }
+
+    /**
+     * @return parsed value or {@link #NOT_A_NUMBER} if the element is not a number in int range
+     */
+    private static long parseNumber(@NotNull final String element) {
+      final int length = element.length();
+      if (length == 0) return NOT_A_NUMBER;
+
+      int i = 0;
+      final char first = element.charAt(0);
+      if (first == '-' || first == '+') {
+        if (length == 1) return NOT_A_NUMBER;
+        i = 1;
+      }
+      for (; i < length; i++) {
+        if (Character.digit(element.charAt(i), 10) < 0) return NOT_A_NUMBER;
+      }
+
+      try {
+        return Integer.parseInt(element);
+      } catch (NumberFormatException e) {
+        //too long number
+        return NOT_A_NUMBER;
+      }
+    }
+  }
+}
@@ -21,7 +21,6 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Comparator;
-import java.util.regex.Pattern;
 
 /**
  * Created 18.03.13 15:50
@@ -68,87 +67,15 @@ public class SemanticVersionsComparer  {
     };
   }
 
+  /**
+   * Parses both versions on each comparison, use pre-parsed {@link SemanticVersion} to sort many versions
+   */
   @NotNull
   public static Comparator<String> getSemanticVersionsComparator() {
     return new Comparator<String>() {
-
       public int compare(@NotNull String v1, @NotNull String v2) {
         if (v1.equals(v2)) return 0;
-
-        final ParsedVersion p1 = new ParsedVersion(v1);
-        final ParsedVersion p2 = new ParsedVersion(v2);
-
-        String[] o1 = split(p1.getInitialPart());
-        String[] o2 = split(p2.getInitialPart());
-
-        int x;
-        for(int i = 0, max = Math.min(o1.length, o2.length); i < max; i++) {
-          if ((x = compareElements(o1[i], o2[i]))!= 0) return x;
-        }
-        if (o1.length < o2.length) return -1;
-        if (o1.length > o2.length) return 1;
-
-
-        o1 = split(p1.getMunisPart());
-        o2 = split(p2.getMunisPart());
-
-        for(int i = 0, max = Math.min(o1.length, o2.length); i < max; i++) {
-          if ((x = compareElements(o1[i], o2[i]))!= 0) return x;
-        }
-        if (o1.length == 0 && o2.length > 0) return 1;
-        if (o2.length == 0 && o1.length > 0) return -1;
-
-        if (o1.length < o2.length) return -1;
-        if (o1.length > o2.length) return 1;
-
-        o1 = split(p1.getPlusPart());
-        o2 = split(p2.getPlusPart());
-
-        for(int i = 0, max = Math.min(o1.length, o2.length); i < max; i++) {
-          if ((x = compareElements(o1[i], o2[i]))!= 0) return x;
-        }
-        if (o1.length < o2.length) return -1;
-        if (o1.length > o2.length) return 1;
-        return 0;
-      }
-
-      @NotNull
-      private String[] split(@Nullable String s) {
-        if (s == null || s.length() == 0) return new String[0];
-        return Pattern.compile("\\.").split(s);
-      }
-
-      private int compareElements(@NotNull String s1, @NotNull String s2) {
-        int i1 = 0;
-        int i2 = 0;
-        boolean isInt1 = true;
-        boolean isInt2 = true;
-        try {
-          i1 = Integer.parseInt(s1);
-        } catch (Exception e) {
-          isInt1 = false;
-        }
-        try {
-          i2 = Integer.parseInt(s2);
-        } catch (Exception e) {
-          isInt2 = false;
-        }
-
-        if (isInt1 && isInt2) {
-          if (i1 == i2) return 0;
-          if (i1 < i2) return -1;
-          if (i1 > i2) return 1;
-        }
-
-        if (isInt1 && !isInt2) {
-          return -1;
-        }
-
-        if (!isInt1 && isInt2) {
-          return 1;
-        }
-
-        return s1.compareTo(s2);
+        return SemanticVersion.valueOf(v1).compareTo(SemanticVersion.valueOf(v2));
       }
     };
   }
@@ -35,6 +35,11 @@ public class NuGetODataApplication extends AbstractODataApplication {
     myProducer = producer;
   }
 
+  @Override
+  public Set<Class<?>> getClasses() {
+    return PackagesRequestResource.replaceResources(super.getClasses());
+  }
+
   @Override
   public Set<Object> getSingletons() {
     final Set<Object> set = new HashSet<Object>(super.getSingletons());
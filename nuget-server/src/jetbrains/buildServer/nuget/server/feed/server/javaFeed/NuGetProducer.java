@@ -21,24 +21,45 @@ import jetbrains.buildServer.dataStructures.Mapper;
 import jetbrains.buildServer.nuget.server.feed.server.NuGetServerSettings;
 import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
 import jetbrains.buildServer.nuget.server.feed.server.index.PackagesIndex;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.PackagesFilterCompiler.PackagePredicate;
 import jetbrains.buildServer.nuget.server.feed.server.javaFeed.entity.PackageEntity;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.format.PackagesAtomFeedWriter;
 import org.core4j.Func;
 import org.jetbrains.annotations.NotNull;
-import org.odata4j.producer.ODataProducer;
+import org.jetbrains.annotations.Nullable;
+import org.odata4j.core.OEntities;
+import org.odata4j.core.OEntity;
+import org.odata4j.core.OEntityKey;
+import org.odata4j.core.OLink;
+import org.odata4j.core.OProperty;
+import org.odata4j.edm.*;
+import org.odata4j.expression.BoolCommonExpression;
+import org.odata4j.expression.EntitySimpleProperty;
+import org.odata4j.producer.*;
+import org.odata4j.producer.inmemory.InMemoryEdmGenerator;
+import org.odata4j.producer.inmemory.InMemoryEntityInfo;
 import org.odata4j.producer.inmemory.InMemoryProducer;
+import org.odata4j.producer.inmemory.InMemoryTypeMapping;
 import org.odata4j.stax2.XMLFactoryProvider2;
 import org.odata4j.stax2.xppimpl.XmlPullXMLFactoryProvider2;
 
-import java.util.Iterator;
+import java.util.*;
 
 /**
  * Created by Eugene Petrenko (eugene.petrenko@gmail.com)
  * Date: 30.12.11 19:09
  */
 public class NuGetProducer {
+  private static final String PACKAGES_ENTITY_SET = "Packages";
+  private static final String PACKAGE_ENTITY_TYPE = "V2FeedPackage";
+
   private final InMemoryProducer myProducer;
   private final PackagesIndex myIndex;
   private final NuGetServerSettings mySettings;
+  /**
+   * Part of packages the current request is restricted to, see {@link PackagesFilter}
+   */
+  private final ThreadLocal<PackagesQuery> myQuery = new ThreadLocal<PackagesQuery>();
 
   public NuGetProducer(@NotNull final PackagesIndex index,
                        @NotNull final NuGetServerSettings settings) {
@@ -50,16 +71,22 @@ public class NuGetProducer {
     //.NET OData WCF client
     XMLFactoryProvider2.setInstance(new XmlPullXMLFactoryProvider2());
 
-    myProducer = new InMemoryProducer("NuGetGallery");
+    myProducer = new PackagesProducer();
     myProducer.register(
             PackageEntity.class,
-            "Packages",
-            "V2FeedPackage",
+            PACKAGES_ENTITY_SET,
+            PACKAGE_ENTITY_TYPE,
             new Func<Iterable<PackageEntity>>() {
               public Iterable<PackageEntity> apply() {
+                final PackagesQuery query = myQuery.get();
                 return new Iterable<PackageEntity>() {
                   public Iterator<PackageEntity> iterator() {
-                    return new DecoratingIterator<PackageEntity, NuGetIndexEntry>(myIndex.getNuGetEntries(), new Mapper<NuGetIndexEntry, PackageEntity>() {
+                    final Iterator<NuGetIndexEntry> entries = filterEntries(getEntries(query), query);
+                    //skipped entries are not converted into entities
+                    for (int i = 0; query != null && i < query.mySkip && entries.hasNext(); i++) {
+                      entries.next();
+                    }
+                    return new DecoratingIterator<PackageEntity, NuGetIndexEntry>(entries, new Mapper<NuGetIndexEntry, PackageEntity>() {
                       public PackageEntity mapKey(@NotNull NuGetIndexEntry internal) {
                         return new PackageEntityEx(internal, settings);
                       }
@@ -76,4 +103,291 @@ public class NuGetProducer {
   public ODataProducer getProducer() {
     return myProducer;
   }
+
+  @NotNull
+  private Iterator<NuGetIndexEntry> getEntries(@Nullable final PackagesQuery query) {
+    if (query == null) return myIndex.getNuGetEntries();
+    if (query.myEntries != null) return query.myEntries.iterator();
+    if (query.myPackageId != null) return myIndex.getNuGetEntries(query.myPackageId);
+    if (query.mySearchTerms != null) return myIndex.searchNuGetEntries(query.mySearchTerms, query.myLatestOnly);
+    if (query.myLatestOnly) return myIndex.getLatestNuGetEntries();
+    return myIndex.getNuGetEntries();
+  }
+
+  @NotNull
+  private static Iterator<NuGetIndexEntry> filterEntries(@NotNull final Iterator<NuGetIndexEntry> entries,
+                                                         @Nullable final PackagesQuery query) {
+    final PackagePredicate filter = query == null ? null : query.myFilter;
+    if (filter == null) return entries;
+
+    return new DecoratingIterator<NuGetIndexEntry, NuGetIndexEntry>(entries, new Mapper<NuGetIndexEntry, NuGetIndexEntry>() {
+      @Nullable
+      public NuGetIndexEntry mapKey(@NotNull NuGetIndexEntry e) {
+        return filter.matches(e) ? e : null;
+      }
+    });
+  }
+
+  private static class PackagesQuery {
+    private final Collection<NuGetIndexEntry> myEntries;
+    private final String myPackageId;
+    private final boolean myLatestOnly;
+    private final Collection<String> mySearchTerms;
+    private final PackagePredicate myFilter;
+    private final int mySkip;
+
+    private PackagesQuery(@Nullable final Collection<NuGetIndexEntry> entries,
+                          @Nullable final String packageId,
+                          final boolean latestOnly,
+                          @Nullable final Collection<String> searchTerms,
+                          @Nullable final PackagePredicate filter,
+                          final int skip) {
+      myEntries = entries;
+      myPackageId = packageId;
+      myLatestOnly = latestOnly;
+      mySearchTerms = searchTerms;
+      myFilter = filter;
+      mySkip = skip;
+    }
+
+    @NotNull
+    private static PackagesQuery fromFilter(@Nullable final BoolCommonExpression filter,
+                                            @Nullable final PackagePredicate compiledFilter,
+                                            final int skip) {
+      return new PackagesQuery(
+              null,
+              PackagesFilter.getPackageId(filter),
+              PackagesFilter.isLatestVersionsOnly(filter),
+              PackagesFilter.getSearchTerms(filter),
+              compiledFilter,
+              skip);
+    }
+
+    @NotNull
+    private static PackagesQuery fromEntries(@NotNull final Collection<NuGetIndexEntry> entries,
+                                             @Nullable final PackagePredicate compiledFilter,
+                                             final int skip) {
+      return new PackagesQuery(entries, null, false, null, compiledFilter, skip);
+    }
+  }
+
+  @Nullable
+  private static BoolCommonExpression getFilter(@Nullable final QueryInfo queryInfo) {
+    return queryInfo == null ? null : queryInfo.filter;
+  }
+
+  @NotNull
+  private static Map<String, String> getCustomOptions(@Nullable final QueryInfo queryInfo) {
+    if (queryInfo == null || queryInfo.customOptions == null) return Collections.emptyMap();
+    return queryInfo.customOptions;
+  }
+
+  /**
+   * @return Packages query the FindPackagesById or Search service operation is translated to,
+   * see {@link PackagesServiceOperations}
+   */
+  @Nullable
+  private static QueryInfo getOperationQuery(@NotNull final String operation, @Nullable final QueryInfo queryInfo) {
+    final BoolCommonExpression filter = PackagesServiceOperations.getFilter(operation, getFilter(queryInfo), getCustomOptions(queryInfo));
+    if (queryInfo == null) {
+      return new QueryInfo(null, null, null, filter, null, null, null, null, null);
+    }
+    return new QueryInfo(queryInfo.inlineCount, queryInfo.top, queryInfo.skip, filter, queryInfo.orderBy,
+            queryInfo.skipToken, queryInfo.customOptions, queryInfo.expand, queryInfo.select);
+  }
+
+  /**
+   * @return query without the filter, it is evaluated by the compiled predicate instead
+   */
+  @Nullable
+  private static QueryInfo removeFilter(@Nullable final QueryInfo queryInfo, @Nullable final PackagePredicate compiledFilter) {
+    if (queryInfo == null || compiledFilter == null) return queryInfo;
+    return new QueryInfo(queryInfo.inlineCount, queryInfo.top, queryInfo.skip, null, queryInfo.orderBy,
+            queryInfo.skipToken, queryInfo.customOptions, queryInfo.expand, queryInfo.select);
+  }
+
+  /**
+   * @return query without <code>$orderby=Id</code> if the index already returns packages in that order,
+   * so that odata4j does not sort (and so materialize) all entities and stops after the requested page
+   */
+  @Nullable
+  private QueryInfo removeIndexOrdering(@Nullable final QueryInfo queryInfo) {
+    if (queryInfo == null || !PackagesFilter.isOrderedById(queryInfo.orderBy) || !myIndex.isSorted()) return queryInfo;
+    return new QueryInfo(queryInfo.inlineCount, queryInfo.top, queryInfo.skip, queryInfo.filter, null,
+            queryInfo.skipToken, queryInfo.customOptions, queryInfo.expand, queryInfo.select);
+  }
+
+  /**
+   * @return number of entries that could be skipped right in the index, it is only possible
+   * when the entries are neither filtered by odata4j, nor reordered, nor counted
+   */
+  private static int getIndexSkip(@Nullable final QueryInfo queryInfo) {
+    if (queryInfo == null || queryInfo.skip == null || queryInfo.skip <= 0) return 0;
+    if (queryInfo.filter != null || queryInfo.orderBy != null || queryInfo.skipToken != null) return 0;
+    if (queryInfo.inlineCount == InlineCount.ALLPAGES) return 0;
+    return queryInfo.skip;
+  }
+
+  /**
+   * Declares service operations in the feed metadata
+   */
+  @NotNull
+  private static EdmDataServices.Builder addServiceOperations(@NotNull final EdmDataServices.Builder services) {
+    for (EdmSchema.Builder schema : services.getSchemas()) {
+      EdmEntityType.Builder packageType = null;
+      for (EdmEntityType.Builder type : schema.getEntityTypes()) {
+        if (PACKAGE_ENTITY_TYPE.equals(type.getName())) packageType = type;
+      }
+      if (packageType == null) continue;
+
+      for (EdmEntityContainer.Builder container : schema.getEntityContainers()) {
+        for (EdmEntitySet.Builder entitySet : container.getEntitySets()) {
+          if (!PACKAGES_ENTITY_SET.equals(entitySet.getName())) continue;
+          container.addFunctionImports(PackagesServiceOperations.getFunctionImports(entitySet, packageType));
+        }
+      }
+    }
+    return services;
+  }
+
+  /**
+   * Passes the part of packages the request is restricted to down to the entities provider,
+   * so that only those packages are loaded from the index.
+   * Ordering and paging are done by the index where possible, so only the requested page is materialized.
+   * Common filters are compiled into predicates over index entries, see {@link PackagesFilterCompiler},
+   * other filters are evaluated by odata4j over entity beans.
+   *
+   * Service operations are served as queries over the Packages entity set, see {@link PackagesServiceOperations}.
+   */
+  private class PackagesProducer extends InMemoryProducer {
+    public PackagesProducer() {
+      super("NuGetGallery");
+    }
+
+    @Override
+    protected InMemoryEdmGenerator newEdmGenerator(String namespace, InMemoryTypeMapping typeMapping, String idPropName, Map<String, InMemoryEntityInfo<?>> eis) {
+      final InMemoryEdmGenerator generator = super.newEdmGenerator(namespace, typeMapping, idPropName, eis);
+      return new InMemoryEdmGenerator(namespace, null, typeMapping, idPropName, eis) {
+        @Override
+        public EdmDataServices.Builder generateEdm(EdmDecorator decorator) {
+          return addServiceOperations(generator.generateEdm(decorator));
+        }
+      };
+    }
+
+    @Override
+    public EntitiesResponse getEntities(String entitySetName, QueryInfo queryInfo) {
+      if (PackagesServiceOperations.GET_UPDATES.equals(entitySetName)) {
+        final List<NuGetIndexEntry> updates = PackagesServiceOperations.getUpdates(myIndex, getCustomOptions(queryInfo));
+        return getPackages(PACKAGES_ENTITY_SET, queryInfo, updates);
+      }
+      if (PackagesServiceOperations.isServiceOperation(entitySetName)) {
+        return getPackages(PACKAGES_ENTITY_SET, getOperationQuery(entitySetName, queryInfo), null);
+      }
+      return getPackages(entitySetName, queryInfo, null);
+    }
+
+    @Override
+    public CountResponse getEntitiesCount(String entitySetName, QueryInfo queryInfo) {
+      if (PackagesServiceOperations.GET_UPDATES.equals(entitySetName)) {
+        final List<NuGetIndexEntry> updates = PackagesServiceOperations.getUpdates(myIndex, getCustomOptions(queryInfo));
+        return getPackagesCount(PACKAGES_ENTITY_SET, queryInfo, updates);
+      }
+      if (PackagesServiceOperations.isServiceOperation(entitySetName)) {
+        return getPackagesCount(PACKAGES_ENTITY_SET, getOperationQuery(entitySetName, queryInfo), null);
+      }
+      return getPackagesCount(entitySetName, queryInfo, null);
+    }
+
+    /**
+     * @param entries packages to query or null to query the index
+     */
+    @NotNull
+    private EntitiesResponse getPackages(@NotNull final String entitySetName,
+                                         @Nullable final QueryInfo queryInfo,
+                                         @Nullable final Collection<NuGetIndexEntry> entries) {
+      final PackagePredicate compiledFilter = PackagesFilterCompiler.compile(getFilter(queryInfo));
+      QueryInfo query = removeFilter(queryInfo, compiledFilter);
+      if (entries == null) query = removeIndexOrdering(query);
+      final int skip = getIndexSkip(query);
+      if (skip > 0) {
+        query = new QueryInfo(query.inlineCount, query.top, null, query.filter, query.orderBy,
+                query.skipToken, query.customOptions, query.expand, query.select);
+      }
+
+      myQuery.set(entries != null
+              ? PackagesQuery.fromEntries(entries, compiledFilter, skip)
+              : PackagesQuery.fromFilter(getFilter(queryInfo), compiledFilter, skip));
+      try {
+        return super.getEntities(entitySetName, query);
+      } finally {
+        myQuery.remove();
+      }
+    }
+
+    @NotNull
+    private CountResponse getPackagesCount(@NotNull final String entitySetName,
+                                           @Nullable final QueryInfo queryInfo,
+                                           @Nullable final Collection<NuGetIndexEntry> entries) {
+      final PackagePredicate compiledFilter = PackagesFilterCompiler.compile(getFilter(queryInfo));
+      myQuery.set(entries != null
+              ? PackagesQuery.fromEntries(entries, compiledFilter, 0)
+              : PackagesQuery.fromFilter(getFilter(queryInfo), compiledFilter, 0));
+      try {
+        return super.getEntitiesCount(entitySetName, removeFilter(queryInfo, compiledFilter));
+      } finally {
+        myQuery.remove();
+      }
+    }
+
+    /**
+     * Entities are created for every package that passes the query, even skipped or only counted ones,
+     * so properties are collected only when some writer asks for them.
+     * Feeds of packages are written right from the package beans, see {@link PackagesAtomFeedWriter}
+     */
+    @Override
+    protected OEntity toOEntity(final EdmEntitySet ees, final Object obj, final List<EntitySimpleProperty> expand) {
+      if (!(obj instanceof PackageEntity) || expand != null && !expand.isEmpty()) {
+        return super.toOEntity(ees, obj, expand);
+      }
+
+      final PackageEntity entity = (PackageEntity) obj;
+      final Map<String, Object> key = new HashMap<String, Object>();
+      key.put("Id", entity.getId());
+      key.put("Version", entity.getVersion());
+
+      final List<OProperty<?>> properties = new AbstractList<OProperty<?>>() {
+        private List<OProperty<?>> myProperties;
+
+        @Override
+        public OProperty<?> get(int index) {
+          return getProperties().get(index);
+        }
+
+        @Override
+        public int size() {
+          return getProperties().size();
+        }
+
+        @NotNull
+        private List<OProperty<?>> getProperties() {
+          if (myProperties == null) {
+            myProperties = PackagesProducer.super.toOEntity(ees, obj, null).getProperties();
+          }
+          return myProperties;
+        }
+      };
+      return OEntities.create(ees, OEntityKey.create(key), properties, Collections.<OLink>emptyList(), obj);
+    }
+
+    @Override
+    public EntityResponse getEntity(String entitySetName, OEntityKey entityKey, QueryInfo queryInfo) {
+      myQuery.set(new PackagesQuery(null, PackagesFilter.getPackageId(entityKey), false, null, null, 0));
+      try {
+        return super.getEntity(entitySetName, entityKey, queryInfo);
+      } finally {
+        myQuery.remove();
+      }
+    }
+  }
 }
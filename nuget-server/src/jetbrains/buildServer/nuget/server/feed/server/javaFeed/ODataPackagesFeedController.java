@@ -121,6 +121,13 @@ public class ODataPackagesFeedController implements NuGetFeedHandler {
       return;
     }
 
+    final boolean useCache = TeamCityProperties.getBoolean("teamcity.nuget.feed.use.cache");
+    //validators are reset with cached responses, so they follow the cache unless set explicitly
+    final String useValidators = TeamCityProperties.getPropertyOrNull("teamcity.nuget.feed.use.validators");
+    if ((useValidators == null ? useCache : Boolean.parseBoolean(useValidators)) && myCache.handleNotModified(request, response)) {
+      return;
+    }
+
     final ComputeAction action = new ComputeAction() {
       public void compute(@NotNull final HttpServletRequest request,
                           @NotNull final HttpServletResponse response) throws Exception {
@@ -128,7 +135,7 @@ public class ODataPackagesFeedController implements NuGetFeedHandler {
       }
     };
 
-    if (TeamCityProperties.getBoolean("teamcity.nuget.feed.use.cache")) {
+    if (useCache) {
       myCache.getOrCompute(request, response, action);
     } else {
       action.compute(request, response);
@@ -35,6 +35,11 @@ public class PackageEntityEx extends PackageEntityAdapter implements OAtomStream
     mySettings = settings;
   }
 
+  @NotNull
+  public NuGetIndexEntry getEntry() {
+    return myEntry;
+  }
+
   public String getAtomEntityType() {
     return "application/zip";
   }
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.javaFeed;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.odata4j.core.OEntityKey;
+import org.odata4j.core.OProperty;
+import org.odata4j.expression.*;
+
+import java.util.*;
+
+/**
+ * Detects queries that need only a part of the packages:
+ * <ul>
+ *   <li>one package Id, i.e. <code>Id eq 'Foo'</code> or <code>tolower(Id) eq 'foo'</code> filters
+ *   and <code>Packages(Id='Foo',Version='1.0')</code> keys</li>
+ *   <li>latest versions, i.e. <code>IsLatestVersion</code> or <code>IsAbsoluteLatestVersion</code> filters</li>
+ *   <li>search terms, i.e. <code>substringof('foo',tolower(Id)) or substringof('foo',tolower(Description))</code> filters</li>
+ * </ul>
+ * Conditions could be combined with other ones via <code>and</code>.
+ * Also detects <code>$orderby=Id</code> that matches the order of packages in the index.
+ *
+ * The result is only a hint used to narrow the set of packages,
+ * the query itself is still evaluated against the narrowed set.
+ */
+public class PackagesFilter {
+  private static final String ID_PROPERTY = "Id";
+  private static final String IS_LATEST_VERSION_PROPERTY = "IsLatestVersion";
+  private static final String IS_ABSOLUTE_LATEST_VERSION_PROPERTY = "IsAbsoluteLatestVersion";
+  private static final Set<String> TEXT_PROPERTIES = new HashSet<String>(Arrays.asList(ID_PROPERTY, "Title", "Description", "Summary", "Tags"));
+
+  @Nullable
+  public static String getPackageId(@Nullable final BoolCommonExpression filter) {
+    for (CommonExpression expr : getConditions(filter)) {
+      if (!(expr instanceof EqExpression)) continue;
+
+      final EqExpression eq = (EqExpression) expr;
+      if (isIdProperty(eq.getLHS()) && eq.getRHS() instanceof StringLiteral) {
+        return ((StringLiteral) eq.getRHS()).getValue();
+      }
+      if (isIdProperty(eq.getRHS()) && eq.getLHS() instanceof StringLiteral) {
+        return ((StringLiteral) eq.getLHS()).getValue();
+      }
+    }
+    return null;
+  }
+
+  @Nullable
+  public static String getPackageId(@Nullable final OEntityKey key) {
+    if (key == null || key.getKeyType() != OEntityKey.KeyType.COMPLEX) return null;
+    for (OProperty<?> property : key.asComplexProperties()) {
+      if (ID_PROPERTY.equals(property.getName()) && property.getValue() instanceof String) {
+        return (String) property.getValue();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return true if only packages with IsLatestVersion or IsAbsoluteLatestVersion set could match the filter
+   */
+  public static boolean isLatestVersionsOnly(@Nullable final BoolCommonExpression filter) {
+    for (CommonExpression expr : getConditions(filter)) {
+      if (isLatestProperty(expr)) return true;
+
+      if (expr instanceof EqExpression) {
+        final EqExpression eq = (EqExpression) expr;
+        if (isLatestProperty(eq.getLHS()) && isTrue(eq.getRHS())) return true;
+        if (isLatestProperty(eq.getRHS()) && isTrue(eq.getLHS())) return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return terms such that every package matching the filter contains at least one of them
+   * in Id, Title, Description or Tags, or null if there are no such terms
+   */
+  @Nullable
+  public static Collection<String> getSearchTerms(@Nullable final BoolCommonExpression filter) {
+    if (filter == null) return null;
+
+    if (filter instanceof BoolParenExpression) {
+      return getSearchTerms((BoolCommonExpression) ((BoolParenExpression) filter).getExpression());
+    }
+
+    if (filter instanceof AndExpression) {
+      //either side narrows the result
+      final Collection<String> lhs = getSearchTerms(((AndExpression) filter).getLHS());
+      return lhs != null ? lhs : getSearchTerms(((AndExpression) filter).getRHS());
+    }
+
+    if (filter instanceof OrExpression) {
+      //both sides must narrow the result
+      final Collection<String> lhs = getSearchTerms(((OrExpression) filter).getLHS());
+      if (lhs == null) return null;
+      final Collection<String> rhs = getSearchTerms(((OrExpression) filter).getRHS());
+      if (rhs == null) return null;
+
+      final Set<String> result = new LinkedHashSet<String>(lhs);
+      result.addAll(rhs);
+      return result;
+    }
+
+    if (filter instanceof BoolMethodExpression) {
+      final BoolMethodExpression method = (BoolMethodExpression) filter;
+      if (method.getTarget() != null && isTextProperty(method.getTarget()) && method.getValue() instanceof StringLiteral) {
+        return Collections.singletonList(((StringLiteral) method.getValue()).getValue());
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * @return true if the ordering is by package Id only, the same way the index sorts packages
+   */
+  public static boolean isOrderedById(@Nullable final List<OrderByExpression> orderBy) {
+    if (orderBy == null || orderBy.size() != 1) return false;
+    final OrderByExpression expr = orderBy.get(0);
+    return expr.getDirection() == OrderByExpression.Direction.ASCENDING && isProperty(expr.getExpression(), ID_PROPERTY);
+  }
+
+  /**
+   * @return conditions that all must be satisfied for the filter to match
+   */
+  @NotNull
+  private static List<CommonExpression> getConditions(@Nullable final CommonExpression filter) {
+    final List<CommonExpression> result = new ArrayList<CommonExpression>();
+    collectConditions(filter, result);
+    return result;
+  }
+
+  private static void collectConditions(@Nullable final CommonExpression expr, @NotNull final List<CommonExpression> result) {
+    if (expr == null) return;
+
+    if (expr instanceof ParenExpression) {
+      collectConditions(((ParenExpression) expr).getExpression(), result);
+    } else if (expr instanceof BoolParenExpression) {
+      collectConditions(((BoolParenExpression) expr).getExpression(), result);
+    } else if (expr instanceof AndExpression) {
+      collectConditions(((AndExpression) expr).getLHS(), result);
+      collectConditions(((AndExpression) expr).getRHS(), result);
+    } else {
+      result.add(expr);
+    }
+  }
+
+  private static boolean isIdProperty(@NotNull final CommonExpression expr) {
+    if (expr instanceof ToLowerMethodCallExpression) {
+      return isIdProperty(((ToLowerMethodCallExpression) expr).getTarget());
+    }
+    if (expr instanceof ToUpperMethodCallExpression) {
+      return isIdProperty(((ToUpperMethodCallExpression) expr).getTarget());
+    }
+    return isProperty(expr, ID_PROPERTY);
+  }
+
+  private static boolean isTextProperty(@NotNull final CommonExpression expr) {
+    if (expr instanceof ToLowerMethodCallExpression) {
+      return isTextProperty(((ToLowerMethodCallExpression) expr).getTarget());
+    }
+    return expr instanceof EntitySimpleProperty && TEXT_PROPERTIES.contains(((EntitySimpleProperty) expr).getPropertyName());
+  }
+
+  private static boolean isLatestProperty(@NotNull final CommonExpression expr) {
+    return isProperty(expr, IS_LATEST_VERSION_PROPERTY) || isProperty(expr, IS_ABSOLUTE_LATEST_VERSION_PROPERTY);
+  }
+
+  private static boolean isProperty(@NotNull final CommonExpression expr, @NotNull final String name) {
+    return expr instanceof EntitySimpleProperty && name.equals(((EntitySimpleProperty) expr).getPropertyName());
+  }
+
+  private static boolean isTrue(@NotNull final CommonExpression expr) {
+    return expr instanceof BooleanLiteral && ((BooleanLiteral) expr).getValue();
+  }
+}
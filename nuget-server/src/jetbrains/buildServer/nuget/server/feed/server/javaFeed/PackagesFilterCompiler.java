@@ -0,0 +1,309 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.javaFeed;
+
+import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.odata4j.expression.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compiles common <code>$filter</code> expressions of NuGet clients into predicates
+ * evaluated right over index entry attributes, i.e.
+ * <ul>
+ *   <li><code>Id eq 'Foo'</code>, <code>tolower(Id) eq 'foo'</code></li>
+ *   <li><code>substringof('foo',tolower(Description))</code>, <code>startswith(Id,'Foo')</code></li>
+ *   <li><code>IsLatestVersion</code>, <code>IsAbsoluteLatestVersion eq true</code></li>
+ *   <li><code>and</code>, <code>or</code>, <code>not</code> of the above</li>
+ * </ul>
+ * Predicates give the same results as odata4j evaluation over {@link PackageEntityEx} properties,
+ * i.e. missing string attributes are empty strings and Title falls back to Id.
+ *
+ * Expressions that are not known are not compiled, such filters are evaluated by odata4j.
+ */
+public class PackagesFilterCompiler {
+  private static final String ID_PROPERTY = "Id";
+  private static final String TITLE_PROPERTY = "Title";
+  private static final String SUMMARY_PROPERTY = "Summary";
+  private static final String DESCRIPTION_PROPERTY = "Description";
+
+  private static final Set<String> STRING_PROPERTIES = new HashSet<String>(Arrays.asList(
+          ID_PROPERTY,
+          NuGetIndexEntry.VERSION,
+          DESCRIPTION_PROPERTY,
+          "Tags",
+          "Authors"
+  ));
+
+  private static final Set<String> BOOLEAN_PROPERTIES = new HashSet<String>(Arrays.asList(
+          "IsLatestVersion",
+          "IsAbsoluteLatestVersion",
+          "IsPrerelease"
+  ));
+
+  public interface PackagePredicate {
+    boolean matches(@NotNull NuGetIndexEntry entry);
+  }
+
+  private interface StringValue {
+    @Nullable
+    String getValue(@NotNull NuGetIndexEntry entry);
+  }
+
+  /**
+   * @return compiled filter or null if the filter contains unsupported expressions
+   */
+  @Nullable
+  public static PackagePredicate compile(@Nullable final BoolCommonExpression filter) {
+    if (filter == null) return null;
+    try {
+      return compileBool(filter);
+    } catch (UnsupportedExpressionException e) {
+      return null;
+    }
+  }
+
+  @NotNull
+  private static PackagePredicate compileBool(@NotNull final CommonExpression expr) throws UnsupportedExpressionException {
+    if (expr instanceof BoolParenExpression) {
+      return compileBool(((BoolParenExpression) expr).getExpression());
+    }
+    if (expr instanceof ParenExpression) {
+      return compileBool(((ParenExpression) expr).getExpression());
+    }
+
+    if (expr instanceof AndExpression) {
+      final PackagePredicate lhs = compileBool(((AndExpression) expr).getLHS());
+      final PackagePredicate rhs = compileBool(((AndExpression) expr).getRHS());
+      return new PackagePredicate() {
+        public boolean matches(@NotNull NuGetIndexEntry entry) {
+          return lhs.matches(entry) && rhs.matches(entry);
+        }
+      };
+    }
+
+    if (expr instanceof OrExpression) {
+      final PackagePredicate lhs = compileBool(((OrExpression) expr).getLHS());
+      final PackagePredicate rhs = compileBool(((OrExpression) expr).getRHS());
+      return new PackagePredicate() {
+        public boolean matches(@NotNull NuGetIndexEntry entry) {
+          return lhs.matches(entry) || rhs.matches(entry);
+        }
+      };
+    }
+
+    if (expr instanceof NotExpression) {
+      final PackagePredicate inner = compileBool(((NotExpression) expr).getExpression());
+      return new PackagePredicate() {
+        public boolean matches(@NotNull NuGetIndexEntry entry) {
+          return !inner.matches(entry);
+        }
+      };
+    }
+
+    if (expr instanceof BooleanLiteral) {
+      final boolean value = ((BooleanLiteral) expr).getValue();
+      return new PackagePredicate() {
+        public boolean matches(@NotNull NuGetIndexEntry entry) {
+          return value;
+        }
+      };
+    }
+
+    if (isBooleanProperty(expr)) {
+      return compileBooleanProperty(((EntitySimpleProperty) expr).getPropertyName());
+    }
+
+    if (expr instanceof EqExpression) {
+      return compileEquals((EqExpression) expr);
+    }
+
+    if (expr instanceof NeExpression) {
+      final PackagePredicate eq = compileEquals((NeExpression) expr);
+      return new PackagePredicate() {
+        public boolean matches(@NotNull NuGetIndexEntry entry) {
+          return !eq.matches(entry);
+        }
+      };
+    }
+
+    if (expr instanceof BoolMethodExpression) {
+      return compileMethod((BoolMethodExpression) expr);
+    }
+
+    throw new UnsupportedExpressionException();
+  }
+
+  @NotNull
+  private static PackagePredicate compileEquals(@NotNull final BinaryCommonExpression expr) throws UnsupportedExpressionException {
+    final CommonExpression lhs = expr.getLHS();
+    final CommonExpression rhs = expr.getRHS();
+
+    if (isBooleanProperty(lhs) && rhs instanceof BooleanLiteral) {
+      return compileBooleanEquals(((EntitySimpleProperty) lhs).getPropertyName(), ((BooleanLiteral) rhs).getValue());
+    }
+    if (isBooleanProperty(rhs) && lhs instanceof BooleanLiteral) {
+      return compileBooleanEquals(((EntitySimpleProperty) rhs).getPropertyName(), ((BooleanLiteral) lhs).getValue());
+    }
+
+    final StringValue left = compileString(lhs);
+    final StringValue right = compileString(rhs);
+    return new PackagePredicate() {
+      public boolean matches(@NotNull NuGetIndexEntry entry) {
+        final String l = left.getValue(entry);
+        final String r = right.getValue(entry);
+        return l == null ? r == null : l.equals(r);
+      }
+    };
+  }
+
+  @NotNull
+  private static PackagePredicate compileMethod(@NotNull final BoolMethodExpression expr) throws UnsupportedExpressionException {
+    if (expr.getTarget() == null || expr.getValue() == null) throw new UnsupportedExpressionException();
+
+    final StringValue target = compileString(expr.getTarget());
+    final StringValue value = compileString(expr.getValue());
+
+    if (expr instanceof SubstringOfMethodCallExpression) {
+      return new PackagePredicate() {
+        public boolean matches(@NotNull NuGetIndexEntry entry) {
+          final String t = target.getValue(entry);
+          final String v = value.getValue(entry);
+          return t != null && v != null && t.contains(v);
+        }
+      };
+    }
+    if (expr instanceof StartsWithMethodCallExpression) {
+      return new PackagePredicate() {
+        public boolean matches(@NotNull NuGetIndexEntry entry) {
+          final String t = target.getValue(entry);
+          final String v = value.getValue(entry);
+          return t != null && v != null && t.startsWith(v);
+        }
+      };
+    }
+    if (expr instanceof EndsWithMethodCallExpression) {
+      return new PackagePredicate() {
+        public boolean matches(@NotNull NuGetIndexEntry entry) {
+          final String t = target.getValue(entry);
+          final String v = value.getValue(entry);
+          return t != null && v != null && t.endsWith(v);
+        }
+      };
+    }
+
+    throw new UnsupportedExpressionException();
+  }
+
+  @NotNull
+  private static StringValue compileString(@NotNull final CommonExpression expr) throws UnsupportedExpressionException {
+    if (expr instanceof ParenExpression) {
+      return compileString(((ParenExpression) expr).getExpression());
+    }
+
+    if (expr instanceof StringLiteral) {
+      final String value = ((StringLiteral) expr).getValue();
+      return new StringValue() {
+        public String getValue(@NotNull NuGetIndexEntry entry) {
+          return value;
+        }
+      };
+    }
+
+    if (expr instanceof NullLiteral) {
+      return new StringValue() {
+        public String getValue(@NotNull NuGetIndexEntry entry) {
+          return null;
+        }
+      };
+    }
+
+    if (expr instanceof ToLowerMethodCallExpression) {
+      final StringValue target = compileString(((ToLowerMethodCallExpression) expr).getTarget());
+      return new StringValue() {
+        public String getValue(@NotNull NuGetIndexEntry entry) {
+          final String value = target.getValue(entry);
+          return value == null ? null : value.toLowerCase();
+        }
+      };
+    }
+
+    if (expr instanceof ToUpperMethodCallExpression) {
+      final StringValue target = compileString(((ToUpperMethodCallExpression) expr).getTarget());
+      return new StringValue() {
+        public String getValue(@NotNull NuGetIndexEntry entry) {
+          final String value = target.getValue(entry);
+          return value == null ? null : value.toUpperCase();
+        }
+      };
+    }
+
+    if (expr instanceof EntitySimpleProperty) {
+      final String name = ((EntitySimpleProperty) expr).getPropertyName();
+      if (TITLE_PROPERTY.equals(name)) {
+        return new StringValue() {
+          public String getValue(@NotNull NuGetIndexEntry entry) {
+            final String title = entry.getAttributes().get(TITLE_PROPERTY);
+            return title != null ? title : getStringAttribute(entry, ID_PROPERTY);
+          }
+        };
+      }
+
+      final String attribute = SUMMARY_PROPERTY.equals(name) ? DESCRIPTION_PROPERTY : name;
+      if (STRING_PROPERTIES.contains(attribute)) {
+        return new StringValue() {
+          public String getValue(@NotNull NuGetIndexEntry entry) {
+            return getStringAttribute(entry, attribute);
+          }
+        };
+      }
+    }
+
+    throw new UnsupportedExpressionException();
+  }
+
+  @NotNull
+  private static PackagePredicate compileBooleanProperty(@NotNull final String name) {
+    return compileBooleanEquals(name, true);
+  }
+
+  @NotNull
+  private static PackagePredicate compileBooleanEquals(@NotNull final String name, final boolean expected) {
+    return new PackagePredicate() {
+      public boolean matches(@NotNull NuGetIndexEntry entry) {
+        return Boolean.parseBoolean(entry.getAttributes().get(name)) == expected;
+      }
+    };
+  }
+
+  private static boolean isBooleanProperty(@NotNull final CommonExpression expr) {
+    return expr instanceof EntitySimpleProperty && BOOLEAN_PROPERTIES.contains(((EntitySimpleProperty) expr).getPropertyName());
+  }
+
+  @NotNull
+  private static String getStringAttribute(@NotNull final NuGetIndexEntry entry, @NotNull final String name) {
+    final String value = entry.getAttributes().get(name);
+    return value == null ? "" : value;
+  }
+
+  private static class UnsupportedExpressionException extends Exception {
+  }
+}
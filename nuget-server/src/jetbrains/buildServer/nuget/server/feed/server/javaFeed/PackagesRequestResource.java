@@ -0,0 +1,173 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.javaFeed;
+
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache.ResponsePackageIds;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.format.PackagesAtomFeedWriter;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.format.PackagesJsonFeedWriter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.odata4j.core.ODataConstants;
+import org.odata4j.core.ODataVersion;
+import org.odata4j.format.FormatWriter;
+import org.odata4j.format.FormatWriterFactory;
+import org.odata4j.format.json.JsonFeedFormatWriter;
+import org.odata4j.format.xml.AtomFeedFormatWriter;
+import org.odata4j.producer.CountResponse;
+import org.odata4j.producer.EntitiesResponse;
+import org.odata4j.producer.ODataProducer;
+import org.odata4j.producer.QueryInfo;
+import org.odata4j.producer.resources.EntitiesRequestResource;
+import org.odata4j.producer.resources.OptionsQueryParser;
+
+import javax.ws.rs.Path;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Entity sets resource that also serves NuGet service operations as feeds of packages,
+ * see {@link PackagesServiceOperations}.
+ *
+ * odata4j passes all declared function imports to its function resource that is not able
+ * to write feeds of entities, so operations are queried from the producer as entity sets here.
+ *
+ * Atom and JSON (<code>$format=json</code> or <code>Accept: application/json</code>) feeds of packages
+ * are streamed to the response with {@link PackagesAtomFeedWriter} and {@link PackagesJsonFeedWriter}.
+ *
+ * Requests restricted to some package Ids report them to the response cache, see {@link ResponsePackageIds}.
+ */
+@Path("{entitySetName}{optionalParens: ((\\(\\))?)}")
+public class PackagesRequestResource extends EntitiesRequestResource {
+
+  /**
+   * @return application resources with the default entity sets resource replaced by this one
+   */
+  @NotNull
+  public static Set<Class<?>> replaceResources(@NotNull final Set<Class<?>> classes) {
+    classes.remove(EntitiesRequestResource.class);
+    classes.add(PackagesRequestResource.class);
+    return classes;
+  }
+
+  @Override
+  protected Response getEntitiesImpl(HttpHeaders httpHeaders,
+                                     final UriInfo uriInfo,
+                                     ODataProducer producer,
+                                     String entitySetName,
+                                     boolean isCount,
+                                     String inlineCount,
+                                     String top,
+                                     String skip,
+                                     String filter,
+                                     String orderBy,
+                                     String format,
+                                     String callback,
+                                     String skipToken,
+                                     String expand,
+                                     String select) throws Exception {
+    if (!PackagesServiceOperations.isServiceOperation(entitySetName) && producer.getMetadata().findEdmFunctionImport(entitySetName) != null) {
+      return super.getEntitiesImpl(httpHeaders, uriInfo, producer, entitySetName, isCount, inlineCount, top, skip,
+              filter, orderBy, format, callback, skipToken, expand, select);
+    }
+
+    final QueryInfo query = new QueryInfo(
+            OptionsQueryParser.parseInlineCount(inlineCount),
+            OptionsQueryParser.parseTop(top),
+            OptionsQueryParser.parseSkip(skip),
+            OptionsQueryParser.parseFilter(filter),
+            OptionsQueryParser.parseOrderBy(orderBy),
+            OptionsQueryParser.parseSkipToken(skipToken),
+            OptionsQueryParser.parseCustomOptions(uriInfo),
+            OptionsQueryParser.parseExpand(expand),
+            OptionsQueryParser.parseSelect(select));
+
+    final Collection<String> packageIds = PackagesServiceOperations.getPackageIds(entitySetName, query.filter,
+            query.customOptions == null ? Collections.<String, String>emptyMap() : query.customOptions);
+    if (packageIds != null) {
+      ResponsePackageIds.set(packageIds);
+    }
+
+    if (isCount) {
+      final CountResponse count = producer.getEntitiesCount(entitySetName, query);
+      return Response
+              .ok(Long.toString(count.getCount()), ODataConstants.TEXT_PLAIN_CHARSET_UTF8)
+              .header(ODataConstants.Headers.DATA_SERVICE_VERSION, ODataVersion.V2.asString)
+              .build();
+    }
+
+    final EntitiesResponse entities = producer.getEntities(entitySetName, query);
+    final FormatWriter<EntitiesResponse> writer = FormatWriterFactory.getFormatWriter(
+            EntitiesResponse.class,
+            httpHeaders.getAcceptableMediaTypes(),
+            format,
+            callback);
+
+    final StreamingOutput packagesOutput = getPackagesOutput(uriInfo, writer, entities, callback);
+    if (packagesOutput != null) {
+      return Response
+              .ok(packagesOutput, writer.getContentType())
+              .header(ODataConstants.Headers.DATA_SERVICE_VERSION, ODataVersion.V2.asString)
+              .build();
+    }
+
+    final StringWriter sw = new StringWriter();
+    writer.write(uriInfo, sw, entities);
+    return Response
+            .ok(sw.toString(), writer.getContentType())
+            .header(ODataConstants.Headers.DATA_SERVICE_VERSION, ODataVersion.V2.asString)
+            .build();
+  }
+
+  /**
+   * @return output that streams feed of packages in the format of the given writer or null if it is not supported
+   */
+  @Nullable
+  private static StreamingOutput getPackagesOutput(@NotNull final UriInfo uriInfo,
+                                                   @NotNull final FormatWriter<EntitiesResponse> writer,
+                                                   @NotNull final EntitiesResponse entities,
+                                                   @Nullable final String callback) {
+    if (writer instanceof AtomFeedFormatWriter) {
+      final PackagesAtomFeedWriter atomWriter = PackagesAtomFeedWriter.getInstance(entities);
+      if (atomWriter == null) return null;
+      return new StreamingOutput() {
+        public void write(OutputStream output) throws IOException {
+          atomWriter.write(uriInfo, output, entities);
+        }
+      };
+    }
+
+    if (writer instanceof JsonFeedFormatWriter) {
+      final PackagesJsonFeedWriter jsonWriter = PackagesJsonFeedWriter.getInstance(entities);
+      if (jsonWriter == null) return null;
+      return new StreamingOutput() {
+        public void write(OutputStream output) throws IOException {
+          jsonWriter.write(uriInfo, output, entities, callback);
+        }
+      };
+    }
+
+    return null;
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.javaFeed;
+
+import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
+import jetbrains.buildServer.nuget.server.feed.server.index.PackagesIndex;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.NuGetPackageBuilder;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.SemanticVersion;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.odata4j.edm.*;
+import org.odata4j.expression.BoolCommonExpression;
+import org.odata4j.expression.Expression;
+import org.odata4j.producer.exceptions.BadRequestException;
+
+import java.util.*;
+
+/**
+ * NuGet v2 feed service operations over the Packages entity set:
+ * <ul>
+ *   <li><code>FindPackagesById()?id='Foo'</code> returns all versions of the package</li>
+ *   <li><code>Search()?searchTerm='foo bar'&amp;includePrerelease=false</code> returns packages
+ *   containing any of the terms in Id, Title, Description or Tags</li>
+ *   <li><code>GetUpdates()?packageIds='Foo|Bar'&amp;versions='1.0|2.0'&amp;includePrerelease=false&amp;includeAllVersions=false</code>
+ *   returns newer versions of the given packages</li>
+ * </ul>
+ * FindPackagesById and Search are translated into Packages filters, so they are served
+ * by the Id lookup and the text index, see {@link PackagesFilter}.
+ * GetUpdates looks up every given package Id in the index.
+ * Query options, i.e. <code>$filter</code>, <code>$orderby</code> or <code>$top</code>, are applied to the result.
+ */
+public class PackagesServiceOperations {
+  public static final String FIND_PACKAGES_BY_ID = "FindPackagesById";
+  public static final String SEARCH = "Search";
+  public static final String GET_UPDATES = "GetUpdates";
+
+  private static final String[] SEARCH_PROPERTIES = {"Id", "Title", "Description", "Tags"};
+  private static final String SEPARATOR = "|";
+
+  public static boolean isServiceOperation(@Nullable final String name) {
+    return FIND_PACKAGES_BY_ID.equals(name) || SEARCH.equals(name) || GET_UPDATES.equals(name);
+  }
+
+  /**
+   * @return declarations of the operations for the feed metadata, NuGet clients use the operations only if they are declared
+   */
+  @NotNull
+  public static List<EdmFunctionImport.Builder> getFunctionImports(@NotNull final EdmEntitySet.Builder packages,
+                                                                   @NotNull final EdmEntityType.Builder packageType) {
+    final EdmCollectionType.Builder returnType = EdmCollectionType.newBuilder()
+            .setKind(EdmProperty.CollectionKind.Collection)
+            .setCollectionType(packageType);
+
+    return Arrays.asList(
+            newFunctionImport(FIND_PACKAGES_BY_ID, packages, returnType)
+                    .addParameters(stringParameter("id")),
+            newFunctionImport(SEARCH, packages, returnType)
+                    .addParameters(
+                            stringParameter("searchTerm"),
+                            stringParameter("targetFramework"),
+                            booleanParameter("includePrerelease")),
+            newFunctionImport(GET_UPDATES, packages, returnType)
+                    .addParameters(
+                            stringParameter("packageIds"),
+                            stringParameter("versions"),
+                            booleanParameter("includePrerelease"),
+                            booleanParameter("includeAllVersions"),
+                            stringParameter("targetFrameworks"),
+                            stringParameter("versionConstraints"))
+    );
+  }
+
+  /**
+   * @param operation FindPackagesById or Search
+   * @param filter <code>$filter</code> of the request
+   * @param options operation parameters
+   * @return Packages filter the operation is translated to, combined with the given filter
+   */
+  @Nullable
+  public static BoolCommonExpression getFilter(@NotNull final String operation,
+                                               @Nullable final BoolCommonExpression filter,
+                                               @NotNull final Map<String, String> options) {
+    BoolCommonExpression result = null;
+    if (FIND_PACKAGES_BY_ID.equals(operation)) {
+      final String id = getString(options, "id");
+      if (id == null) throw new BadRequestException("Parameter 'id' is not specified");
+      result = Expression.eq(Expression.toLower(Expression.simpleProperty("Id")), Expression.string(id.toLowerCase(Locale.ENGLISH)));
+    }
+
+    if (SEARCH.equals(operation)) {
+      final String searchTerm = getString(options, "searchTerm");
+      if (searchTerm != null) {
+        for (String term : searchTerm.trim().toLowerCase(Locale.ENGLISH).split("\\s+")) {
+          if (term.length() == 0) continue;
+          for (String property : SEARCH_PROPERTIES) {
+            result = or(result, Expression.substringOf(Expression.string(term), Expression.toLower(Expression.simpleProperty(property))));
+          }
+        }
+      }
+      if (!getBoolean(options, "includePrerelease")) {
+        result = and(result, Expression.eq(Expression.simpleProperty("IsPrerelease"), Expression.boolean_(false)));
+      }
+    }
+
+    return and(result == null ? null : Expression.boolParen(result), filter);
+  }
+
+  /**
+   * @param entitySetName Packages or a service operation
+   * @param filter <code>$filter</code> of the request
+   * @param options operation parameters
+   * @return Ids of the only packages the result of the query depends on or null if it could depend on any package
+   */
+  @Nullable
+  public static Collection<String> getPackageIds(@NotNull final String entitySetName,
+                                                 @Nullable final BoolCommonExpression filter,
+                                                 @NotNull final Map<String, String> options) {
+    if (GET_UPDATES.equals(entitySetName)) {
+      return Arrays.asList(split(getString(options, "packageIds")));
+    }
+
+    final BoolCommonExpression packagesFilter = isServiceOperation(entitySetName) ? getFilter(entitySetName, filter, options) : filter;
+    final String id = PackagesFilter.getPackageId(packagesFilter);
+    return id == null ? null : Collections.singleton(id);
+  }
+
+  /**
+   * @param options GetUpdates operation parameters
+   * @return newer versions of the given packages in the order of the given Ids
+   */
+  @NotNull
+  public static List<NuGetIndexEntry> getUpdates(@NotNull final PackagesIndex index,
+                                                 @NotNull final Map<String, String> options) {
+    final String[] ids = split(getString(options, "packageIds"));
+    final String[] versions = split(getString(options, "versions"));
+    final String[] constraints = split(getString(options, "versionConstraints"));
+    final boolean includePrerelease = getBoolean(options, "includePrerelease");
+    final boolean includeAllVersions = getBoolean(options, "includeAllVersions");
+
+    if (ids.length != versions.length) {
+      throw new BadRequestException("Parameters 'packageIds' and 'versions' must contain the same number of values");
+    }
+    if (constraints.length > 0 && constraints.length != ids.length) {
+      throw new BadRequestException("Parameters 'packageIds' and 'versionConstraints' must contain the same number of values");
+    }
+
+    final List<NuGetIndexEntry> result = new ArrayList<NuGetIndexEntry>();
+    final Set<String> processedIds = new HashSet<String>();
+    for (int i = 0; i < ids.length; i++) {
+      if (!processedIds.add(ids[i].toLowerCase(Locale.ENGLISH))) continue;
+
+      final SemanticVersion current = SemanticVersion.valueOf(versions[i]);
+      final VersionRange range = constraints.length > 0 ? VersionRange.parse(constraints[i]) : null;
+
+      NuGetIndexEntry latest = null;
+      SemanticVersion latestVersion = null;
+      final Iterator<NuGetIndexEntry> it = index.getNuGetEntries(ids[i]);
+      while (it.hasNext()) {
+        final NuGetIndexEntry entry = it.next();
+        final String version = entry.getAttributes().get(NuGetIndexEntry.VERSION);
+        if (version == null) continue;
+
+        final SemanticVersion entryVersion = SemanticVersion.valueOf(version);
+        if (entryVersion.compareTo(current) <= 0) continue;
+        //same as Search and the feed, i.e. versions with build metadata are prereleases too
+        if (!includePrerelease && Boolean.valueOf(entry.getAttributes().get(NuGetPackageBuilder.IS_PRERELEASE))) continue;
+        if (range != null && !range.contains(entryVersion)) continue;
+
+        if (includeAllVersions) {
+          result.add(entry);
+        } else if (latestVersion == null || entryVersion.compareTo(latestVersion) > 0) {
+          latest = entry;
+          latestVersion = entryVersion;
+        }
+      }
+      if (latest != null) result.add(latest);
+    }
+    return result;
+  }
+
+  @NotNull
+  private static EdmFunctionImport.Builder newFunctionImport(@NotNull final String name,
+                                                             @NotNull final EdmEntitySet.Builder packages,
+                                                             @NotNull final EdmCollectionType.Builder returnType) {
+    return EdmFunctionImport.newBuilder()
+            .setName(name)
+            .setEntitySet(packages)
+            .setReturnType(returnType)
+            .setHttpMethod("GET");
+  }
+
+  @NotNull
+  private static EdmFunctionParameter.Builder stringParameter(@NotNull final String name) {
+    return EdmFunctionParameter.newBuilder().input(name, EdmSimpleType.STRING);
+  }
+
+  @NotNull
+  private static EdmFunctionParameter.Builder booleanParameter(@NotNull final String name) {
+    return EdmFunctionParameter.newBuilder().input(name, EdmSimpleType.BOOLEAN);
+  }
+
+  @Nullable
+  private static BoolCommonExpression and(@Nullable final BoolCommonExpression lhs, @Nullable final BoolCommonExpression rhs) {
+    if (lhs == null) return rhs;
+    if (rhs == null) return lhs;
+    return Expression.and(lhs, rhs);
+  }
+
+  @NotNull
+  private static BoolCommonExpression or(@Nullable final BoolCommonExpression lhs, @NotNull final BoolCommonExpression rhs) {
+    return lhs == null ? rhs : Expression.or(lhs, rhs);
+  }
+
+  /**
+   * @return parameter value, string values are passed quoted, i.e. <code>id='Foo'</code>
+   */
+  @Nullable
+  private static String getString(@NotNull final Map<String, String> options, @NotNull final String name) {
+    final String value = options.get(name);
+    if (value == null) return null;
+    if (value.length() >= 2 && value.startsWith("'") && value.endsWith("'")) {
+      return value.substring(1, value.length() - 1).replace("''", "'");
+    }
+    return value;
+  }
+
+  private static boolean getBoolean(@NotNull final Map<String, String> options, @NotNull final String name) {
+    return Boolean.parseBoolean(getString(options, name));
+  }
+
+  @NotNull
+  private static String[] split(@Nullable final String value) {
+    if (value == null || value.trim().length() == 0) return new String[0];
+    final String[] result = value.split("\\" + SEPARATOR, -1);
+    for (int i = 0; i < result.length; i++) {
+      result[i] = result[i].trim();
+    }
+    return result;
+  }
+
+  /**
+   * NuGet version constraint, i.e. <code>1.0</code> (1.0 or newer), <code>[1.0]</code> or <code>[1.0,2.0)</code>
+   */
+  private static class VersionRange {
+    private final SemanticVersion myMin;
+    private final boolean myMinInclusive;
+    private final SemanticVersion myMax;
+    private final boolean myMaxInclusive;
+
+    private VersionRange(@Nullable final SemanticVersion min, final boolean minInclusive,
+                         @Nullable final SemanticVersion max, final boolean maxInclusive) {
+      myMin = min;
+      myMinInclusive = minInclusive;
+      myMax = max;
+      myMaxInclusive = maxInclusive;
+    }
+
+    @Nullable
+    private static VersionRange parse(@NotNull final String text) {
+      final String spec = text.trim();
+      if (spec.length() == 0) return null;
+
+      final char first = spec.charAt(0);
+      if (first != '[' && first != '(') {
+        return new VersionRange(SemanticVersion.valueOf(spec), true, null, false);
+      }
+
+      final char last = spec.charAt(spec.length() - 1);
+      if (spec.length() < 2 || (last != ']' && last != ')')) {
+        throw new BadRequestException("Incorrect version constraint: " + spec);
+      }
+
+      final String body = spec.substring(1, spec.length() - 1);
+      final int comma = body.indexOf(',');
+      if (comma < 0) {
+        final SemanticVersion exact = SemanticVersion.valueOf(body.trim());
+        return new VersionRange(exact, true, exact, true);
+      }
+
+      final String min = body.substring(0, comma).trim();
+      final String max = body.substring(comma + 1).trim();
+      return new VersionRange(
+              min.length() == 0 ? null : SemanticVersion.valueOf(min), first == '[',
+              max.length() == 0 ? null : SemanticVersion.valueOf(max), last == ']');
+    }
+
+    private boolean contains(@NotNull final SemanticVersion version) {
+      if (myMin != null) {
+        final int cmp = version.compareTo(myMin);
+        if (cmp < 0 || cmp == 0 && !myMinInclusive) return false;
+      }
+      if (myMax != null) {
+        final int cmp = version.compareTo(myMax);
+        if (cmp > 0 || cmp == 0 && !myMaxInclusive) return false;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache;
+
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.auth.AuthUtil;
+import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
+import jetbrains.buildServer.serverSide.auth.SecurityContext;
+import org.jetbrains.annotations.NotNull;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Computes the access scope of the current request, i.e. the hash of projects the caller can read.
+ *
+ * The feed only filters packages by project read access (see
+ * {@link jetbrains.buildServer.nuget.server.feed.server.index.impl.transform.AccessCheckTransformation}),
+ * so callers with the same scope receive the same responses and may share cached ones.
+ */
+public class ResponseAccessScope {
+  private static final String SCOPE_ATTRIBUTE = ResponseAccessScope.class.getName() + ".scope";
+
+  private final ProjectManager myProjects;
+  private final SecurityContext myContext;
+
+  public ResponseAccessScope(@NotNull final ProjectManager projects,
+                             @NotNull final SecurityContext context) {
+    myProjects = projects;
+    myContext = context;
+  }
+
+  /**
+   * @return access scope of the request, computed once per request
+   */
+  @NotNull
+  public String getScope(@NotNull final HttpServletRequest request) {
+    final Object cached = request.getAttribute(SCOPE_ATTRIBUTE);
+    if (cached instanceof String) return (String) cached;
+
+    final String scope = computeScope();
+    request.setAttribute(SCOPE_ATTRIBUTE, scope);
+    return scope;
+  }
+
+  @NotNull
+  private String computeScope() {
+    final AuthorityHolder holder = myContext.getAuthorityHolder();
+
+    final List<String> readable = new ArrayList<String>();
+    for (SProject project : myProjects.getProjects()) {
+      final String projectId = project.getProjectId();
+      if (AuthUtil.hasReadAccessTo(holder, projectId)) {
+        readable.add(projectId);
+      }
+    }
+    Collections.sort(readable);
+
+    final StringBuilder sb = new StringBuilder();
+    for (String projectId : readable) {
+      sb.append(projectId).append('\n');
+    }
+    return readable.size() + ":" + hash(sb.toString());
+  }
+
+  /**
+   * @return hex SHA-1 of the UTF-8 bytes of the text
+   */
+  @NotNull
+  static String hash(@NotNull final String text) {
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("utf-8"));
+      final StringBuilder sb = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not supported", e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 is not supported", e);
+    }
+  }
+}
@@ -17,20 +17,20 @@
 package jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache;
 
 import com.intellij.openapi.diagnostic.Logger;
-import com.intellij.util.containers.SoftValueHashMap;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
 import jetbrains.buildServer.serverSide.BuildServerListener;
-import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.web.impl.TeamCityInternalKeys;
-import jetbrains.buildServer.web.util.SessionUser;
 import jetbrains.buildServer.web.util.WebUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
 
 /**
  * Created by Eugene Petrenko (eugene.petrenko@gmail.com)
@@ -38,9 +38,25 @@ import java.util.Map;
  */
 public class ResponseCache implements ResponseCacheReset {
   private static final Logger LOG = Logger.getInstance(ResponseCache.class.getName());
-  private final Map<String, ResponseCacheEntry> myCache = new SoftValueHashMap<String, ResponseCacheEntry>();
+  private final long myTimeToLive = TeamCityProperties.getInteger("teamcity.nuget.feed.cache.ttl.seconds", 3600) * 1000L;
+  private final ResponseCacheStorage myCache = new ResponseCacheStorage(
+          TeamCityProperties.getInteger("teamcity.nuget.feed.cache.size.mb", 64) * 1024L * 1024L,
+          myTimeToLive);
+  private final ConcurrentMap<String, FutureTask<ResponseCacheEntry>> myComputations =
+          new ConcurrentHashMap<String, FutureTask<ResponseCacheEntry>>();
 
-  public ResponseCache(@NotNull EventDispatcher<BuildServerListener> dispatcher) {
+  private final ResponseAccessScope myScope;
+  private final ResponseDiskCache myDiskCache;
+  /**
+   * Validators of responses given before a restart are not trusted
+   */
+  private final String myInstance = Long.toString(System.currentTimeMillis(), 36);
+
+  public ResponseCache(@NotNull EventDispatcher<BuildServerListener> dispatcher,
+                       @NotNull ResponseAccessScope scope,
+                       @NotNull ResponseDiskCache diskCache) {
+    myScope = scope;
+    myDiskCache = diskCache;
     dispatcher.addListener(new BuildServerAdapter() {
       @Override
       public void cleanupFinished() {
@@ -51,9 +67,57 @@ public class ResponseCache implements ResponseCacheReset {
   }
 
   public void resetCache() {
-    synchronized (myCache) {
-      myCache.clear();
+    myCache.clear();
+    myDiskCache.clear();
+  }
+
+  public void resetPackage(@NotNull final String packageId) {
+    myCache.invalidate(packageId);
+    myDiskCache.invalidate(packageId);
+  }
+
+  /**
+   * Sets ETag validator of the response. The validator changes once any package changes,
+   * so it is checked before the feed response is computed or looked up.
+   * Unreported changes are covered by changing the validator every cache time to live.
+   * Last-Modified is not set as responses depend on the access scope and Accept header,
+   * which If-Modified-Since does not cover.
+   *
+   * @return true if the client has an up-to-date response, 304 was sent then
+   */
+  public boolean handleNotModified(@NotNull final HttpServletRequest request,
+                                   @NotNull final HttpServletResponse response) {
+    final long window = now() / Math.max(1000L, myTimeToLive);
+    final long generation = myCache.getGeneration();
+
+    final String accept = request.getHeader("Accept");
+    final String eTag = "W/\"" + ResponseAccessScope.hash(myInstance + " " + generation + " " + window + " " +
+            myScope.getScope(request) + " " + (accept != null ? accept : "")) + "\"";
+    response.setHeader("ETag", eTag);
+
+    final String ifNoneMatch = request.getHeader("If-None-Match");
+    final boolean notModified = ifNoneMatch != null && matchesETag(ifNoneMatch, eTag);
+
+    if (notModified) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+    return notModified;
+  }
+
+  private static boolean matchesETag(@NotNull final String ifNoneMatch, @NotNull final String eTag) {
+    final String opaqueTag = eTag.substring(2);
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.equals("*")) return true;
+      //weak comparison
+      if (tag.startsWith("W/")) tag = tag.substring(2);
+      if (tag.equals(opaqueTag)) return true;
     }
+    return false;
+  }
+
+  protected long now() {
+    return System.currentTimeMillis();
   }
 
   @NotNull
@@ -65,14 +129,15 @@ public class ResponseCache implements ResponseCacheReset {
     builder.append("@ '").append(WebUtil.getPathWithoutAuthenticationType(request));
     builder.append("?").append(WebUtil.createRequestParameters(request)).append("' ");
 
-    final SUser user = SessionUser.getUser(request);
-    if (user != null) {
-      final String username = user.getUsername();
-      builder.append(" as ").append(user.getId()).append(username != null ? username : "<null>");
-    } else {
-      builder.append("as no auth/user");
+    //feed format depends on Accept header, i.e. Atom or JSON
+    final String accept = request.getHeader("Accept");
+    if (!StringUtil.isEmpty(accept)) {
+      builder.append("Accept: ").append(accept).append(" ");
     }
 
+    //users who can read the same projects get the same packages
+    builder.append(" scope ").append(myScope.getScope(request)).append(" ");
+
     final String pageUrl = (String) request.getAttribute(TeamCityInternalKeys.PAGE_URL_KEY);
     if (!StringUtil.isEmpty(pageUrl)) {
       builder.append("URL: ").append(pageUrl);
@@ -84,28 +149,93 @@ public class ResponseCache implements ResponseCacheReset {
                            @NotNull final HttpServletResponse response,
                            @NotNull final ComputeAction action) throws Exception {
     final String key = key(request);
-    final ResponseCacheEntry cached;
-    synchronized (myCache) {
-      cached = myCache.get(key);
-    }
+    final ResponseCacheEntry cached = myCache.get(key);
     if (cached != null) {
       cached.handleRequest(request, response);
       return;
     }
 
-    LOG.debug("NuGet cache miss for: " + WebUtil.getRequestDump(request));
-    final ResponseWrapper wrapped = new ResponseWrapper(response);
+    //concurrent misses for the same key wait for the first one to compute the response
+    final FutureTask<ResponseCacheEntry> computation = new FutureTask<ResponseCacheEntry>(new Callable<ResponseCacheEntry>() {
+      public ResponseCacheEntry call() throws Exception {
+        final long generation = myCache.getGeneration();
+        final ResponseDiskCache.Response stored = myDiskCache.get(key);
+        if (stored != null) {
+          //the file could be read before a package change reached the disk cache
+          if (myCache.isUpToDate(stored.getGeneration(), stored.getPackageIds())) {
+            myCache.put(key, stored.getEntry(), stored.getGeneration(), stored.getPackageIds());
+            return stored.getEntry();
+          }
+          myDiskCache.remove(key);
+        }
+
+        LOG.debug("NuGet cache miss for: " + WebUtil.getRequestDump(request));
+        final ResponseWrapper wrapped = new ResponseWrapper(response);
 
-    action.compute(request, wrapped);
+        final Set<String> packageIds;
+        ResponsePackageIds.start();
+        try {
+          action.compute(request, wrapped);
+        } finally {
+          packageIds = ResponsePackageIds.finish();
+        }
 
-    final ResponseCacheEntry entry = wrapped.build();
-    synchronized (myCache) {
-      myCache.put(key, entry);
+        final ResponseCacheEntry entry = wrapped.build();
+        myCache.put(key, entry, generation, packageIds);
+        myDiskCache.put(key, entry, generation, packageIds);
+        //packages could change before the response was stored
+        if (!myCache.isUpToDate(generation, packageIds)) {
+          myDiskCache.remove(key);
+        }
+        return entry;
+      }
+    });
+
+    final FutureTask<ResponseCacheEntry> running = myComputations.putIfAbsent(key, computation);
+    if (running != null) {
+      final ResponseCacheEntry entry = waitFor(running);
+      if (entry != null) {
+        entry.handleRequest(request, response);
+      } else {
+        action.compute(request, response);
+      }
+      return;
     }
 
+    try {
+      computation.run();
+    } finally {
+      myComputations.remove(key, computation);
+    }
+
+    final ResponseCacheEntry entry;
+    try {
+      entry = computation.get();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof Exception) throw (Exception) cause;
+      throw e;
+    }
     entry.handleRequest(request, response);
   }
 
+  /**
+   * @return response computed by a concurrent request or null if the computation failed or took too long
+   */
+  @Nullable
+  private static ResponseCacheEntry waitFor(@NotNull final Future<ResponseCacheEntry> computation) throws InterruptedException {
+    final int timeout = TeamCityProperties.getInteger("teamcity.nuget.feed.cache.wait.seconds", 60);
+    try {
+      return computation.get(timeout, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      LOG.debug("NuGet cache: concurrent request failed, computing the response again. " + e.getCause());
+      return null;
+    } catch (TimeoutException e) {
+      LOG.debug("NuGet cache: concurrent request takes more than " + timeout + " seconds, computing the response again");
+      return null;
+    }
+  }
+
   public interface ComputeAction {
     void compute(@NotNull final HttpServletRequest request,
                  @NotNull final HttpServletResponse response) throws Exception;
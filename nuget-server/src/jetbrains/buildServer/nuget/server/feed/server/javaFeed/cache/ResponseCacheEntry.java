@@ -17,12 +17,18 @@
 package jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Created by Eugene Petrenko (eugene.petrenko@gmail.com)
@@ -41,15 +47,92 @@ public class ResponseCacheEntry {
     myStatus = status;
   }
 
+  @NotNull
+  Map<String, String> getHeaders() {
+    return myHeaders;
+  }
+
+  @NotNull
+  byte[] getGZippedContent() {
+    return myGZippedContent;
+  }
+
+  int getStatus() {
+    return myStatus;
+  }
+
+  /**
+   * @return approximate memory size of the entry in bytes
+   */
+  public long getSize() {
+    long size = myGZippedContent.length;
+    for (Map.Entry<String, String> e : myHeaders.entrySet()) {
+      size += (e.getKey().length() + e.getValue().length()) * 2;
+    }
+    return size;
+  }
+
   public void handleRequest(@NotNull final HttpServletRequest request,
                             @NotNull final HttpServletResponse response) throws Exception {
     for (Map.Entry<String, String> e : myHeaders.entrySet()) {
       response.setHeader(e.getKey(), e.getValue());
     }
-    response.setHeader("Content-Encoding", "gzip");
+    response.setHeader("Vary", "Accept-Encoding");
     response.setStatus(myStatus);
-    ServletOutputStream stream = response.getOutputStream();
-    stream.write(myGZippedContent);
+
+    final ServletOutputStream stream = response.getOutputStream();
+    if (acceptsGzip(request.getHeader("Accept-Encoding"))) {
+      response.setHeader("Content-Encoding", "gzip");
+      response.setContentLength(myGZippedContent.length);
+      stream.write(myGZippedContent);
+    } else {
+      writeDecompressed(stream);
+    }
     stream.flush();
   }
+
+  private void writeDecompressed(@NotNull final ServletOutputStream stream) throws IOException {
+    final InputStream content = new GZIPInputStream(new ByteArrayInputStream(myGZippedContent), 8192);
+    try {
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = content.read(buffer)) > 0) {
+        stream.write(buffer, 0, read);
+      }
+    } finally {
+      content.close();
+    }
+  }
+
+  /**
+   * @param acceptEncoding value of Accept-Encoding header
+   * @return true if the client accepts gzip content encoding
+   */
+  private static boolean acceptsGzip(@Nullable final String acceptEncoding) {
+    if (acceptEncoding == null) return false;
+
+    Boolean any = null;
+    for (String coding : acceptEncoding.split(",")) {
+      final String[] parts = coding.split(";");
+      final String name = parts[0].trim().toLowerCase(Locale.ENGLISH);
+      final boolean accepted = !isZeroQuality(parts);
+
+      if (name.equals("gzip") || name.equals("x-gzip")) return accepted;
+      if (name.equals("*")) any = accepted;
+    }
+    return any != null && any;
+  }
+
+  private static boolean isZeroQuality(@NotNull final String[] parameters) {
+    for (int i = 1; i < parameters.length; i++) {
+      final String parameter = parameters[i].trim();
+      if (!parameter.startsWith("q=")) continue;
+      try {
+        return Double.parseDouble(parameter.substring(2).trim()) <= 0;
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+    return false;
+  }
 }
@@ -16,10 +16,17 @@
 
 package jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache;
 
+import org.jetbrains.annotations.NotNull;
+
 /**
  * Created by Eugene Petrenko (eugene.petrenko@gmail.com)
  * Date: 23.04.13 9:34
  */
 public interface ResponseCacheReset {
   void resetCache();
+
+  /**
+   * Resets cached responses that depend on the package
+   */
+  void resetPackage(@NotNull String packageId);
 }
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent storage of cached responses bounded by the total size of responses.
+ *
+ * Lookups and inserts do not block each other. Once the size limit is exceeded,
+ * least recently used responses are evicted by the inserting thread until the cache
+ * is three quarters full. Responses expire after the given time to live.
+ *
+ * Changes of packages are counted by a generation counter. A response is stored with the generation
+ * it was computed at and, if the response only depends on some packages, with Ids of the packages.
+ * A response with Ids is invalid once any of the packages changes after its generation,
+ * a response without Ids is invalid once any package changes.
+ */
+public class ResponseCacheStorage {
+  private static final double EVICTION_RATIO = 0.75;
+
+  private final ConcurrentHashMap<String, Item> myItems = new ConcurrentHashMap<String, Item>();
+  private final AtomicLong mySize = new AtomicLong();
+  private final AtomicLong myAccessCounter = new AtomicLong();
+  private final Lock myEvictionLock = new ReentrantLock();
+  private final AtomicLong myGeneration = new AtomicLong();
+  private volatile long myResetGeneration;
+  /**
+   * Generation of the last change by lower-case package Id
+   */
+  private final ConcurrentHashMap<String, Long> myChangedPackages = new ConcurrentHashMap<String, Long>();
+  private final long myMaxSize;
+  private final long myTimeToLive;
+
+  /**
+   * @param maxSize maximum total size of responses in bytes
+   * @param timeToLive time to live of a response in milliseconds
+   */
+  public ResponseCacheStorage(final long maxSize, final long timeToLive) {
+    myMaxSize = maxSize;
+    myTimeToLive = timeToLive;
+  }
+
+  @Nullable
+  public ResponseCacheEntry get(@NotNull final String key) {
+    final Item item = myItems.get(key);
+    if (item == null) return null;
+
+    if (!isValid(item, now())) {
+      remove(key, item);
+      return null;
+    }
+
+    item.myLastAccess = myAccessCounter.incrementAndGet();
+    return item.myEntry;
+  }
+
+  public void put(@NotNull final String key, @NotNull final ResponseCacheEntry entry) {
+    put(key, entry, getGeneration(), null);
+  }
+
+  /**
+   * @param generation generation of packages the response was computed at, should be taken before the computation
+   * @param packageIds lower-case Ids of packages the response depends on or null if it depends on all packages
+   */
+  public void put(@NotNull final String key,
+                  @NotNull final ResponseCacheEntry entry,
+                  final long generation,
+                  @Nullable final Set<String> packageIds) {
+    final long size = key.length() * 2 + entry.getSize();
+    if (size > myMaxSize) return;
+
+    final Item item = new Item(entry, size, now(), myAccessCounter.incrementAndGet(), generation, packageIds);
+    final Item old = myItems.put(key, item);
+    mySize.addAndGet(old == null ? size : size - old.mySize);
+
+    if (mySize.get() > myMaxSize) {
+      evict();
+    }
+  }
+
+  public long getGeneration() {
+    return myGeneration.get();
+  }
+
+  /**
+   * Invalidates responses that depend on the package
+   */
+  public void invalidate(@NotNull final String packageId) {
+    myChangedPackages.put(ResponsePackageIds.normalize(packageId), myGeneration.incrementAndGet());
+  }
+
+  public void clear() {
+    final long generation = myGeneration.incrementAndGet();
+    myResetGeneration = generation;
+    for (Map.Entry<String, Item> e : myItems.entrySet()) {
+      remove(e.getKey(), e.getValue());
+    }
+    //older changes are covered by the reset generation
+    for (Map.Entry<String, Long> e : myChangedPackages.entrySet()) {
+      if (e.getValue() <= generation) myChangedPackages.remove(e.getKey(), e.getValue());
+    }
+  }
+
+  /**
+   * @return total size of cached responses in bytes
+   */
+  public long getSize() {
+    return mySize.get();
+  }
+
+  public int getCount() {
+    return myItems.size();
+  }
+
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * @param generation generation of packages the response was computed at
+   * @param packageIds lower-case Ids of packages the response depends on or null if it depends on all packages
+   * @return true if none of the packages the response depends on changed since the generation
+   */
+  public boolean isUpToDate(final long generation, @Nullable final Set<String> packageIds) {
+    if (generation < myResetGeneration) return false;
+    if (packageIds == null) return generation == myGeneration.get();
+
+    for (String id : packageIds) {
+      final Long changed = myChangedPackages.get(id);
+      if (changed != null && changed > generation) return false;
+    }
+    return true;
+  }
+
+  private boolean isValid(@NotNull final Item item, final long now) {
+    return now - item.myCreated < myTimeToLive && isUpToDate(item.myGeneration, item.myPackageIds);
+  }
+
+  private void remove(@NotNull final String key, @NotNull final Item item) {
+    if (myItems.remove(key, item)) {
+      mySize.addAndGet(-item.mySize);
+    }
+  }
+
+  private void evict() {
+    //one thread evicts at a time, others continue while the cache is slightly over the limit
+    if (!myEvictionLock.tryLock()) return;
+    try {
+      //access times are copied as they are updated concurrently
+      final List<Candidate> candidates = new ArrayList<Candidate>(myItems.size());
+      for (Map.Entry<String, Item> e : myItems.entrySet()) {
+        candidates.add(new Candidate(e.getKey(), e.getValue()));
+      }
+      Collections.sort(candidates);
+
+      final long targetSize = (long) (myMaxSize * EVICTION_RATIO);
+      final long now = now();
+      for (Candidate candidate : candidates) {
+        if (mySize.get() > targetSize || !isValid(candidate.myItem, now)) {
+          remove(candidate.myKey, candidate.myItem);
+        }
+      }
+    } finally {
+      myEvictionLock.unlock();
+    }
+  }
+
+  private static class Item {
+    private final ResponseCacheEntry myEntry;
+    private final long mySize;
+    private final long myCreated;
+    private final long myGeneration;
+    private final Set<String> myPackageIds;
+    private volatile long myLastAccess;
+
+    private Item(@NotNull final ResponseCacheEntry entry,
+                 final long size,
+                 final long created,
+                 final long lastAccess,
+                 final long generation,
+                 @Nullable final Set<String> packageIds) {
+      myEntry = entry;
+      mySize = size;
+      myCreated = created;
+      myLastAccess = lastAccess;
+      myGeneration = generation;
+      myPackageIds = packageIds;
+    }
+  }
+
+  private static class Candidate implements Comparable<Candidate> {
+    private final String myKey;
+    private final Item myItem;
+    private final long myLastAccess;
+
+    private Candidate(@NotNull final String key, @NotNull final Item item) {
+      myKey = key;
+      myItem = item;
+      myLastAccess = item.myLastAccess;
+    }
+
+    public int compareTo(@NotNull final Candidate o) {
+      return myLastAccess < o.myLastAccess ? -1 : myLastAccess == o.myLastAccess ? 0 : 1;
+    }
+  }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Optional second level of {@link ResponseCache} which keeps gzipped responses in files,
+ * so that cached responses survive server restarts.
+ *
+ * A file is deleted as soon as a package the response depends on changes, so files of a server
+ * that was stopped normally are up-to-date on the next start. Files are only trusted after a normal
+ * shutdown, which lists files of up-to-date responses, as changes reported right before a crash
+ * could be lost and files that failed to be deleted could remain. The total size of files is bounded,
+ * least recently used responses are deleted first.
+ */
+public class ResponseDiskCache {
+  private static final Logger LOG = Logger.getInstance(ResponseDiskCache.class.getName());
+  private static final int FORMAT_VERSION = 1;
+  private static final String SHUTDOWN_LIST = "shutdown.list";
+  private static final String RESPONSE_SUFFIX = ".response";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final double EVICTION_RATIO = 0.75;
+
+  private final ConcurrentHashMap<String, Item> myItems = new ConcurrentHashMap<String, Item>();
+  private final AtomicLong mySize = new AtomicLong();
+  private final Lock myEvictionLock = new ReentrantLock();
+  private final File myDirectory;
+  private final long myMaxSize;
+  private final long myTimeToLive;
+
+  public ResponseDiskCache(@NotNull final ServerPaths paths,
+                           @NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    this(TeamCityProperties.getBoolean("teamcity.nuget.feed.cache.disk") ? new File(paths.getCachesDir(), "nuget-feed-responses") : null,
+            TeamCityProperties.getInteger("teamcity.nuget.feed.cache.disk.size.mb", 512) * 1024L * 1024L,
+            TeamCityProperties.getInteger("teamcity.nuget.feed.cache.ttl.seconds", 3600) * 1000L);
+
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        super.serverShutdown();
+        shutdown();
+      }
+    });
+  }
+
+  /**
+   * @param directory directory for responses or null to disable the cache
+   * @param maxSize maximum total size of files in bytes
+   * @param timeToLive time to live of a response in milliseconds
+   */
+  public ResponseDiskCache(@Nullable final File directory, final long maxSize, final long timeToLive) {
+    myDirectory = directory;
+    myMaxSize = maxSize;
+    myTimeToLive = timeToLive;
+    if (myDirectory != null) {
+      load();
+    }
+  }
+
+  /**
+   * @return stored response or null
+   */
+  @Nullable
+  public Response get(@NotNull final String key) {
+    final Item item = myItems.get(key);
+    if (item == null) return null;
+
+    if (System.currentTimeMillis() - item.myCreated >= myTimeToLive) {
+      remove(key, item);
+      return null;
+    }
+
+    try {
+      final Response response = read(item.myFile, key, item.myGeneration);
+      if (response != null) {
+        item.myLastAccess = System.currentTimeMillis();
+        return response;
+      }
+    } catch (IOException e) {
+      LOG.debug("Failed to read cached NuGet feed response from " + item.myFile + ". " + e.getMessage());
+    }
+    remove(key, item);
+    return null;
+  }
+
+  /**
+   * @param generation generation of packages the response was computed at, see {@link ResponseCacheStorage#getGeneration()}
+   * @param packageIds lower-case Ids of packages the response depends on or null if it depends on all packages
+   */
+  public void put(@NotNull final String key,
+                  @NotNull final ResponseCacheEntry entry,
+                  final long generation,
+                  @Nullable final Set<String> packageIds) {
+    if (myDirectory == null) return;
+
+    final File file = new File(myDirectory, ResponseAccessScope.hash(key) + RESPONSE_SUFFIX);
+    final File temp = new File(myDirectory, file.getName() + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+    final long created = System.currentTimeMillis();
+    try {
+      write(temp, key, created, packageIds, entry);
+      if (temp.length() > myMaxSize) {
+        FileUtil.delete(temp);
+        return;
+      }
+
+      final Item old = myItems.remove(key);
+      if (old != null) mySize.addAndGet(-old.mySize);
+      if (!temp.renameTo(file)) {
+        FileUtil.delete(file);
+        if (!temp.renameTo(file)) throw new IOException("Failed to rename " + temp + " to " + file);
+      }
+    } catch (IOException e) {
+      LOG.debug("Failed to store cached NuGet feed response to " + file + ". " + e.getMessage());
+      FileUtil.delete(temp);
+      return;
+    }
+
+    final Item item = new Item(file, file.length(), created, generation, packageIds);
+    final Item old = myItems.put(key, item);
+    mySize.addAndGet(old == null ? item.mySize : item.mySize - old.mySize);
+
+    if (mySize.get() > myMaxSize) {
+      evict();
+    }
+  }
+
+  public void remove(@NotNull final String key) {
+    final Item item = myItems.get(key);
+    if (item != null) remove(key, item);
+  }
+
+  /**
+   * Deletes responses that depend on the package
+   */
+  public void invalidate(@NotNull final String packageId) {
+    final String id = ResponsePackageIds.normalize(packageId);
+    for (Map.Entry<String, Item> e : myItems.entrySet()) {
+      final Set<String> ids = e.getValue().myPackageIds;
+      if (ids == null || ids.contains(id)) {
+        remove(e.getKey(), e.getValue());
+      }
+    }
+  }
+
+  public void clear() {
+    for (Map.Entry<String, Item> e : myItems.entrySet()) {
+      remove(e.getKey(), e.getValue());
+    }
+  }
+
+  /**
+   * Marks stored responses as trusted for the next start
+   */
+  public void shutdown() {
+    if (myDirectory == null) return;
+    try {
+      final Writer writer = new OutputStreamWriter(new FileOutputStream(new File(myDirectory, SHUTDOWN_LIST)), "utf-8");
+      try {
+        for (Item item : myItems.values()) {
+          writer.write(item.myFile.getName());
+          writer.write('\n');
+        }
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to mark cached NuGet feed responses as up-to-date in " + myDirectory + ". " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return total size of stored responses in bytes
+   */
+  public long getSize() {
+    return mySize.get();
+  }
+
+  public int getCount() {
+    return myItems.size();
+  }
+
+  private void load() {
+    //noinspection ResultOfMethodCallIgnored
+    myDirectory.mkdirs();
+    final Set<String> trusted = readShutdownList();
+
+    final File[] files = myDirectory.listFiles();
+    if (files == null) return;
+
+    for (File file : files) {
+      if (!trusted.contains(file.getName())) {
+        FileUtil.delete(file);
+        continue;
+      }
+
+      try {
+        final Item item = readItem(file);
+        if (item != null && System.currentTimeMillis() - item.myCreated < myTimeToLive) {
+          myItems.put(item.myKey, item);
+          mySize.addAndGet(item.mySize);
+          continue;
+        }
+      } catch (IOException e) {
+        LOG.debug("Failed to read cached NuGet feed response from " + file + ". " + e.getMessage());
+      }
+      FileUtil.delete(file);
+    }
+
+    LOG.info("Loaded " + myItems.size() + " cached NuGet feed responses from " + myDirectory);
+    if (mySize.get() > myMaxSize) {
+      evict();
+    }
+  }
+
+  /**
+   * @return names of files listed on the last normal shutdown
+   */
+  @NotNull
+  private Set<String> readShutdownList() {
+    final File list = new File(myDirectory, SHUTDOWN_LIST);
+    final Set<String> names = new HashSet<String>();
+    if (!list.isFile()) return names;
+
+    try {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(list), "utf-8"));
+      try {
+        String name;
+        while ((name = reader.readLine()) != null) {
+          if (name.endsWith(RESPONSE_SUFFIX)) names.add(name);
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      LOG.debug("Failed to read cached NuGet feed responses list " + list + ". " + e.getMessage());
+      names.clear();
+    }
+
+    //the list is only valid until the first change
+    if (!list.delete()) names.clear();
+    return names;
+  }
+
+  private void remove(@NotNull final String key, @NotNull final Item item) {
+    if (myItems.remove(key, item)) {
+      mySize.addAndGet(-item.mySize);
+      FileUtil.delete(item.myFile);
+    }
+  }
+
+  private void evict() {
+    if (!myEvictionLock.tryLock()) return;
+    try {
+      //access times are copied as they are updated concurrently
+      final List<Candidate> candidates = new ArrayList<Candidate>(myItems.size());
+      for (Map.Entry<String, Item> e : myItems.entrySet()) {
+        candidates.add(new Candidate(e.getKey(), e.getValue()));
+      }
+      Collections.sort(candidates);
+
+      final long targetSize = (long) (myMaxSize * EVICTION_RATIO);
+      for (Candidate candidate : candidates) {
+        if (mySize.get() <= targetSize) break;
+        remove(candidate.myKey, candidate.myItem);
+      }
+    } finally {
+      myEvictionLock.unlock();
+    }
+  }
+
+  private static void write(@NotNull final File file,
+                            @NotNull final String key,
+                            final long created,
+                            @Nullable final Set<String> packageIds,
+                            @NotNull final ResponseCacheEntry entry) throws IOException {
+    final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+    try {
+      output.writeInt(FORMAT_VERSION);
+      writeString(output, key);
+      output.writeLong(created);
+      if (packageIds == null) {
+        output.writeInt(-1);
+      } else {
+        output.writeInt(packageIds.size());
+        for (String id : packageIds) {
+          writeString(output, id);
+        }
+      }
+
+      output.writeInt(entry.getStatus());
+      final Map<String, String> headers = entry.getHeaders();
+      output.writeInt(headers.size());
+      for (Map.Entry<String, String> e : headers.entrySet()) {
+        writeString(output, e.getKey());
+        writeString(output, e.getValue());
+      }
+      final byte[] content = entry.getGZippedContent();
+      output.writeInt(content.length);
+      output.write(content);
+    } finally {
+      output.close();
+    }
+  }
+
+  @Nullable
+  private static Item readItem(@NotNull final File file) throws IOException {
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+    try {
+      if (input.readInt() != FORMAT_VERSION) return null;
+      final String key = readString(input);
+      final long created = input.readLong();
+      final Set<String> packageIds = readPackageIds(input);
+
+      //generations start over on restart
+      final Item item = new Item(file, file.length(), created, 0, packageIds);
+      item.myKey = key;
+      return item;
+    } finally {
+      input.close();
+    }
+  }
+
+  @Nullable
+  private static Response read(@NotNull final File file,
+                               @NotNull final String key,
+                               final long generation) throws IOException {
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+    try {
+      if (input.readInt() != FORMAT_VERSION) return null;
+      if (!key.equals(readString(input))) return null;
+      input.readLong();
+      final Set<String> packageIds = readPackageIds(input);
+
+      final int status = input.readInt();
+      final int headersCount = input.readInt();
+      final Map<String, String> headers = new HashMap<String, String>();
+      for (int i = 0; i < headersCount; i++) {
+        headers.put(readString(input), readString(input));
+      }
+      final byte[] content = new byte[input.readInt()];
+      input.readFully(content);
+
+      return new Response(new ResponseCacheEntry(headers, content, status), generation, packageIds);
+    } finally {
+      input.close();
+    }
+  }
+
+  @Nullable
+  private static Set<String> readPackageIds(@NotNull final DataInputStream input) throws IOException {
+    final int count = input.readInt();
+    if (count < 0) return null;
+
+    final Set<String> packageIds = new HashSet<String>();
+    for (int i = 0; i < count; i++) {
+      packageIds.add(readString(input));
+    }
+    return packageIds;
+  }
+
+  private static void writeString(@NotNull final DataOutputStream output, @NotNull final String text) throws IOException {
+    final byte[] bytes = text.getBytes("utf-8");
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  @NotNull
+  private static String readString(@NotNull final DataInputStream input) throws IOException {
+    final byte[] bytes = new byte[input.readInt()];
+    input.readFully(bytes);
+    return new String(bytes, "utf-8");
+  }
+
+  /**
+   * Response read from the disk
+   */
+  public static class Response {
+    private final ResponseCacheEntry myEntry;
+    private final long myGeneration;
+    private final Set<String> myPackageIds;
+
+    private Response(@NotNull final ResponseCacheEntry entry,
+                     final long generation,
+                     @Nullable final Set<String> packageIds) {
+      myEntry = entry;
+      myGeneration = generation;
+      myPackageIds = packageIds;
+    }
+
+    @NotNull
+    public ResponseCacheEntry getEntry() {
+      return myEntry;
+    }
+
+    /**
+     * @return generation of packages the response was computed at, 0 for responses stored before the restart
+     */
+    public long getGeneration() {
+      return myGeneration;
+    }
+
+    /**
+     * @return lower-case Ids of packages the response depends on or null if it depends on all packages
+     */
+    @Nullable
+    public Set<String> getPackageIds() {
+      return myPackageIds;
+    }
+  }
+
+  private static class Candidate implements Comparable<Candidate> {
+    private final String myKey;
+    private final Item myItem;
+    private final long myLastAccess;
+
+    private Candidate(@NotNull final String key, @NotNull final Item item) {
+      myKey = key;
+      myItem = item;
+      myLastAccess = item.myLastAccess;
+    }
+
+    public int compareTo(@NotNull final Candidate o) {
+      return myLastAccess < o.myLastAccess ? -1 : myLastAccess == o.myLastAccess ? 0 : 1;
+    }
+  }
+
+  private static class Item {
+    private final File myFile;
+    private final long mySize;
+    private final long myCreated;
+    private final long myGeneration;
+    private final Set<String> myPackageIds;
+    private volatile long myLastAccess;
+    private String myKey;
+
+    private Item(@NotNull final File file,
+                 final long size,
+                 final long created,
+                 final long generation,
+                 @Nullable final Set<String> packageIds) {
+      myFile = file;
+      mySize = size;
+      myCreated = created;
+      myGeneration = generation;
+      myPackageIds = packageIds;
+      myLastAccess = created;
+    }
+  }
+}
@@ -16,12 +16,14 @@
 
 package jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache;
 
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import org.jetbrains.annotations.NotNull;
 
 import javax.servlet.ServletOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -33,7 +35,20 @@ public class ResponseOutputStream extends ServletOutputStream {
   private final AtomicBoolean myClosed = new AtomicBoolean(false);
 
   public ResponseOutputStream(@NotNull final OutputStream stream) throws IOException {
-    myStream = new GZIPOutputStream(stream);
+    myStream = new GZIPOutputStream(stream, 8192) {
+      {
+        def.setLevel(getCompressionLevel());
+      }
+    };
+  }
+
+  /**
+   * Responses are compressed once on cache fill, a lower level trades cache memory for CPU
+   */
+  private static int getCompressionLevel() {
+    final int level = TeamCityProperties.getInteger("teamcity.nuget.feed.cache.gzip.level", Deflater.DEFAULT_COMPRESSION);
+    if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) return Deflater.DEFAULT_COMPRESSION;
+    return level;
   }
 
   @Override
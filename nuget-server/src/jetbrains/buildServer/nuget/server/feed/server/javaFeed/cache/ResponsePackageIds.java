@@ -0,0 +1,73 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Ids of packages the response computed in the current thread depends on.
+ *
+ * {@link ResponseCache} records Ids while the feed computes a response,
+ * the feed reports them once it knows the request is restricted to some packages.
+ * Responses without reported Ids are considered to depend on all packages.
+ */
+public class ResponsePackageIds {
+  private static final ThreadLocal<Holder> ourIds = new ThreadLocal<Holder>();
+
+  /**
+   * Reports that the response only depends on packages with the given Ids
+   */
+  public static void set(@NotNull final Collection<String> ids) {
+    final Holder holder = ourIds.get();
+    if (holder == null) return;
+
+    final Set<String> result = new HashSet<String>();
+    for (String id : ids) {
+      result.add(normalize(id));
+    }
+    holder.myIds = result;
+  }
+
+  @NotNull
+  static String normalize(@NotNull final String id) {
+    return id.toLowerCase(Locale.ENGLISH);
+  }
+
+  static void start() {
+    ourIds.set(new Holder());
+  }
+
+  /**
+   * @return reported Ids in lower case or null if the response depends on all packages
+   */
+  @Nullable
+  static Set<String> finish() {
+    final Holder holder = ourIds.get();
+    ourIds.remove();
+    return holder == null ? null : holder.myIds;
+  }
+
+  private static class Holder {
+    private Set<String> myIds;
+  }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.javaFeed.format;
+
+import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
+import jetbrains.buildServer.nuget.server.feed.server.index.PackagesIndex;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.NuGetPackageBuilder;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.PackageEntityEx;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.entity.PackageEntity;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDateTime;
+import org.odata4j.core.OAtomEntity;
+import org.odata4j.core.OEntity;
+import org.odata4j.edm.EdmEntityType;
+import org.odata4j.edm.EdmProperty;
+import org.odata4j.edm.EdmSimpleType;
+import org.odata4j.edm.EdmType;
+import org.odata4j.internal.InternalUtil;
+import org.odata4j.producer.EntitiesResponse;
+import org.odata4j.producer.inmemory.BeanBasedPropertyModel;
+import org.odata4j.producer.inmemory.PropertyModel;
+
+import javax.ws.rs.core.UriInfo;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * Atom feed writer for packages, produces the same document as odata4j
+ * {@link org.odata4j.format.xml.AtomFeedFormatWriter} with {@link jetbrains.buildServer.nuget.server.feed.server.javaFeed.ManualXMLWriter3}.
+ *
+ * Entries are written right from package beans to the response stream,
+ * so no {@link org.odata4j.core.OProperty} objects are created.
+ * Markup that does not depend on packages is encoded once per entity type.
+ *
+ * Rendered entries are cached by build id and index entry key as UTF-8 fragments, only the feed base URI,
+ * the download URL and latest version flags are written on each request.
+ * A fragment is re-rendered once attributes of the index entry are changed.
+ * Least recently used fragments are evicted once their total size exceeds the limit.
+ */
+public class PackagesAtomFeedWriter {
+  private static final String ATOM = "http://www.w3.org/2005/Atom";
+  private static final String D = "http://schemas.microsoft.com/ado/2007/08/dataservices";
+  private static final String M = "http://schemas.microsoft.com/ado/2007/08/dataservices/metadata";
+  private static final String SCHEME = "http://schemas.microsoft.com/ado/2007/08/dataservices/scheme";
+  private static final int BUFFER_SIZE = 32 * 1024;
+  private static final int FRAGMENT_SIZE = 4 * 1024;
+  /**
+   * Properties that depend on other versions of the package
+   */
+  private static final Set<String> VARIABLE_PROPERTIES = new HashSet<String>(Arrays.asList(
+          NuGetPackageBuilder.IS_LATEST_VERSION,
+          NuGetPackageBuilder.IS_ABSOLUTE_LATEST_VERSION));
+
+  private static final byte[] FEED_START = Utf8Output.encode("<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"yes\" ?>" +
+          "<feed xmlns=\"" + ATOM + "\" xmlns:d=\"" + D + "\" xmlns:m=\"" + M + "\" xml:base=\"");
+  private static final byte[] FEED_TITLE = Utf8Output.encode("\"><title type=\"text\">");
+  private static final byte[] FEED_ID = Utf8Output.encode("</title><id>");
+  private static final byte[] FEED_UPDATED = Utf8Output.encode("</id><updated>");
+  private static final byte[] FEED_SELF_TITLE = Utf8Output.encode("</updated><link rel=\"self\" title=\"");
+  private static final byte[] FEED_SELF_HREF = Utf8Output.encode("\" href=\"");
+  private static final byte[] COUNT_START = Utf8Output.encode("<m:count>");
+  private static final byte[] COUNT_END = Utf8Output.encode("</m:count>");
+  private static final byte[] NEXT_START = Utf8Output.encode("<link rel=\"next\" href=\"");
+  private static final byte[] LINK_END = Utf8Output.encode("\"/>");
+  private static final byte[] FEED_END = Utf8Output.encode("</feed>");
+
+  private static final byte[] ENTRY_ID = Utf8Output.encode("<entry><id>");
+  private static final byte[] ENTRY_TITLE = Utf8Output.encode("</id><title type=\"text\">");
+  private static final byte[] ENTRY_EMPTY_TITLE = Utf8Output.encode("</id><title type=\"text\"/>");
+  private static final byte[] ENTRY_TITLE_END = Utf8Output.encode("</title>");
+  private static final byte[] ENTRY_SUMMARY = Utf8Output.encode("<summary type=\"text\">");
+  private static final byte[] ENTRY_SUMMARY_END = Utf8Output.encode("</summary>");
+  private static final String LAST_UPDATED = "LastUpdated";
+  private static final byte[] ENTRY_UPDATED = Utf8Output.encode("<updated>");
+  private static final byte[] ENTRY_AUTHOR = Utf8Output.encode("</updated><author><name>");
+  private static final byte[] ENTRY_EMPTY_AUTHOR = Utf8Output.encode("</updated><author><name/>");
+  private static final byte[] ENTRY_AUTHOR_END = Utf8Output.encode("</name>");
+  private static final byte[] ENTRY_CONTENT_SRC = Utf8Output.encode("\" src=\"");
+  private static final byte[] ENTRY_PROPERTIES = Utf8Output.encode("\"/><m:properties xmlns:m=\"" + M + "\" xmlns:d=\"" + D + "\">");
+  private static final byte[] ENTRY_END = Utf8Output.encode("</m:properties></entry>");
+
+  private static final Map<EdmEntityType, PackagesAtomFeedWriter> ourWriters =
+          Collections.synchronizedMap(new WeakHashMap<EdmEntityType, PackagesAtomFeedWriter>());
+
+  private final byte[] myEditLinkStart;
+  private final byte[] myContentStart;
+  private final PackageProperty[] myProperties;
+  private final PackageProperty[] myVariableProperties;
+  private final FragmentCache myEntries =
+          new FragmentCache(TeamCityProperties.getInteger("teamcity.nuget.feed.entries.cache.mb", 32) * 1024L * 1024L);
+
+  private PackagesAtomFeedWriter(@NotNull final EdmEntityType type, @NotNull final PackageProperty[] properties) {
+    myEditLinkStart = Utf8Output.encode("</author><link rel=\"edit\" title=\"" + escape(type.getName()) + "\" href=\"");
+    myContentStart = Utf8Output.encode("<category term=\"" + escape(type.getFullyQualifiedTypeName()) + "\" scheme=\"" + SCHEME + "\"/>" +
+            "<content type=\"");
+    myProperties = properties;
+
+    final List<PackageProperty> variable = new ArrayList<PackageProperty>();
+    for (PackageProperty property : properties) {
+      if (property.myVariable) variable.add(property);
+    }
+    myVariableProperties = variable.toArray(new PackageProperty[variable.size()]);
+  }
+
+  /**
+   * @return writer for the response or null if it contains something but plain packages
+   */
+  @Nullable
+  public static PackagesAtomFeedWriter getInstance(@NotNull final EntitiesResponse response) {
+    for (OEntity entity : response.getEntities()) {
+      if (entity.findExtension(PackageEntity.class) == null) return null;
+      if (entity.findExtension(OAtomEntity.class) == null) return null;
+      if (!entity.getLinks().isEmpty()) return null;
+    }
+
+    final EdmEntityType type = response.getEntitySet().getType();
+    synchronized (ourWriters) {
+      if (ourWriters.containsKey(type)) return ourWriters.get(type);
+
+      final PackageProperty[] properties = PackageProperty.create(type);
+      final PackagesAtomFeedWriter writer = properties == null ? null : new PackagesAtomFeedWriter(type, properties);
+      ourWriters.put(type, writer);
+      return writer;
+    }
+  }
+
+  public void write(@NotNull final UriInfo uriInfo,
+                    @NotNull final OutputStream stream,
+                    @NotNull final EntitiesResponse response) throws IOException {
+    final String baseUri = uriInfo.getBaseUri().toString();
+    final String entitySetName = response.getEntitySet().getName();
+    final Utf8Output out = new Utf8Output(stream, BUFFER_SIZE);
+
+    out.write(FEED_START);
+    out.writeXml(baseUri);
+    out.write(FEED_TITLE);
+    out.writeXml(entitySetName);
+    out.write(FEED_ID);
+    out.writeXml(baseUri + uriInfo.getPath());
+    out.write(FEED_UPDATED);
+    out.writeXml(InternalUtil.toString(new DateTime().withZone(DateTimeZone.UTC)));
+    out.write(FEED_SELF_TITLE);
+    out.writeXml(entitySetName);
+    out.write(FEED_SELF_HREF);
+    out.writeXml(entitySetName);
+    out.write(LINK_END);
+
+    final Integer inlineCount = response.getInlineCount();
+    if (inlineCount != null) {
+      out.write(COUNT_START);
+      out.writeXml(inlineCount.toString());
+      out.write(COUNT_END);
+    }
+
+    for (OEntity entity : response.getEntities()) {
+      writeEntry(out, baseUri, entitySetName, entity);
+    }
+
+    if (response.getSkipToken() != null) {
+      out.write(NEXT_START);
+      out.writeXml(uriInfo.getRequestUriBuilder().replaceQueryParam("$skiptoken", response.getSkipToken()).build().toString());
+      out.write(LINK_END);
+    }
+
+    out.write(FEED_END);
+    out.flush();
+  }
+
+  private void writeEntry(@NotNull final Utf8Output out,
+                          @NotNull final String baseUri,
+                          @NotNull final String entitySetName,
+                          @NotNull final OEntity entity) throws IOException {
+    final PackageEntity pkg = entity.findExtension(PackageEntity.class);
+    final NuGetIndexEntry indexEntry = pkg instanceof PackageEntityEx ? ((PackageEntityEx) pkg).getEntry() : null;
+
+    final String key = indexEntry == null ? null : indexEntry.getAttributes().get(PackagesIndex.TEAMCITY_BUILD_ID) + ":" + indexEntry.getKey();
+    EntryFragment fragment = key == null ? null : myEntries.get(key);
+    if (fragment == null || !isUpToDate(fragment, entitySetName, indexEntry.getAttributes())) {
+      fragment = renderEntry(entitySetName, entity, indexEntry == null ? null : indexEntry.getAttributes());
+      if (key != null && fragment.myCacheable) {
+        myEntries.put(key, fragment);
+      }
+    }
+
+    out.write(ENTRY_ID);
+    out.writeXml(baseUri);
+    out.write(fragment.myHead);
+    out.writeXml(pkg.getAtomEntitySource(baseUri));
+    for (int i = 0; i < myVariableProperties.length; i++) {
+      out.write(fragment.myParts[i]);
+      myVariableProperties[i].write(out, pkg);
+    }
+    out.write(fragment.myParts[myVariableProperties.length]);
+  }
+
+  /**
+   * Renders the entry except the feed base URI, the download URL and variable properties
+   * @param attributes attributes of the index entry, the fragment is valid while they are not changed
+   */
+  @NotNull
+  private EntryFragment renderEntry(@NotNull final String entitySetName,
+                                    @NotNull final OEntity entity,
+                                    @Nullable final Map<String, String> attributes) throws IOException {
+    final PackageEntity pkg = entity.findExtension(PackageEntity.class);
+    final OAtomEntity atom = entity.findExtension(OAtomEntity.class);
+    final String relId = entitySetName + entity.getEntityKey().toKeyString();
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(FRAGMENT_SIZE);
+    final Utf8Output out = new Utf8Output(bytes, FRAGMENT_SIZE);
+    out.writeXml(relId);
+
+    final String title = atom.getAtomEntityTitle();
+    if (title == null) {
+      out.write(ENTRY_EMPTY_TITLE);
+    } else {
+      out.write(ENTRY_TITLE);
+      out.writeXml(title);
+      out.write(ENTRY_TITLE_END);
+    }
+
+    final String summary = atom.getAtomEntitySummary();
+    if (summary != null) {
+      out.write(ENTRY_SUMMARY);
+      out.writeXml(summary);
+      out.write(ENTRY_SUMMARY_END);
+    }
+
+    out.write(ENTRY_UPDATED);
+    final LocalDateTime updated = atom.getAtomEntityUpdated();
+    out.writeXml(InternalUtil.toString(updated != null ? updated.toDateTime(DateTimeZone.UTC) : new DateTime().withZone(DateTimeZone.UTC)));
+
+    final String author = atom.getAtomEntityAuthor();
+    if (author == null) {
+      out.write(ENTRY_EMPTY_AUTHOR);
+    } else {
+      out.write(ENTRY_AUTHOR);
+      out.writeXml(author);
+      out.write(ENTRY_AUTHOR_END);
+    }
+
+    out.write(myEditLinkStart);
+    out.writeXml(relId);
+    out.write(LINK_END);
+
+    out.write(myContentStart);
+    out.writeXml(pkg.getAtomEntityType());
+    out.write(ENTRY_CONTENT_SRC);
+    final byte[] head = cut(out, bytes);
+
+    final List<byte[]> parts = new ArrayList<byte[]>(myVariableProperties.length + 1);
+    out.write(ENTRY_PROPERTIES);
+    for (PackageProperty property : myProperties) {
+      if (property.myVariable) {
+        parts.add(cut(out, bytes));
+      } else {
+        property.write(out, pkg);
+      }
+    }
+    out.write(ENTRY_END);
+    parts.add(cut(out, bytes));
+
+    String[] values = null;
+    if (attributes != null) {
+      values = new String[myProperties.length];
+      for (int i = 0; i < myProperties.length; i++) {
+        values[i] = attributes.get(myProperties[i].myName);
+      }
+    }
+    //entries without the update time are rendered with the current time
+    final boolean cacheable = updated != null && values != null && attributes.get(LAST_UPDATED) != null;
+    return new EntryFragment(entitySetName, values, head, parts.toArray(new byte[parts.size()][]), cacheable);
+  }
+
+  /**
+   * Package properties are computed from index entry attributes with the same names,
+   * see {@link jetbrains.buildServer.nuget.server.feed.server.javaFeed.entity.PackageEntityImpl}
+   */
+  private boolean isUpToDate(@NotNull final EntryFragment fragment,
+                             @NotNull final String entitySetName,
+                             @NotNull final Map<String, String> attributes) {
+    if (fragment.myValues == null || !fragment.myEntitySetName.equals(entitySetName)) return false;
+    for (int i = 0; i < myProperties.length; i++) {
+      final String value = attributes.get(myProperties[i].myName);
+      final String cached = fragment.myValues[i];
+      if (value != cached && (value == null || !value.equals(cached))) return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  private static byte[] cut(@NotNull final Utf8Output out, @NotNull final ByteArrayOutputStream bytes) throws IOException {
+    out.flush();
+    final byte[] result = bytes.toByteArray();
+    bytes.reset();
+    return result;
+  }
+
+  @NotNull
+  private static String escape(@NotNull final String text) {
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&apos;");
+  }
+
+  /**
+   * Pre-encoded <code>d:Name</code> element of a package property
+   */
+  private static class PackageProperty {
+    private static final Set<EdmType> TO_STRING_TYPES = new HashSet<EdmType>(Arrays.<EdmType>asList(
+            EdmSimpleType.STRING, EdmSimpleType.BOOLEAN, EdmSimpleType.INT16, EdmSimpleType.INT32, EdmSimpleType.INT64,
+            EdmSimpleType.DECIMAL, EdmSimpleType.SINGLE, EdmSimpleType.DOUBLE, EdmSimpleType.GUID));
+
+    private final PropertyModel myModel;
+    private final String myName;
+    private final boolean myDateTime;
+    private final boolean myVariable;
+    private final byte[] myStart;
+    private final byte[] myEnd;
+    private final byte[] myNull;
+
+    private PackageProperty(@NotNull final PropertyModel model, @NotNull final String name, @NotNull final EdmType type) {
+      myModel = model;
+      myName = name;
+      myDateTime = type == EdmSimpleType.DATETIME;
+      myVariable = VARIABLE_PROPERTIES.contains(name);
+
+      final String start = "<d:" + name + (type == EdmSimpleType.STRING ? "" : " m:type=\"" + type.getFullyQualifiedTypeName() + "\"");
+      myStart = Utf8Output.encode(start + ">");
+      myEnd = Utf8Output.encode("</d:" + name + ">");
+      myNull = Utf8Output.encode(start + " m:null=\"true\"/>");
+    }
+
+    /**
+     * @return properties of the type or null if some property could not be written
+     */
+    @Nullable
+    private static PackageProperty[] create(@NotNull final EdmEntityType type) {
+      final PropertyModel model = new BeanBasedPropertyModel(PackageEntity.class);
+      final Set<String> beanProperties = new HashSet<String>();
+      for (String name : model.getPropertyNames()) {
+        beanProperties.add(name);
+      }
+
+      final List<PackageProperty> result = new ArrayList<PackageProperty>();
+      for (EdmProperty property : type.getProperties()) {
+        final EdmType propertyType = property.getType();
+        if (!beanProperties.contains(property.getName())) return null;
+        if (propertyType != EdmSimpleType.DATETIME && !TO_STRING_TYPES.contains(propertyType)) return null;
+        result.add(new PackageProperty(model, property.getName(), propertyType));
+      }
+      return result.toArray(new PackageProperty[result.size()]);
+    }
+
+    private void write(@NotNull final Utf8Output out, @NotNull final PackageEntity entity) throws IOException {
+      final Object value = myModel.getPropertyValue(entity, myName);
+      if (value == null) {
+        out.write(myNull);
+        return;
+      }
+      out.write(myStart);
+      out.writeXml(myDateTime ? InternalUtil.formatDateTime((LocalDateTime) value) : value.toString());
+      out.write(myEnd);
+    }
+  }
+
+  private static class EntryFragment {
+    private final String myEntitySetName;
+    private final String[] myValues;
+    private final byte[] myHead;
+    private final byte[][] myParts;
+    private final boolean myCacheable;
+
+    private EntryFragment(@NotNull final String entitySetName,
+                          @Nullable final String[] values,
+                          @NotNull final byte[] head,
+                          @NotNull final byte[][] parts,
+                          final boolean cacheable) {
+      myEntitySetName = entitySetName;
+      myValues = values;
+      myHead = head;
+      myParts = parts;
+      myCacheable = cacheable;
+    }
+
+    private long getSize() {
+      long size = myHead.length;
+      for (byte[] part : myParts) {
+        size += part.length;
+      }
+      return size;
+    }
+  }
+
+  /**
+   * Rendered entries in the access order, bounded by the total size of fragments
+   */
+  private static class FragmentCache {
+    private final LinkedHashMap<String, EntryFragment> myFragments = new LinkedHashMap<String, EntryFragment>(256, 0.75f, true);
+    private final long myMaxSize;
+    private long mySize;
+
+    private FragmentCache(final long maxSize) {
+      myMaxSize = maxSize;
+    }
+
+    @Nullable
+    public synchronized EntryFragment get(@NotNull final String key) {
+      return myFragments.get(key);
+    }
+
+    public synchronized void put(@NotNull final String key, @NotNull final EntryFragment fragment) {
+      final long size = fragment.getSize();
+      if (size > myMaxSize) return;
+
+      final EntryFragment previous = myFragments.put(key, fragment);
+      if (previous != null) mySize -= previous.getSize();
+      mySize += size;
+
+      final Iterator<EntryFragment> it = myFragments.values().iterator();
+      while (mySize > myMaxSize && it.hasNext()) {
+        mySize -= it.next().getSize();
+        it.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.javaFeed.format;
+
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.entity.PackageEntity;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.LocalDateTime;
+import org.odata4j.core.OEntity;
+import org.odata4j.edm.EdmEntityType;
+import org.odata4j.edm.EdmProperty;
+import org.odata4j.edm.EdmSimpleType;
+import org.odata4j.edm.EdmType;
+import org.odata4j.producer.EntitiesResponse;
+import org.odata4j.producer.inmemory.BeanBasedPropertyModel;
+import org.odata4j.producer.inmemory.PropertyModel;
+
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * JSON (verbose OData v2) feed writer for packages, produces the same document as odata4j
+ * {@link org.odata4j.format.json.JsonFeedFormatWriter}.
+ *
+ * Entries are written right from package beans to the response stream,
+ * so no {@link org.odata4j.core.OProperty} objects are created.
+ * Property names are encoded once per entity type.
+ */
+public class PackagesJsonFeedWriter {
+  private static final int BUFFER_SIZE = 32 * 1024;
+
+  private static final byte[] CALLBACK_START = Utf8Output.encode("(");
+  private static final byte[] CALLBACK_END = Utf8Output.encode(");");
+  private static final byte[] FEED_START = Utf8Output.encode("{\n\"d\" : {\n\"results\" : [\n");
+  private static final byte[] FEED_RESULTS_END = Utf8Output.encode("\n]");
+  private static final byte[] COUNT_START = Utf8Output.encode(", \"__count\" : \"");
+  private static final byte[] NEXT_START = Utf8Output.encode(", \"__next\" : \"");
+  private static final byte[] QUOTE = Utf8Output.encode("\"");
+  private static final byte[] FEED_END = Utf8Output.encode("\n}\n}");
+
+  private static final byte[] ENTRY_SEPARATOR = Utf8Output.encode(", ");
+  private static final byte[] ENTRY_START = Utf8Output.encode("{\n\"__metadata\" : {\n\"uri\" : \"");
+  private static final byte[] ENTRY_END = Utf8Output.encode("\n}");
+  private static final byte[] NULL = Utf8Output.encode("null");
+  private static final byte[] TRUE = Utf8Output.encode("true");
+  private static final byte[] FALSE = Utf8Output.encode("false");
+  private static final byte[] DATE_START = Utf8Output.encode("\"\\/Date(");
+  private static final byte[] DATE_END = Utf8Output.encode(")\\/\"");
+
+  private static final Map<EdmEntityType, PackagesJsonFeedWriter> ourWriters =
+          Collections.synchronizedMap(new WeakHashMap<EdmEntityType, PackagesJsonFeedWriter>());
+
+  private final byte[] myTypeStart;
+  private final PackageProperty[] myProperties;
+
+  private PackagesJsonFeedWriter(@NotNull final EdmEntityType type, @NotNull final PackageProperty[] properties) {
+    final StringBuilder typeStart = new StringBuilder("\", \"type\" : \"");
+    appendJson(typeStart, type.getFullyQualifiedTypeName());
+    myTypeStart = Utf8Output.encode(typeStart.append("\"\n}").toString());
+    myProperties = properties;
+  }
+
+  /**
+   * @return writer for the response or null if it contains something but plain packages
+   */
+  @Nullable
+  public static PackagesJsonFeedWriter getInstance(@NotNull final EntitiesResponse response) {
+    for (OEntity entity : response.getEntities()) {
+      if (entity.findExtension(PackageEntity.class) == null) return null;
+      if (!entity.getLinks().isEmpty()) return null;
+    }
+
+    final EdmEntityType type = response.getEntitySet().getType();
+    synchronized (ourWriters) {
+      if (ourWriters.containsKey(type)) return ourWriters.get(type);
+
+      final PackageProperty[] properties = PackageProperty.create(type);
+      final PackagesJsonFeedWriter writer = properties == null ? null : new PackagesJsonFeedWriter(type, properties);
+      ourWriters.put(type, writer);
+      return writer;
+    }
+  }
+
+  /**
+   * @param callback JSONP callback function name or null
+   */
+  public void write(@NotNull final UriInfo uriInfo,
+                    @NotNull final OutputStream stream,
+                    @NotNull final EntitiesResponse response,
+                    @Nullable final String callback) throws IOException {
+    final String baseUri = uriInfo.getBaseUri().toString();
+    final String entitySetName = response.getEntitySet().getName();
+    final Utf8Output out = new Utf8Output(stream, BUFFER_SIZE);
+
+    if (callback != null) {
+      out.writeJson(callback);
+      out.write(CALLBACK_START);
+    }
+    out.write(FEED_START);
+
+    boolean first = true;
+    for (OEntity entity : response.getEntities()) {
+      if (!first) out.write(ENTRY_SEPARATOR);
+      first = false;
+      writeEntry(out, baseUri, entitySetName, entity);
+    }
+    out.write(FEED_RESULTS_END);
+
+    final Integer inlineCount = response.getInlineCount();
+    if (inlineCount != null) {
+      out.write(COUNT_START);
+      out.writeJson(inlineCount.toString());
+      out.write(QUOTE);
+    }
+
+    if (response.getSkipToken() != null) {
+      out.write(NEXT_START);
+      out.writeJson(getNextHref(uriInfo, response));
+      out.write(QUOTE);
+    }
+
+    out.write(FEED_END);
+    if (callback != null) {
+      out.write(CALLBACK_END);
+    }
+    out.flush();
+  }
+
+  private void writeEntry(@NotNull final Utf8Output out,
+                          @NotNull final String baseUri,
+                          @NotNull final String entitySetName,
+                          @NotNull final OEntity entity) throws IOException {
+    final PackageEntity pkg = entity.findExtension(PackageEntity.class);
+
+    out.write(ENTRY_START);
+    out.writeJson(baseUri + entitySetName + entity.getEntityKey().toKeyString());
+    out.write(myTypeStart);
+    for (PackageProperty property : myProperties) {
+      property.write(out, pkg);
+    }
+    out.write(ENTRY_END);
+  }
+
+  /**
+   * Same as odata4j, <code>$top</code> of the next page is reduced by the number of returned entries
+   */
+  @NotNull
+  private static String getNextHref(@NotNull final UriInfo uriInfo, @NotNull final EntitiesResponse response) {
+    final String topParam = uriInfo.getQueryParameters().getFirst("$top");
+    final int top = topParam == null ? -1 : Integer.parseInt(topParam) - response.getEntities().size();
+
+    final UriBuilder uri = uriInfo.getRequestUriBuilder();
+    if (top > 0) {
+      uri.replaceQueryParam("$top", top);
+    } else {
+      uri.replaceQueryParam("$top");
+    }
+    return uri.replaceQueryParam("$skiptoken", response.getSkipToken()).replaceQueryParam("$skip").build().toString();
+  }
+
+  private static void appendJson(@NotNull final StringBuilder sb, @NotNull final String text) {
+    sb.append(text.replace("\\", "\\\\").replace("\"", "\\\""));
+  }
+
+  /**
+   * Pre-encoded <code>, "Name" : </code> prefix of a package property, properties follow <code>__metadata</code>
+   */
+  private static class PackageProperty {
+    private static final Set<EdmType> SUPPORTED_TYPES = new HashSet<EdmType>(Arrays.<EdmType>asList(
+            EdmSimpleType.STRING, EdmSimpleType.BOOLEAN, EdmSimpleType.INT16, EdmSimpleType.INT32, EdmSimpleType.INT64,
+            EdmSimpleType.DATETIME));
+
+    private final PropertyModel myModel;
+    private final String myName;
+    private final EdmType myType;
+    private final byte[] myStart;
+
+    private PackageProperty(@NotNull final PropertyModel model, @NotNull final String name, @NotNull final EdmType type) {
+      myModel = model;
+      myName = name;
+      myType = type;
+
+      final StringBuilder start = new StringBuilder(", \"");
+      appendJson(start, name);
+      myStart = Utf8Output.encode(start.append("\" : ").toString());
+    }
+
+    /**
+     * @return properties of the type or null if some property could not be written
+     */
+    @Nullable
+    private static PackageProperty[] create(@NotNull final EdmEntityType type) {
+      final PropertyModel model = new BeanBasedPropertyModel(PackageEntity.class);
+      final Set<String> beanProperties = new HashSet<String>();
+      for (String name : model.getPropertyNames()) {
+        beanProperties.add(name);
+      }
+
+      final List<PackageProperty> result = new ArrayList<PackageProperty>();
+      for (EdmProperty property : type.getProperties()) {
+        final EdmType propertyType = property.getType();
+        if (!beanProperties.contains(property.getName())) return null;
+        if (!SUPPORTED_TYPES.contains(propertyType)) return null;
+        result.add(new PackageProperty(model, property.getName(), propertyType));
+      }
+      return result.toArray(new PackageProperty[result.size()]);
+    }
+
+    private void write(@NotNull final Utf8Output out, @NotNull final PackageEntity entity) throws IOException {
+      out.write(myStart);
+
+      final Object value = myModel.getPropertyValue(entity, myName);
+      if (value == null) {
+        out.write(NULL);
+      } else if (myType == EdmSimpleType.STRING || myType == EdmSimpleType.INT64) {
+        out.write(QUOTE);
+        out.writeJson(value.toString());
+        out.write(QUOTE);
+      } else if (myType == EdmSimpleType.BOOLEAN) {
+        out.write((Boolean) value ? TRUE : FALSE);
+      } else if (myType == EdmSimpleType.DATETIME) {
+        out.write(DATE_START);
+        out.writeJson(Long.toString(((LocalDateTime) value).toDateTime().getMillis()));
+        out.write(DATE_END);
+      } else {
+        out.writeJson(value.toString());
+      }
+    }
+  }
+}
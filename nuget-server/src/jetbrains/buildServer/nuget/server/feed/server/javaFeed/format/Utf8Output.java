@@ -0,0 +1,157 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.javaFeed.format;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Small buffered UTF-8 output for hand-written feeds.
+ * Static markup is written as pre-encoded bytes, see {@link #encode(String)},
+ * values are encoded (and escaped for XML or JSON if needed) right into the buffer.
+ */
+public class Utf8Output {
+  public static final Charset UTF8 = Charset.forName("utf-8");
+
+  private final OutputStream myStream;
+  private final byte[] myBuffer;
+  private int mySize;
+
+  public Utf8Output(@NotNull final OutputStream stream, final int bufferSize) {
+    myStream = stream;
+    myBuffer = new byte[bufferSize];
+  }
+
+  @NotNull
+  public static byte[] encode(@NotNull final String text) {
+    return text.getBytes(UTF8);
+  }
+
+  public void write(@NotNull final byte[] bytes) throws IOException {
+    write(bytes, 0, bytes.length);
+  }
+
+  public void write(@NotNull final byte[] bytes, final int offset, final int length) throws IOException {
+    if (length > myBuffer.length - mySize) {
+      flushBuffer();
+      if (length >= myBuffer.length) {
+        myStream.write(bytes, offset, length);
+        return;
+      }
+    }
+    System.arraycopy(bytes, offset, myBuffer, mySize, length);
+    mySize += length;
+  }
+
+  /**
+   * Writes text escaped for XML attribute values and texts
+   */
+  public void writeXml(@Nullable final String text) throws IOException {
+    if (text == null) return;
+    final int len = text.length();
+    for (int i = 0; i < len; i++) {
+      final char c = text.charAt(i);
+      switch (c) {
+        case '<': writeAscii("&lt;"); break;
+        case '"': writeAscii("&quot;"); break;
+        case '>': writeAscii("&gt;"); break;
+        case '\'': writeAscii("&apos;"); break;
+        case '&': writeAscii("&amp;"); break;
+        default: i = writeChar(text, i, c);
+      }
+    }
+  }
+
+  /**
+   * Writes text escaped for JSON strings
+   */
+  public void writeJson(@Nullable final String text) throws IOException {
+    if (text == null) return;
+    final int len = text.length();
+    for (int i = 0; i < len; i++) {
+      final char c = text.charAt(i);
+      switch (c) {
+        case '\\': writeAscii("\\\\"); break;
+        case '"': writeAscii("\\\""); break;
+        case '\n': writeAscii("\\n"); break;
+        case '\r': writeAscii("\\r"); break;
+        case '\f': writeAscii("\\f"); break;
+        case '\b': writeAscii("\\b"); break;
+        case '\t': writeAscii("\\t"); break;
+        default:
+          if (c < 0x20) {
+            writeAscii(String.format("\\u%04x", (int) c));
+          } else {
+            i = writeChar(text, i, c);
+          }
+      }
+    }
+  }
+
+  public void flush() throws IOException {
+    flushBuffer();
+    myStream.flush();
+  }
+
+  private void writeAscii(@NotNull final String text) throws IOException {
+    for (int i = 0; i < text.length(); i++) {
+      writeByte((byte) text.charAt(i));
+    }
+  }
+
+  /**
+   * @return index of the last consumed char, surrogate pairs consume two chars
+   */
+  private int writeChar(@NotNull final String text, final int index, final char c) throws IOException {
+    if (c < 0x80) {
+      writeByte((byte) c);
+    } else if (c < 0x800) {
+      writeByte((byte) (0xC0 | (c >> 6)));
+      writeByte((byte) (0x80 | (c & 0x3F)));
+    } else if (Character.isHighSurrogate(c) && index + 1 < text.length() && Character.isLowSurrogate(text.charAt(index + 1))) {
+      final int cp = Character.toCodePoint(c, text.charAt(index + 1));
+      writeByte((byte) (0xF0 | (cp >> 18)));
+      writeByte((byte) (0x80 | ((cp >> 12) & 0x3F)));
+      writeByte((byte) (0x80 | ((cp >> 6) & 0x3F)));
+      writeByte((byte) (0x80 | (cp & 0x3F)));
+      return index + 1;
+    } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+      //same as the JDK encoder does for malformed input
+      writeByte((byte) '?');
+    } else {
+      writeByte((byte) (0xE0 | (c >> 12)));
+      writeByte((byte) (0x80 | ((c >> 6) & 0x3F)));
+      writeByte((byte) (0x80 | (c & 0x3F)));
+    }
+    return index;
+  }
+
+  private void writeByte(final byte b) throws IOException {
+    if (mySize == myBuffer.length) flushBuffer();
+    myBuffer[mySize++] = b;
+  }
+
+  private void flushBuffer() throws IOException {
+    if (mySize == 0) return;
+    myStream.write(myBuffer, 0, mySize);
+    mySize = 0;
+  }
+}
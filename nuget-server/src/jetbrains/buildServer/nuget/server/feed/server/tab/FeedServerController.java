@@ -20,6 +20,7 @@ import jetbrains.buildServer.controllers.AuthorizationInterceptor;
 import jetbrains.buildServer.controllers.BaseController;
 import jetbrains.buildServer.controllers.RequestPermissionsChecker;
 import jetbrains.buildServer.nuget.server.feed.server.NuGetServerSettings;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.PackagesReindexer;
 import jetbrains.buildServer.nuget.server.toolRegistry.tab.PermissionChecker;
 import jetbrains.buildServer.serverSide.auth.AccessDeniedException;
 import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
@@ -42,6 +43,7 @@ public class FeedServerController extends BaseController {
   @NotNull private final PluginDescriptor myDescriptor;
   @NotNull private final NuGetServerSettings mySettings;
   @NotNull private final ServerSettings myServerSettings;
+  @NotNull private final PackagesReindexer myReindexer;
 
   public FeedServerController(@NotNull final AuthorizationInterceptor auth,
                               @NotNull final PermissionChecker checker,
@@ -49,8 +51,10 @@ public class FeedServerController extends BaseController {
                               @NotNull final WebControllerManager web,
                               @NotNull final PluginDescriptor descriptor,
                               @NotNull final ServerSettings serverSettings,
-                              @NotNull final NuGetServerSettings settings) {
+                              @NotNull final NuGetServerSettings settings,
+                              @NotNull final PackagesReindexer reindexer) {
     mySection = section;
+    myReindexer = reindexer;
     myDescriptor = descriptor;
     mySettings = settings;
     myServerSettings = serverSettings;
@@ -72,6 +76,8 @@ public class FeedServerController extends BaseController {
     mv.getModel().put("actualServerUrl", WebUtil.getRootUrl(request));
     mv.getModel().put("nugetStatusRefreshUrl", mySection.getIncludePath());
     mv.getModel().put("nugetSettingsPostUrl", mySection.getSettingsPath());
+    mv.getModel().put("nugetReindexPostUrl", mySection.getReindexPath());
+    mv.getModel().put("reindexStatus", myReindexer.getStatus());
     mv.getModel().put("privateFeedUrl", mySettings.getNuGetHttpAuthFeedControllerPath());
     mv.getModel().put("publicFeedUrl", mySettings.getNuGetGuestAuthFeedControllerPath());
     mv.getModel().put("serverEnabled", mySettings.isNuGetServerEnabled());
@@ -30,12 +30,14 @@ import java.util.Collections;
 public class FeedServerSettingsSection implements SettingsSection {
   private final String myPath;
   private final String mySettingsPath;
+  private final String myReindexPath;
   private final String myJSPath;
   private final String myCssPath;
 
   public FeedServerSettingsSection(@NotNull PluginDescriptor descriptor) {
     myPath = descriptor.getPluginResourcesPath("feed/status.html");
     mySettingsPath = descriptor.getPluginResourcesPath("feed/settings.html");
+    myReindexPath = descriptor.getPluginResourcesPath("feed/reindex.html");
     myJSPath = descriptor.getPluginResourcesPath("server/feedServer.js");
     myCssPath = descriptor.getPluginResourcesPath("server/feedServer.css");
   }
@@ -60,6 +62,11 @@ public class FeedServerSettingsSection implements SettingsSection {
     return mySettingsPath;
   }
 
+  @NotNull
+  public String getReindexPath() {
+    return myReindexPath;
+  }
+
   @NotNull
   public Collection<String> getCssFiles() {
     return Collections.singleton(myCssPath);
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.server.feed.server.tab;
+
+import jetbrains.buildServer.controllers.AuthorizationInterceptor;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.controllers.RequestPermissionsChecker;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.PackagesReindexer;
+import jetbrains.buildServer.nuget.server.toolRegistry.tab.PermissionChecker;
+import jetbrains.buildServer.serverSide.auth.AccessDeniedException;
+import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Starts and stops re-index of NuGet packages from the NuGet Server settings tab
+ */
+public class PackagesReindexController extends BaseController {
+  @NotNull private final PackagesReindexer myReindexer;
+
+  public PackagesReindexController(@NotNull final AuthorizationInterceptor auth,
+                                   @NotNull final PermissionChecker checker,
+                                   @NotNull final FeedServerSettingsSection section,
+                                   @NotNull final WebControllerManager web,
+                                   @NotNull final PackagesReindexer reindexer) {
+    myReindexer = reindexer;
+    final String myPath = section.getReindexPath();
+
+    auth.addPathBasedPermissionsChecker(myPath, new RequestPermissionsChecker() {
+      public void checkPermissions(@NotNull AuthorityHolder authorityHolder,
+                                   @NotNull HttpServletRequest request) throws AccessDeniedException {
+        checker.assertAccess(authorityHolder);
+      }
+    });
+    web.registerController(myPath, this);
+  }
+
+  @Override
+  protected ModelAndView doHandle(@NotNull final HttpServletRequest request,
+                                  @NotNull final HttpServletResponse response) throws Exception {
+    if (!isPost(request)) {
+      response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+      return null;
+    }
+
+    final String action = request.getParameter("nuget-reindex");
+    if ("start".equals(action)) {
+      myReindexer.start();
+    } else if ("stop".equals(action)) {
+      myReindexer.stop(true);
+    } else {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      return null;
+    }
+
+    response.setStatus(HttpServletResponse.SC_OK);
+    return null;
+  }
+}
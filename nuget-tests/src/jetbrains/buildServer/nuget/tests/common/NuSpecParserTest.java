@@ -0,0 +1,125 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.tests.common;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.common.NuSpec;
+import jetbrains.buildServer.nuget.common.NuSpecParser;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+public class NuSpecParserTest extends BaseTestCase {
+
+  @Test
+  public void test_namespaced() throws Exception {
+    final NuSpec nuspec = parse(
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+            "<package xmlns=\"http://schemas.microsoft.com/packaging/2011/08/nuspec.xsd\">\n" +
+            "  <metadata minClientVersion=\"2.5\">\n" +
+            "    <id>Foo</id>\n" +
+            "    <version>1.2.3</version>\n" +
+            "    <description>  Multi\n   line\tdescription  </description>\n" +
+            "    <title><![CDATA[Foo & Bar]]></title>\n" +
+            "  </metadata>\n" +
+            "</package>");
+
+    Assert.assertEquals(nuspec.getProperty("id"), "Foo");
+    Assert.assertEquals(nuspec.getProperty("version"), "1.2.3");
+    Assert.assertEquals(nuspec.getProperty("description"), "Multi line description");
+    Assert.assertEquals(nuspec.getProperty("title"), "Foo & Bar");
+    Assert.assertNull(nuspec.getProperty("tags"));
+    Assert.assertEquals(nuspec.getMetadataAttribute("minClientVersion"), "2.5");
+  }
+
+  @Test
+  public void test_no_namespace() throws Exception {
+    final NuSpec nuspec = parse("<package><metadata><id>Foo</id><version>1.0</version><tags/></metadata></package>");
+
+    Assert.assertEquals(nuspec.getProperty("id"), "Foo");
+    Assert.assertEquals(nuspec.getProperty("version"), "1.0");
+    Assert.assertEquals(nuspec.getProperty("tags"), "");
+    Assert.assertNull(nuspec.getMetadataAttribute("minClientVersion"));
+  }
+
+  @Test
+  public void test_dependencies() throws Exception {
+    final NuSpec nuspec = parse(
+            "<package><metadata>\n" +
+            "  <id>Foo</id>\n" +
+            "  <dependencies>\n" +
+            "    <group targetFramework=\"net40\">\n" +
+            "      <dependency id=\"A\" version=\"1.0\"/>\n" +
+            "      <dependency id=\"B\" version=\"[2.0]\"/>\n" +
+            "    </group>\n" +
+            "    <group>\n" +
+            "      <dependency id=\"C\" version=\"3.0\"/>\n" +
+            "    </group>\n" +
+            "    <dependency id=\"D\" version=\"4.0\"/>\n" +
+            "  </dependencies>\n" +
+            "  <version>1.0</version>\n" +
+            "</metadata></package>");
+
+    final List<NuSpec.Dependency> deps = nuspec.getDependencies();
+    Assert.assertEquals(deps.size(), 4);
+    assertDependency(deps.get(0), "D", "4.0", null);
+    assertDependency(deps.get(1), "A", "1.0", "net40");
+    assertDependency(deps.get(2), "B", "[2.0]", "net40");
+    assertDependency(deps.get(3), "C", "3.0", null);
+    Assert.assertEquals(nuspec.getProperty("version"), "1.0");
+    Assert.assertNull(nuspec.getProperty("dependencies"));
+  }
+
+  @Test
+  public void test_nested_elements_text() throws Exception {
+    final NuSpec nuspec = parse("<package><metadata><id>Foo</id><frameworkAssemblies><a>b</a></frameworkAssemblies></metadata></package>");
+
+    Assert.assertEquals(nuspec.getProperty("id"), "Foo");
+    Assert.assertEquals(nuspec.getProperty("frameworkAssemblies"), "");
+    Assert.assertNull(nuspec.getProperty("a"));
+  }
+
+  @Test
+  public void test_stops_after_metadata() throws Exception {
+    final NuSpec nuspec = parse("<package><metadata><id>Foo</id></metadata><files><file src=\"a\"></package>");
+    Assert.assertEquals(nuspec.getProperty("id"), "Foo");
+  }
+
+  @Test(expectedExceptions = XMLStreamException.class)
+  public void test_broken() throws Exception {
+    parse("<package><metadata><id>Foo</metadata></package>");
+  }
+
+  private static void assertDependency(@NotNull final NuSpec.Dependency dep,
+                                       @NotNull final String id,
+                                       @NotNull final String version,
+                                       final String targetFramework) {
+    Assert.assertEquals(dep.getId(), id);
+    Assert.assertEquals(dep.getVersion(), version);
+    Assert.assertEquals(dep.getTargetFramework(), targetFramework);
+  }
+
+  @NotNull
+  private static NuSpec parse(@NotNull final String text) throws XMLStreamException, UnsupportedEncodingException {
+    return NuSpecParser.parse(new ByteArrayInputStream(text.getBytes("utf-8")));
+  }
+}
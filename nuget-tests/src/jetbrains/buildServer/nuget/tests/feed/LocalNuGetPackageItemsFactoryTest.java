@@ -35,10 +35,14 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Created by Eugene Petrenko (eugene.petrenko@gmail.com)
@@ -47,6 +51,7 @@ import java.util.*;
 public class LocalNuGetPackageItemsFactoryTest extends BaseTestCase {
   private Mockery m;
   private Set<InputStream> myStreams;
+  private long myBytesRead;
   private LocalNuGetPackageItemsFactory myFactory;
 
   @BeforeMethod
@@ -55,6 +60,7 @@ public class LocalNuGetPackageItemsFactoryTest extends BaseTestCase {
     super.setUp();
     m = new Mockery();
     myStreams = new HashSet<InputStream>();
+    myBytesRead = 0;
     myFactory = new LocalNuGetPackageItemsFactory();
   }
 
@@ -75,7 +81,22 @@ public class LocalNuGetPackageItemsFactoryTest extends BaseTestCase {
         public Object invoke(Invocation invocation) throws Throwable {
           final FileInputStream stream = new FileInputStream(file);
           myStreams.add(stream);
-          return stream;
+          //skipped bytes are not counted
+          return new FilterInputStream(stream) {
+            @Override
+            public int read() throws IOException {
+              final int b = super.read();
+              if (b >= 0) myBytesRead++;
+              return b;
+            }
+
+            @Override
+            public int read(@NotNull byte[] b, int off, int len) throws IOException {
+              final int read = super.read(b, off, len);
+              if (read > 0) myBytesRead += read;
+              return read;
+            }
+          };
         }
       });
       allowing(a).getTimestamp(); will(returnValue(file.lastModified()));
@@ -125,6 +146,92 @@ public class LocalNuGetPackageItemsFactoryTest extends BaseTestCase {
   }
 
 
+  @Test
+  public void test_package_read_once() throws IOException, PackageLoadException {
+    final File pkg = Paths.getTestDataPath("packages/Ninject.MVC3.2.2.2.0.nupkg");
+    Assert.assertTrue(pkg.isFile());
+
+    final Map<String, String> aPackage = myFactory.loadPackage(artifact(pkg), new Date());
+    Assert.assertEquals(aPackage.get("PackageHash"), "vAG563nUohsNV8gsOOARPS3RJubWWSzUQ+JRLTne4yzE7/TR/rDjD1eS9klB682FvInUP2x48OuQoIgpwKqaIA==");
+    Assert.assertEquals(myBytesRead, pkg.length());
+  }
+
+  @Test
+  public void test_invalid_package_not_read_for_hash() throws IOException {
+    final File pkg = new File(createTempDir(), "Foo.1.0.0.nupkg");
+    final ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(pkg));
+    try {
+      zip.putNextEntry(new ZipEntry("Foo.nuspec"));
+      zip.write(("<?xml version=\"1.0\"?>\n" +
+              "<package xmlns=\"http://schemas.microsoft.com/packaging/2010/07/nuspec.xsd\">\n" +
+              "  <metadata>\n" +
+              "    <version>1.0.0</version>\n" +
+              "  </metadata>\n" +
+              "</package>").getBytes("utf-8"));
+      zip.closeEntry();
+      for (int i = 0; i < 1000; i++) {
+        zip.putNextEntry(new ZipEntry("content/file" + i + ".txt"));
+        zip.write(("content of file " + i).getBytes("utf-8"));
+        zip.closeEntry();
+      }
+    } finally {
+      zip.close();
+    }
+
+    try {
+      myFactory.loadPackage(artifact(pkg), new Date());
+      Assert.fail("package without Id");
+    } catch (PackageLoadException e) {
+      //expected
+    }
+    Assert.assertTrue(myBytesRead < pkg.length() / 2, "read " + myBytesRead + " of " + pkg.length());
+  }
+
+  @Test
+  public void test_local_file() throws IOException, PackageLoadException {
+    for (String name : Arrays.asList("Ninject.MVC3.2.2.2.0.nupkg", "PackageWithPlatformDependencies.3.0.0.nupkg", "Min.Version.Two.Five.1.0.0.nupkg")) {
+      final File pkg = Paths.getTestDataPath("packages/" + name);
+      Assert.assertTrue(pkg.isFile());
+
+      final BuildArtifact artifact = artifact(pkg);
+      final Map<String, String> fromFile = myFactory.loadPackage(artifact, pkg, new Date());
+      final Map<String, String> fromStream = myFactory.loadPackage(artifact, new Date());
+      Assert.assertEquals(store(fromFile), store(fromStream));
+    }
+  }
+
+  @Test
+  public void test_local_file_nuspec_last() throws IOException, PackageLoadException {
+    final File pkg = new File(createTempDir(), "Foo.1.0.0.nupkg");
+    final ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(pkg));
+    try {
+      for (int i = 0; i < 1000; i++) {
+        zip.putNextEntry(new ZipEntry("content/file" + i + ".txt"));
+        zip.write(("content of file " + i).getBytes("utf-8"));
+        zip.closeEntry();
+      }
+      zip.putNextEntry(new ZipEntry("Foo.nuspec"));
+      zip.write(("<?xml version=\"1.0\"?>\n" +
+              "<package xmlns=\"http://schemas.microsoft.com/packaging/2010/07/nuspec.xsd\">\n" +
+              "  <metadata>\n" +
+              "    <id>Foo</id>\n" +
+              "    <version>1.0.0</version>\n" +
+              "    <authors>Author</authors>\n" +
+              "    <description>Foo package</description>\n" +
+              "  </metadata>\n" +
+              "</package>").getBytes("utf-8"));
+      zip.closeEntry();
+    } finally {
+      zip.close();
+    }
+
+    final BuildArtifact artifact = artifact(pkg);
+    final Map<String, String> fromFile = myFactory.loadPackage(artifact, pkg, new Date());
+    Assert.assertEquals(fromFile.get("Id"), "Foo");
+    Assert.assertEquals(fromFile.get("Description"), "Foo package");
+    Assert.assertEquals(store(fromFile), store(myFactory.loadPackage(artifact, new Date())));
+  }
+
   @Test
   @TestFor(issues = "TW-21975")
   public void test_dependencies_20() throws InvocationTargetException, IllegalAccessException, PackageLoadException, IOException {
@@ -24,7 +24,9 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -52,6 +54,25 @@ public class NuGetJavaFeedContentPerformanceTest extends NuGetJavaFeedIntegratio
     do_test_list_packages(5000, 0.4, "?$filter=Id+eq+'Foo'");
   }
 
+  @Test
+  public void test_list_query_by_id_100000() throws IOException {
+    enablePackagesIndexSorting();
+    NuGetIndexEntry base = addPackage(Paths.getTestDataPath("/packages/CommonServiceLocator.1.0.nupkg"), true);
+    for(int i = 1; i < 100000; i ++) {
+      final Map<String, String> attributes = new HashMap<String, String>(base.getAttributes());
+      attributes.put(NuGetIndexEntry.ID, "Package" + (i % 10000));
+      addMockPackage(new NuGetIndexEntry(base.getKey(), attributes), false);
+    }
+
+    final AtomicReference<String> s = new AtomicReference<String>();
+    assertTime(0.1, "aaa", 5, new Runnable() {
+      public void run() {
+        s.set(openRequest("Packages()?$filter=Id+eq+'Package42'"));
+      }
+    });
+    Assert.assertTrue(s.get().contains("Package42"), s.get());
+  }
+
   @Test
   public void test_list_query_search_5000() throws IOException {
     do_test_list_packages(
@@ -74,6 +95,24 @@ public class NuGetJavaFeedContentPerformanceTest extends NuGetJavaFeedIntegratio
                     "&$top=30");
   }
 
+  @Test
+  public void test_list_query_search_50000_sorted() throws IOException {
+    enablePackagesIndexSorting();
+    do_test_list_packages(
+            50000,
+            0.1,
+            "?$filter=(((Id%20ne%20null)%20and%20substringof('mm',tolower(Id)))%20or%20((Description%20ne%20null)%20and%20substringof('mm',tolower(Description))))%20or%20((Tags%20ne%20null)%20and%20substringof('%20mm%20',tolower(Tags)))" +
+                    "&$orderby=Id" +
+                    "&$skip=0" +
+                    "&$top=30");
+  }
+
+  @Test
+  public void test_list_skip_50000_sorted() throws IOException {
+    enablePackagesIndexSorting();
+    do_test_list_packages(50000, 0.1, "?$skip=40000&$top=30");
+  }
+
   @Test
   public void test_list_isLatestVersion_50000() throws IOException {
     do_test_list_packages(
@@ -25,6 +25,7 @@ import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.TestFor;
 import jetbrains.buildServer.util.XmlUtil;
 import org.jdom.*;
+import org.apache.http.message.BasicNameValuePair;
 import org.jdom.xpath.XPath;
 import org.jetbrains.annotations.NotNull;
 import org.testng.Assert;
@@ -144,6 +145,56 @@ public class NuGetJavaFeedContentTest extends NuGetJavaFeedIntegrationTestBase {
     Assert.assertEquals(s, "1");
   }
 
+  @Test
+  public void testFindPackagesById() throws IOException {
+    addMockPackage("Foo", "1.0");
+    addMockPackage("Foo", "1.1");
+    addMockPackage("Bar", "1.0");
+
+    final String s = openRequest("FindPackagesById()", new BasicNameValuePair("id", "'foo'"));
+    Assert.assertTrue(s.contains("<d:Version>1.0</d:Version>"), s);
+    Assert.assertTrue(s.contains("<d:Version>1.1</d:Version>"), s);
+    Assert.assertFalse(s.contains("<d:Id>Bar</d:Id>"), s);
+  }
+
+  @Test
+  public void testSearch() throws IOException {
+    enablePackagesIndexSorting();
+    addMockPackage("Foo", "1.0");
+    addMockPackage("Foo", "1.1-beta");
+    addMockPackage("Bar", "1.0");
+
+    final String s = openRequest("Search()",
+            new BasicNameValuePair("searchTerm", "'foo'"),
+            new BasicNameValuePair("targetFramework", "''"),
+            new BasicNameValuePair("includePrerelease", "false"));
+    Assert.assertTrue(s.contains("<d:Version>1.0</d:Version>"), s);
+    Assert.assertFalse(s.contains("<d:Version>1.1-beta</d:Version>"), s);
+    Assert.assertFalse(s.contains("<d:Id>Bar</d:Id>"), s);
+
+    final String count = openRequest("Search()/$count",
+            new BasicNameValuePair("searchTerm", "'foo bar'"),
+            new BasicNameValuePair("includePrerelease", "true"));
+    Assert.assertEquals(count, "3");
+  }
+
+  @Test
+  public void testGetUpdates() throws IOException {
+    addMockPackage("Foo", "1.0");
+    addMockPackage("Foo", "1.1");
+    addMockPackage("Foo", "1.2");
+    addMockPackage("Bar", "1.0");
+
+    final String s = openRequest("GetUpdates()",
+            new BasicNameValuePair("packageIds", "'Foo|Bar'"),
+            new BasicNameValuePair("versions", "'1.0|1.0'"),
+            new BasicNameValuePair("includePrerelease", "false"),
+            new BasicNameValuePair("includeAllVersions", "false"));
+    Assert.assertTrue(s.contains("<d:Version>1.2</d:Version>"), s);
+    Assert.assertFalse(s.contains("<d:Version>1.1</d:Version>"), s);
+    Assert.assertFalse(s.contains("<d:Id>Bar</d:Id>"), s);
+  }
+
 
   @Test
   public void testVSRequests() {
@@ -21,13 +21,17 @@ import jetbrains.buildServer.nuget.server.feed.server.NuGetServerSettings;
 import jetbrains.buildServer.nuget.server.feed.server.impl.NuGetServerSettingsImpl;
 import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
 import jetbrains.buildServer.nuget.server.feed.server.index.PackagesIndex;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.IndexedPackages;
 import jetbrains.buildServer.nuget.server.feed.server.index.impl.PackagesIndexImpl;
 import jetbrains.buildServer.nuget.server.feed.server.index.impl.transform.DownloadUrlComputationTransformation;
 import jetbrains.buildServer.nuget.server.feed.server.index.impl.transform.IsPrereleaseTransformation;
 import jetbrains.buildServer.nuget.server.feed.server.javaFeed.NuGetProducer;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache.ResponseCacheReset;
 import jetbrains.buildServer.nuget.tests.integration.Paths;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.metadata.BuildMetadataEntry;
 import jetbrains.buildServer.serverSide.metadata.MetadataStorage;
+import jetbrains.buildServer.util.EventDispatcher;
 import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
 import org.jmock.api.Invocation;
@@ -78,7 +82,54 @@ public class NuGetJavaFeedIntegrationTestBase extends NuGetFeedIntegrationTestBa
           return getPackages();
         }
       });
+      allowing(myIndexProxy).getNuGetEntries(with(any(String.class))); will(new CustomAction("lazy return packages by id") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return myActualIndex.getNuGetEntries((String) invocation.getParameter(0));
+        }
+      });
+      allowing(myIndexProxy).getLatestNuGetEntries(); will(new CustomAction("lazy return latest packages") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return myActualIndex.getLatestNuGetEntries();
+        }
+      });
+      allowing(myIndexProxy).searchNuGetEntries(with(any(Collection.class)), with(any(boolean.class))); will(new CustomAction("lazy search packages") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return myActualIndex.searchNuGetEntries((Collection<String>) invocation.getParameter(0), (Boolean) invocation.getParameter(1));
+        }
+      });
+      allowing(myIndexProxy).isSorted(); will(new CustomAction("lazy return is sorted") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return myActualIndex.isSorted();
+        }
+      });
+      allowing(myIndex).isSorted(); will(returnValue(false));
+      allowing(myIndex).searchNuGetEntries(with(any(Collection.class)), with(any(boolean.class))); will(new CustomAction("search packages") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          //the result is filtered anyway
+          return (Boolean) invocation.getParameter(1) ? myIndex.getLatestNuGetEntries() : myIndex.getNuGetEntries();
+        }
+      });
       allowing(myIndex).getNuGetEntries(); will(returnIterator(myFeed));
+      allowing(myIndex).getLatestNuGetEntries(); will(new CustomAction("return latest packages") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          final List<NuGetIndexEntry> result = new ArrayList<NuGetIndexEntry>();
+          for (NuGetIndexEntry e : myFeed) {
+            final Map<String, String> attributes = e.getAttributes();
+            if (Boolean.valueOf(attributes.get("IsLatestVersion")) || Boolean.valueOf(attributes.get("IsAbsoluteLatestVersion"))) result.add(e);
+          }
+          return result.iterator();
+        }
+      });
+      allowing(myIndex).getNuGetEntries(with(any(String.class))); will(new CustomAction("return packages by id") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          final String id = (String) invocation.getParameter(0);
+          final List<NuGetIndexEntry> result = new ArrayList<NuGetIndexEntry>();
+          for (NuGetIndexEntry e : myFeed) {
+            if (id.equalsIgnoreCase(e.getAttributes().get(NuGetIndexEntry.ID))) result.add(e);
+          }
+          return result.iterator();
+        }
+      });
       allowing(mySettings).getNuGetFeedControllerPath(); will(returnValue(NuGetServerSettingsImpl.PATH));
 
       allowing(myMetadataStorage).getAllEntries(NUGET_PROVIDER_ID); will(new CustomAction("transform entries") {
@@ -120,8 +171,13 @@ public class NuGetJavaFeedIntegrationTestBase extends NuGetFeedIntegrationTestBa
   }
 
   public void enablePackagesIndexSorting() {
+    final ResponseCacheReset reset = m.mock(ResponseCacheReset.class);
+    m.checking(new Expectations() {{
+      ignoring(reset);
+    }});
     setPackagesIndex(new PackagesIndexImpl(
             myMetadataStorage,
+            new IndexedPackages(myMetadataStorage, reset, EventDispatcher.create(BuildServerListener.class)),
             Arrays.asList(
               new IsPrereleaseTransformation(),
               new MockExternalIdTransformation(),
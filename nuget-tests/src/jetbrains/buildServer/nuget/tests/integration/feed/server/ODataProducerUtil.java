@@ -17,11 +17,15 @@
 package jetbrains.buildServer.nuget.tests.integration.feed.server;
 
 import com.sun.jersey.api.container.filter.LoggingFilter;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.PackagesRequestResource;
 import org.odata4j.jersey.producer.server.JerseyServer;
-import org.odata4j.producer.resources.DefaultODataApplication;
+import org.odata4j.producer.resources.AbstractODataApplication;
+import org.odata4j.producer.resources.DefaultODataProducerProvider;
 import org.odata4j.producer.resources.RootApplication;
 import org.odata4j.producer.server.ODataServer;
 
+import java.util.Set;
+
 /**
  * Created by Eugene Petrenko (eugene.petrenko@gmail.com)
  * Date: 05.01.12 0:04
@@ -32,7 +36,7 @@ public class ODataProducerUtil {
   }
 
   public static ODataServer createODataServer(String baseUri) {
-    return new JerseyServer(baseUri, DefaultODataApplication.class, RootApplication.class)
+    return new JerseyServer(baseUri, NuGetTestODataApplication.class, RootApplication.class)
             .addJerseyRequestFilter(LoggingFilter.class) // log all requests
             ;
   }
@@ -40,4 +44,16 @@ public class ODataProducerUtil {
   public static ODataServer startODataServer(String baseUri) {
     return createODataServer(baseUri).start();
   }
+
+  /**
+   * Same resources as in the NuGet feed application, the producer is taken from {@link DefaultODataProducerProvider}
+   */
+  public static class NuGetTestODataApplication extends AbstractODataApplication {
+    @Override
+    public Set<Class<?>> getClasses() {
+      final Set<Class<?>> classes = PackagesRequestResource.replaceResources(super.getClasses());
+      classes.add(DefaultODataProducerProvider.class);
+      return classes;
+    }
+  }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.tests.server.feed.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.MetadataValuesPool;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class MetadataValuesPoolTest extends BaseTestCase {
+  @Test
+  public void test_same_instance() {
+    final MetadataValuesPool pool = new MetadataValuesPool(100);
+    final String v1 = new String("JetBrains");
+    final String v2 = new String("JetBrains");
+
+    Assert.assertSame(pool.getValue(v1), v1);
+    Assert.assertSame(pool.getValue(v2), v1);
+    Assert.assertEquals(pool.size(), 1);
+  }
+
+  @Test
+  public void test_metadata() {
+    final MetadataValuesPool pool = new MetadataValuesPool(100);
+    final Map<String, String> m1 = createMetadata("1.0");
+    final Map<String, String> m2 = createMetadata("1.1");
+
+    final Map<String, String> p1 = pool.getMetadata(m1);
+    final Map<String, String> p2 = pool.getMetadata(m2);
+
+    Assert.assertEquals(p1, m1);
+    Assert.assertEquals(p2, m2);
+    Assert.assertSame(p2.get("Authors"), p1.get("Authors"));
+    Assert.assertSame(p2.get("Id"), p1.get("Id"));
+    Assert.assertSame(p2.get("PackageHash"), m2.get("PackageHash"));
+  }
+
+  @Test
+  public void test_bounded() {
+    final MetadataValuesPool pool = new MetadataValuesPool(10);
+    for (int i = 0; i < 100; i++) {
+      pool.getValue("value" + i);
+      Assert.assertTrue(pool.size() <= 10);
+    }
+  }
+
+  private static Map<String, String> createMetadata(String version) {
+    final Map<String, String> map = new HashMap<String, String>();
+    map.put("Id", new String("Foo"));
+    map.put("Version", version);
+    map.put("Authors", new String("JetBrains"));
+    map.put("PackageHash", new String("hash"));
+    return map;
+  }
+}
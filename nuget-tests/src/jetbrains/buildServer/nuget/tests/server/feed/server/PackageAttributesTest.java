@@ -0,0 +1,98 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.tests.server.feed.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.PackageAttributes;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+public class PackageAttributesTest extends BaseTestCase {
+  @Test
+  public void test_put_get() {
+    final Map<String, String> map = new PackageAttributes();
+    Assert.assertTrue(map.isEmpty());
+    Assert.assertNull(map.put("Id", "Foo"));
+    Assert.assertNull(map.put("Version", "1.0"));
+    Assert.assertEquals(map.put("Version", "1.1"), "1.0");
+
+    Assert.assertEquals(map.size(), 2);
+    Assert.assertEquals(map.get("Id"), "Foo");
+    Assert.assertEquals(map.get("Version"), "1.1");
+    Assert.assertNull(map.get("unknown-attribute-" + System.nanoTime()));
+    Assert.assertNull(map.get(42));
+    Assert.assertTrue(map.containsKey("Id"));
+  }
+
+  @Test
+  public void test_remove() {
+    final Map<String, String> map = new PackageAttributes();
+    map.put("Id", "Foo");
+    map.put("Version", "1.0");
+
+    Assert.assertEquals(map.remove("Id"), "Foo");
+    Assert.assertNull(map.remove("Id"));
+    Assert.assertFalse(map.containsKey("Id"));
+    Assert.assertEquals(map.size(), 1);
+
+    map.put("Version", null);
+    Assert.assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void test_equals_hash_map() {
+    final Map<String, String> expected = new HashMap<String, String>();
+    expected.put("Id", "Foo");
+    expected.put("Version", "1.0");
+    expected.put("Authors", "Eugene");
+
+    final Map<String, String> map = new PackageAttributes(expected);
+    Assert.assertEquals(map, expected);
+    Assert.assertEquals(expected, map);
+    Assert.assertEquals(map.hashCode(), expected.hashCode());
+    Assert.assertEquals(new HashMap<String, String>(map), expected);
+  }
+
+  @Test
+  public void test_copy_is_independent() {
+    final PackageAttributes map = new PackageAttributes();
+    map.put("Id", "Foo");
+
+    final Map<String, String> copy = new PackageAttributes(map);
+    copy.put("Id", "Bar");
+    copy.put("new-attribute-" + System.nanoTime(), "value");
+
+    Assert.assertEquals(map.get("Id"), "Foo");
+    Assert.assertEquals(map.size(), 1);
+    Assert.assertEquals(copy.get("Id"), "Bar");
+    Assert.assertEquals(copy.size(), 2);
+  }
+
+  @Test
+  public void test_iterator_remove() {
+    final Map<String, String> map = new PackageAttributes();
+    map.put("Id", "Foo");
+    map.put("Version", "1.0");
+
+    for (Iterator<Map.Entry<String, String>> it = map.entrySet().iterator(); it.hasNext(); ) {
+      if (it.next().getKey().equals("Id")) it.remove();
+    }
+    Assert.assertEquals(map, Collections.singletonMap("Version", "1.0"));
+  }
+}
@@ -20,19 +20,25 @@ import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.nuget.server.feed.server.NuGetServerSettings;
 import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
 import jetbrains.buildServer.nuget.server.feed.server.index.PackagesIndex;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.IndexedPackage;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.IndexedPackages;
 import jetbrains.buildServer.nuget.server.feed.server.index.impl.PackagesIndexImpl;
 import jetbrains.buildServer.nuget.server.feed.server.index.impl.transform.AccessCheckTransformation;
 import jetbrains.buildServer.nuget.server.feed.server.index.impl.transform.DownloadUrlComputationTransformation;
 import jetbrains.buildServer.nuget.server.feed.server.index.impl.transform.IsPrereleaseTransformation;
 import jetbrains.buildServer.nuget.server.feed.server.index.impl.transform.SamePackagesFilterTransformation;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache.ResponseCacheReset;
 import jetbrains.buildServer.nuget.server.feed.server.javaFeed.entity.PackageEntityAdapter;
 import jetbrains.buildServer.nuget.tests.integration.feed.server.MockExternalIdTransformation;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SFinishedBuild;
 import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
 import jetbrains.buildServer.serverSide.auth.Permission;
 import jetbrains.buildServer.serverSide.auth.SecurityContext;
 import jetbrains.buildServer.serverSide.metadata.BuildMetadataEntry;
 import jetbrains.buildServer.serverSide.metadata.MetadataStorage;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.TestFor;
 import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
@@ -55,7 +61,10 @@ public class PackageIndexTest extends BaseTestCase {
   private SecurityContext myContext;
   private AuthorityHolder myAuthorityHolder;
   private PackagesIndex myIndex;
+  private IndexedPackages myPackages;
+  private EventDispatcher<BuildServerListener> myDispatcher;
   private MetadataStorage myStorage;
+  private ResponseCacheReset myReset;
   private List<BuildMetadataEntry> myEntries;
 
   @BeforeMethod
@@ -67,12 +76,16 @@ public class PackageIndexTest extends BaseTestCase {
     myContext = m.mock(SecurityContext.class);
     myAuthorityHolder = m.mock(AuthorityHolder.class);
     myStorage = m.mock(MetadataStorage.class);
+    myReset = m.mock(ResponseCacheReset.class);
     final NuGetServerSettings serverSettings = m.mock(NuGetServerSettings.class);
     m.checking(new Expectations(){{
       allowing(serverSettings).getNuGetFeedControllerPath(); will(returnValue("foo"));
     }});
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myPackages = new IndexedPackages(myStorage, myReset, myDispatcher);
     myIndex = new PackagesIndexImpl(
             myStorage,
+            myPackages,
             Arrays.asList(
                     new SamePackagesFilterTransformation(),
                     new AccessCheckTransformation(myProjectManager, myContext),
@@ -237,6 +250,234 @@ public class PackageIndexTest extends BaseTestCase {
     assertPackagesCollection(FlagMode.IsLatest, "Foo.1.2.36"); //first entry in list
   }
 
+  @Test
+  public void test_index_add_package() {
+    allowView();
+    addEntry("Foo", "1.2.34", "btX", 7);
+    assertPackages("Foo.1.2.34:L:A");
+
+    final Map<String, String> data = new TreeMap<String, String>();
+    data.put("teamcity.buildTypeId", "btX");
+    data.put("teamcity.artifactPath", "btX/ZZZ");
+    data.put("Version", "1.2.35");
+    data.put("Id", "Foo");
+    myPackages.addPackage(new IndexedPackage("Foo.1.2.35", 8, data));
+
+    assertPackages("Foo.1.2.35:L:A", "Foo.1.2.34");
+  }
+
+  @Test
+  public void test_index_remove_build() {
+    allowView();
+    addEntry("Foo", "1.2.34", "btX", 7);
+    addEntry("Foo", "1.2.35", "btX", 8);
+    assertPackages("Foo.1.2.35:L:A", "Foo.1.2.34");
+
+    final SFinishedBuild build = m.mock(SFinishedBuild.class);
+    m.checking(new Expectations(){{
+      allowing(build).getBuildId(); will(returnValue(8L));
+      oneOf(myReset).resetPackage("Foo");
+    }});
+    myDispatcher.getMulticaster().entryDeleted(build);
+
+    assertPackages("Foo.1.2.34:L:A");
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void test_index_remove_build_resets_cache_before_loaded() {
+    allowView();
+    addEntry("Foo", "1.2.34", "btX", 7);
+    m.checking(new Expectations(){{
+      oneOf(myReset).resetCache();
+    }});
+    myPackages.removeBuild(7);
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void test_index_remove_build_without_packages() {
+    allowView();
+    addEntry("Foo", "1.2.34", "btX", 7);
+    assertPackages("Foo.1.2.34:L:A");
+
+    m.checking(new Expectations(){{
+      never(myReset);
+    }});
+    myPackages.removeBuild(8);
+    assertPackages("Foo.1.2.34:L:A");
+  }
+
+  @Test
+  public void test_index_reloaded_after_cleanup() {
+    allowView();
+    addEntry("Foo", "1.2.34", "btX", 7);
+    assertPackages("Foo.1.2.34:L:A");
+
+    addEntry("Foo", "1.2.35", "btX", 8);
+    assertPackages("Foo.1.2.34:L:A");
+
+    myDispatcher.getMulticaster().cleanupFinished();
+    assertPackages("Foo.1.2.35:L:A", "Foo.1.2.34");
+  }
+
+  @Test
+  public void test_index_by_id() {
+    allowView();
+    addEntry("Foo", "1.2.34", "btX", 7);
+    addEntry("Foo", "1.2.35", "btX", 8);
+    addEntry("FOO", "1.0.0", "btX", 9);
+    addEntry("Bar", "1.2.36", "btX", 10);
+
+    assertPackages(myIndex.getNuGetEntries("foo"), "Foo.1.2.35:L:A", "Foo.1.2.34", "FOO.1.0.0:L:A");
+    assertPackages(myIndex.getNuGetEntries("Bar"), "Bar.1.2.36:L:A");
+    assertPackages(myIndex.getNuGetEntries("Foo.1"));
+  }
+
+  @Test
+  public void test_index_by_id_updated() {
+    allowView();
+    addEntry("Foo", "1.2.34", "btX", 7);
+    assertPackages(myIndex.getNuGetEntries("foo"), "Foo.1.2.34:L:A");
+
+    final Map<String, String> data = new TreeMap<String, String>();
+    data.put("teamcity.buildTypeId", "btX");
+    data.put("teamcity.artifactPath", "btX/ZZZ");
+    data.put("Version", "1.2.35");
+    data.put("Id", "Foo");
+    myPackages.addPackage(new IndexedPackage("Foo.1.2.35", 8, data));
+    assertPackages(myIndex.getNuGetEntries("foo"), "Foo.1.2.35:L:A", "Foo.1.2.34");
+
+    m.checking(new Expectations(){{
+      allowing(myReset).resetPackage(with(any(String.class)));
+    }});
+    myPackages.removeBuild(7);
+    myPackages.removeBuild(8);
+    assertPackages(myIndex.getNuGetEntries("foo"));
+  }
+
+  @Test
+  public void test_search() {
+    allowView();
+    addEntry("Foo", "1.2.34", "btX", 7);
+    addEntry("Foo", "1.2.35", "btX", 8);
+    addEntry("FooBar", "1.0", "btX", 9);
+    addEntry("Bar", "1.0", "btX", 10);
+
+    assertPackages(myIndex.searchNuGetEntries(Arrays.asList("foo"), false), "Foo.1.2.35:L:A", "Foo.1.2.34", "FooBar.1.0:L:A");
+    assertPackages(myIndex.searchNuGetEntries(Arrays.asList("OOB"), false), "FooBar.1.0:L:A");
+    assertPackages(myIndex.searchNuGetEntries(Arrays.asList("oo", "bar"), true), "Foo.1.2.35:L:A", "FooBar.1.0:L:A", "Bar.1.0:L:A");
+    assertPackages(myIndex.searchNuGetEntries(Arrays.asList("qux"), false));
+    assertPackagesSorted(myIndex.searchNuGetEntries(Arrays.asList("bar"), false), "Bar.1.0", "FooBar.1.0");
+
+    //terms that are too short are not searched in the index
+    assertPackages(myIndex.searchNuGetEntries(Arrays.asList("q"), true), "Foo.1.2.35:L:A", "FooBar.1.0:L:A", "Bar.1.0:L:A");
+  }
+
+  @Test
+  public void test_search_updated() {
+    allowView();
+    addEntry("Foo", "1.2.34", "btX", 7);
+    assertPackages(myIndex.searchNuGetEntries(Arrays.asList("search"), false));
+
+    final Map<String, String> data = new TreeMap<String, String>();
+    data.put("teamcity.buildTypeId", "btX");
+    data.put("teamcity.artifactPath", "btX/ZZZ");
+    data.put("Version", "1.2.35");
+    data.put("Id", "Foo");
+    data.put("Description", "Package to Search for");
+    myPackages.addPackage(new IndexedPackage("Foo.1.2.35", 8, data));
+    assertPackages(myIndex.searchNuGetEntries(Arrays.asList("search"), false), "Foo.1.2.35:L:A", "Foo.1.2.34");
+
+    m.checking(new Expectations(){{
+      allowing(myReset).resetPackage(with(any(String.class)));
+    }});
+    myPackages.removeBuild(8);
+    assertPackages(myIndex.searchNuGetEntries(Arrays.asList("search"), false));
+    assertPackages(myIndex.searchNuGetEntries(Arrays.asList("foo"), false), "Foo.1.2.34:L:A");
+  }
+
+  @Test
+  public void test_search_turkish_locale() {
+    allowView();
+    final Locale locale = Locale.getDefault();
+    Locale.setDefault(new Locale("tr", "TR"));
+    try {
+      addEntry("IIS.Tools", "1.0", "btX", 7);
+      assertPackages(myIndex.searchNuGetEntries(Arrays.asList("iis"), false), "IIS.Tools.1.0:L:A");
+      assertPackages(myIndex.searchNuGetEntries(Arrays.asList("IIS"), false), "IIS.Tools.1.0:L:A");
+    } finally {
+      Locale.setDefault(locale);
+    }
+  }
+
+  @Test
+  public void test_search_after_package_removed() {
+    allowView();
+    addEntry("Foo", "1.0", "btX", 7);
+    assertPackages(myIndex.searchNuGetEntries(Arrays.asList("foo"), false), "Foo.1.0:L:A");
+
+    final Map<String, String> data = new TreeMap<String, String>();
+    data.put("teamcity.buildTypeId", "btX");
+    data.put("teamcity.artifactPath", "btX/ZZZ");
+    data.put("Version", "1.0");
+    data.put("Id", "Qux");
+    myPackages.addPackage(new IndexedPackage("Qux.1.0", 8, data));
+    m.checking(new Expectations(){{
+      oneOf(myReset).resetPackage("Qux");
+    }});
+    myPackages.removeBuild(8);
+
+    final Map<String, String> data2 = new TreeMap<String, String>(data);
+    data2.put("Id", "Baz");
+    myPackages.addPackage(new IndexedPackage("Baz.1.0", 9, data2));
+
+    assertPackages(myIndex.searchNuGetEntries(Arrays.asList("qux"), false));
+    assertPackages(myIndex.searchNuGetEntries(Arrays.asList("baz"), false), "Baz.1.0:L:A");
+    assertPackages(myIndex.searchNuGetEntries(Arrays.asList("foo"), false), "Foo.1.0:L:A");
+  }
+
+  @Test
+  public void test_latest_entries() {
+    allowView();
+    addEntry("Foo", "1.2.34-alpha", "btX", 7);
+    addEntry("Foo", "1.2.32", "btX", 8);
+    addEntry("Foo", "1.2.36", "btX", 10);
+    addEntry("Foo", "1.2.37-b", "btX", 12);
+    addEntry("Bar", "1.0.0", "btX", 13);
+    addEntry("Bar", "1.0.0", "btY", 14);
+    addEntry("Bar", "0.9", "btX", 15);
+
+    assertPackages(myIndex.getLatestNuGetEntries(), "Foo.1.2.36:L", "Foo.1.2.37-b:A", "Bar.1.0.0:L:A");
+    Assert.assertEquals(myIndex.getLatestNuGetEntries().next().getAttributes().get("teamcity.buildTypeId"), "btY");
+  }
+
+  @Test
+  public void test_latest_entries_prerelease_only() {
+    allowView();
+    addEntry("Foo", "1.2.34-alpha", "btX", 7);
+    addEntry("Foo", "1.2.34-beta", "btX", 8);
+
+    assertPackages(myIndex.getLatestNuGetEntries(), "Foo.1.2.34-beta:A");
+  }
+
+  @Test
+  public void test_latest_entries_access() {
+    m.checking(new Expectations(){{
+      allowing(myProjectManager).findProjectId("btX"); will(returnValue("proj1"));
+      allowing(myProjectManager).findProjectId("btY"); will(returnValue("proj2"));
+      allowing(myAuthorityHolder).isPermissionGrantedForProject("proj1", Permission.VIEW_PROJECT); will(returnValue(true));
+      allowing(myAuthorityHolder).isPermissionGrantedForProject("proj2", Permission.VIEW_PROJECT); will(returnValue(false));
+    }});
+    addEntry("Foo", "1.2.34", "btX", 7);
+    addEntry("Foo", "1.2.35-beta", "btX", 8);
+    addEntry("Foo", "1.2.36", "btY", 9);
+    addEntry("Foo", "1.2.37-beta", "btY", 10);
+
+    assertPackages(myIndex.getLatestNuGetEntries(), "Foo.1.2.34:L", "Foo.1.2.35-beta:A");
+    assertPackages("Foo.1.2.34:L", "Foo.1.2.35-beta:A");
+  }
+
   private void allowView() {
     m.checking(new Expectations(){{
       allowing(myProjectManager).findProjectId(with(any(String.class))); will(returnValue("proj1"));
@@ -358,8 +599,10 @@ public class PackageIndexTest extends BaseTestCase {
   }
 
   private void assertPackages(@NotNull String... idsEx) {
-    final Iterator<NuGetIndexEntry> it = myIndex.getNuGetEntries();
+    assertPackages(myIndex.getNuGetEntries(), idsEx);
+  }
 
+  private void assertPackages(@NotNull Iterator<NuGetIndexEntry> it, @NotNull String... idsEx) {
     final Set<String> packages = new TreeSet<String>();
     Collections.addAll(packages, idsEx);
 
@@ -372,8 +615,10 @@ public class PackageIndexTest extends BaseTestCase {
   }
 
   private void assertPackagesSorted(@NotNull String... idsEx) {
-    final Iterator<NuGetIndexEntry> it = myIndex.getNuGetEntries();
+    assertPackagesSorted(myIndex.getNuGetEntries(), idsEx);
+  }
 
+  private void assertPackagesSorted(@NotNull Iterator<NuGetIndexEntry> it, @NotNull String... idsEx) {
     int idx = 0;
     while(it.hasNext()) {
       final NuGetIndexEntry p = it.next();
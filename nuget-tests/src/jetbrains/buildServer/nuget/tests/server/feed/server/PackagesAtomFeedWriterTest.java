@@ -0,0 +1,285 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.tests.server.feed.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.server.feed.server.NuGetServerSettings;
+import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
+import jetbrains.buildServer.nuget.server.feed.server.index.PackagesIndex;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.ODataDataFormat;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.ManualXMLWriter3;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.NuGetProducer;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.format.PackagesAtomFeedWriter;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.joda.time.DateTimeUtils;
+import org.odata4j.core.OEntity;
+import org.odata4j.core.OProperty;
+import org.odata4j.format.xml.AtomFeedFormatWriter;
+import org.odata4j.producer.EntitiesResponse;
+import org.odata4j.producer.InlineCount;
+import org.odata4j.producer.QueryInfo;
+import org.odata4j.stax2.XMLFactoryProvider2;
+import org.odata4j.stax2.XMLWriter2;
+import org.odata4j.stax2.XMLWriterFactory2;
+import org.odata4j.stax2.domimpl.DomXMLFactoryProvider2;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.util.*;
+
+public class PackagesAtomFeedWriterTest extends BaseTestCase {
+  private static final String FEED_PATH = "/app/nuget/v1/FeedService.svc";
+
+  private Mockery m;
+  private List<NuGetIndexEntry> myEntries;
+  private NuGetProducer myProducer;
+  private String myBaseUri;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myEntries = new ArrayList<NuGetIndexEntry>();
+    myBaseUri = "http://localhost:8111" + FEED_PATH + "/";
+    final PackagesIndex index = m.mock(PackagesIndex.class);
+    final NuGetServerSettings settings = m.mock(NuGetServerSettings.class);
+    m.checking(new Expectations() {{
+      allowing(index).getNuGetEntries(); will(new CustomAction("return packages") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return myEntries.iterator();
+        }
+      });
+      allowing(index).isSorted(); will(returnValue(false));
+      allowing(settings).getNuGetFeedControllerPath(); will(returnValue(FEED_PATH));
+    }});
+    myProducer = new NuGetProducer(index, settings);
+
+    XMLFactoryProvider2.setInstance(new DomXMLFactoryProvider2() {
+      @Override
+      public XMLWriterFactory2 newXMLWriterFactory2() {
+        return new XMLWriterFactory2() {
+          public XMLWriter2 createXMLWriter(Writer writer) {
+            return new ManualXMLWriter3(writer);
+          }
+        };
+      }
+    });
+  }
+
+  @Test
+  public void test_same_as_odata4j() throws Exception {
+    addEntry("Foo", "1.0.0");
+    addEntry("Bar", "2.0.0-beta");
+    assertSameFeed(query(null, null));
+  }
+
+  @Test
+  public void test_escaping() throws Exception {
+    final Map<String, String> attributes = addEntry("Foo<&>", "1.0.0");
+    attributes.put("Description", "Quotes \" and ' \u043f\u0440\u0438\u0432\u0435\u0442 \ud83d\ude00 \ud83d <b>&amp;</b>");
+    attributes.put("Authors", "A&B");
+    attributes.put("Tags", "");
+    assertSameFeed(query(null, null));
+  }
+
+  @Test
+  public void test_missing_values() throws Exception {
+    final Map<String, String> attributes = addEntry("Foo", "1.0.0");
+    attributes.remove("Authors");
+    attributes.remove(PackagesIndex.TEAMCITY_DOWNLOAD_URL);
+    assertSameFeed(query(null, null));
+  }
+
+  @Test
+  public void test_count_and_next_link() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      addEntry("Foo", "1.0." + i);
+    }
+    final EntitiesResponse response = myProducer.getProducer().getEntities("Packages", query(2, InlineCount.ALLPAGES));
+    Assert.assertEquals(response.getInlineCount(), Integer.valueOf(5));
+    Assert.assertNotNull(response.getSkipToken());
+    assertSameFeed(response);
+  }
+
+  @Test
+  public void test_empty_feed() throws Exception {
+    assertSameFeed(query(null, null));
+  }
+
+  @Test
+  public void test_entity_properties_are_available() throws Exception {
+    addEntry("Foo", "1.0.0");
+    final EntitiesResponse response = myProducer.getProducer().getEntities("Packages", query(null, null));
+    final OEntity entity = response.getEntities().get(0);
+
+    final Map<String, Object> properties = new HashMap<String, Object>();
+    for (OProperty<?> property : entity.getProperties()) {
+      properties.put(property.getName(), property.getValue());
+    }
+    Assert.assertEquals(properties.get("Id"), "Foo");
+    Assert.assertEquals(properties.get("Version"), "1.0.0");
+    Assert.assertEquals(entity.getEntityKey().toKeyString(), "(Id='Foo',Version='1.0.0')");
+  }
+
+  @Test
+  public void test_cached_entries() throws Exception {
+    addEntry("Foo", "1.0.0");
+    addEntry("Foo", "1.1.0");
+    assertSameFeed(query(null, null));
+    assertSameFeed(query(null, null));
+  }
+
+  @Test
+  public void test_cached_entries_latest_flags() throws Exception {
+    final Map<String, String> first = addEntry("Foo", "1.0.0");
+    final Map<String, String> second = addEntry("Foo", "1.1.0");
+    first.put("IsAbsoluteLatestVersion", "true");
+    assertSameFeed(query(null, null));
+
+    first.put("IsLatestVersion", "false");
+    first.put("IsAbsoluteLatestVersion", "false");
+    second.put("IsAbsoluteLatestVersion", "true");
+    Assert.assertTrue(assertSameFeed(query(null, null)).contains("<d:IsAbsoluteLatestVersion m:type=\"Edm.Boolean\">true</d:IsAbsoluteLatestVersion><d:Title>Foo</d:Title><d:ReleaseNotes></d:ReleaseNotes>"));
+  }
+
+  @Test
+  public void test_cached_entries_changed_metadata() throws Exception {
+    final Map<String, String> attributes = addEntry("Foo", "1.0.0");
+    assertSameFeed(query(null, null));
+
+    attributes.put("Description", "Updated description");
+    attributes.put(PackagesIndex.TEAMCITY_DOWNLOAD_URL, "/repository/download/bt2/2:id/Foo.1.0.0.nupkg");
+    final String feed = assertSameFeed(query(null, null));
+    Assert.assertTrue(feed.contains("<d:Description>Updated description</d:Description>"));
+    Assert.assertTrue(feed.contains("/repository/download/bt2/2:id/Foo.1.0.0.nupkg"));
+  }
+
+  @Test
+  public void test_cached_entries_same_package_in_builds() throws Exception {
+    final Map<String, String> first = addEntry("Foo", "1.0.0");
+    final Map<String, String> second = addEntry("Foo", "1.0.0");
+    second.put(PackagesIndex.TEAMCITY_BUILD_ID, "2");
+    second.put("Description", "Rebuilt package");
+    assertSameFeed(query(null, null));
+
+    first.put("Description", "Updated description");
+    final String feed = assertSameFeed(query(null, null));
+    Assert.assertTrue(feed.contains("<d:Description>Updated description</d:Description>"));
+    Assert.assertTrue(feed.contains("<d:Description>Rebuilt package</d:Description>"));
+  }
+
+  @Test
+  public void test_entries_without_update_time_are_not_cached() throws Exception {
+    addEntry("Foo", "1.0.0").remove("LastUpdated");
+    try {
+      DateTimeUtils.setCurrentMillisFixed(1326285600000L);
+      assertSameFeed(query(null, null));
+      DateTimeUtils.setCurrentMillisFixed(1326285660000L);
+      assertSameFeed(query(null, null));
+    } finally {
+      DateTimeUtils.setCurrentMillisSystem();
+    }
+  }
+
+  @Test
+  public void test_cached_entries_base_uri() throws Exception {
+    addEntry("Foo", "1.0.0");
+    assertSameFeed(query(null, null));
+    myBaseUri = "https://nuget.acme.com" + FEED_PATH + "/";
+    Assert.assertTrue(assertSameFeed(query(null, null)).contains("<id>https://nuget.acme.com" + FEED_PATH + "/Packages(Id='Foo',Version='1.0.0')</id>".replace("'", "&apos;")));
+  }
+
+  @NotNull
+  private String assertSameFeed(@NotNull final QueryInfo query) throws Exception {
+    return assertSameFeed(myProducer.getProducer().getEntities("Packages", query));
+  }
+
+  @NotNull
+  private String assertSameFeed(@NotNull final EntitiesResponse response) throws Exception {
+    final UriInfo uriInfo = uriInfo();
+
+    final StringWriter expected = new StringWriter();
+    new AtomFeedFormatWriter().write(uriInfo, expected, response);
+
+    final PackagesAtomFeedWriter writer = PackagesAtomFeedWriter.getInstance(response);
+    Assert.assertNotNull(writer);
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    writer.write(uriInfo, actual, response);
+
+    //odata4j response is sent in UTF-8 too
+    final byte[] expectedBytes = expected.toString().getBytes("utf-8");
+    Assert.assertEquals(normalize(actual.toString("utf-8")), normalize(new String(expectedBytes, "utf-8")));
+    return actual.toString("utf-8");
+  }
+
+  /**
+   * Feed update time is the current time
+   */
+  @NotNull
+  private static String normalize(@NotNull final String feed) {
+    return feed.replaceFirst("<updated>[^<]*</updated><link rel=\"self\"", "<updated/><link rel=\"self\"");
+  }
+
+  @NotNull
+  private static QueryInfo query(final Integer top, final InlineCount inlineCount) {
+    return new QueryInfo(inlineCount, top, null, null, null, null, null, null, null);
+  }
+
+  @NotNull
+  private UriInfo uriInfo() {
+    final UriInfo uriInfo = m.mock(UriInfo.class, "uriInfo" + System.nanoTime());
+    m.checking(new Expectations() {{
+      allowing(uriInfo).getBaseUri(); will(returnValue(URI.create(myBaseUri)));
+      allowing(uriInfo).getPath(); will(returnValue("Packages()"));
+      allowing(uriInfo).getRequestUriBuilder(); will(new CustomAction("new builder") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return UriBuilder.fromUri(myBaseUri + "Packages()?$top=2");
+        }
+      });
+    }});
+    return uriInfo;
+  }
+
+  @NotNull
+  private Map<String, String> addEntry(@NotNull final String id, @NotNull final String version) {
+    final Map<String, String> attributes = new HashMap<String, String>();
+    attributes.put(NuGetIndexEntry.ID, id);
+    attributes.put(NuGetIndexEntry.VERSION, version);
+    attributes.put("Authors", "Author");
+    attributes.put("Description", "Description of " + id);
+    attributes.put("IsPrerelease", String.valueOf(version.contains("-")));
+    attributes.put("IsLatestVersion", "true");
+    attributes.put("PackageSize", "1234");
+    attributes.put("LastUpdated", ODataDataFormat.formatDate(new Date(1326285600000L + myEntries.size() * 1000L)));
+    attributes.put(PackagesIndex.TEAMCITY_DOWNLOAD_URL, "/repository/download/bt1/1:id/" + id + "." + version + ".nupkg");
+    attributes.put(PackagesIndex.TEAMCITY_BUILD_ID, "1");
+    myEntries.add(new NuGetIndexEntry(id + "." + version, attributes));
+    return attributes;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.tests.server.feed.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.server.feed.server.NuGetServerSettings;
+import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.PackageEntityEx;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.PackagesFilterCompiler;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.entity.PackageEntity;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Mockery;
+import org.odata4j.expression.BoolCommonExpression;
+import org.odata4j.expression.ExpressionParser;
+import org.odata4j.producer.inmemory.BeanBasedPropertyModel;
+import org.odata4j.producer.inmemory.InMemoryEvaluation;
+import org.odata4j.producer.inmemory.PropertyModel;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class PackagesFilterCompilerTest extends BaseTestCase {
+  private final PropertyModel myProperties = new BeanBasedPropertyModel(PackageEntity.class);
+  private NuGetServerSettings mySettings;
+  private List<NuGetIndexEntry> myEntries;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mySettings = new Mockery().mock(NuGetServerSettings.class);
+    myEntries = new ArrayList<NuGetIndexEntry>();
+    addEntry("Foo", "1.0", "Foo package", " foo bar ", true, true);
+    addEntry("foo", "1.1-beta", "Lower case foo", null, false, true);
+    addEntry("Bar", "2.0", null, " bar ", false, false);
+    addEntry("Foo.Bar", "1.0", "Foo and Bar", " mm ", true, false);
+    final Map<String, String> titled = new HashMap<String, String>();
+    titled.put("Id", "Titled");
+    titled.put("Version", "1.0");
+    titled.put("Title", "Some Title");
+    myEntries.add(new NuGetIndexEntry("Titled.1.0", titled));
+    myEntries.add(new NuGetIndexEntry("Empty", new HashMap<String, String>()));
+  }
+
+  @Test
+  public void test_id_eq() {
+    assertCompiled("Id eq 'Foo'");
+    assertCompiled("'Foo' eq Id");
+    assertCompiled("tolower(Id) eq 'foo'");
+    assertCompiled("toupper(Id) eq 'FOO'");
+    assertCompiled("Id ne 'Foo'");
+    assertCompiled("Id eq null");
+    assertCompiled("Id ne null");
+    assertCompiled("Id eq 'Foo' and Version eq '1.0'");
+  }
+
+  @Test
+  public void test_search() {
+    assertCompiled("(((Id ne null) and substringof('mm',tolower(Id))) or ((Description ne null) and substringof('mm',tolower(Description)))) or ((Tags ne null) and substringof(' mm ',tolower(Tags)))");
+    assertCompiled("substringof('foo',tolower(Id)) or substringof('foo',tolower(Description)) or substringof(' foo ',tolower(Tags))");
+    assertCompiled("substringof('title',tolower(Title))");
+    assertCompiled("substringof('titled',tolower(Title))");
+    assertCompiled("substringof('package',Summary)");
+    assertCompiled("startswith(Id,'Foo')");
+    assertCompiled("endswith(tolower(Id),'bar')");
+  }
+
+  @Test
+  public void test_latest() {
+    assertCompiled("IsLatestVersion");
+    assertCompiled("IsAbsoluteLatestVersion");
+    assertCompiled("IsLatestVersion eq true");
+    assertCompiled("false eq IsAbsoluteLatestVersion");
+    assertCompiled("IsLatestVersion ne true");
+    assertCompiled("not IsLatestVersion");
+    assertCompiled("IsLatestVersion or IsAbsoluteLatestVersion");
+    assertCompiled("IsPrerelease and Id eq 'foo'");
+    assertCompiled("true");
+  }
+
+  @Test
+  public void test_not_compiled() {
+    assertNotCompiled("DownloadCount gt 5");
+    assertNotCompiled("length(Id) eq 3");
+    assertNotCompiled("Id eq 'Foo' and LicenseUrl eq 'foo'");
+    assertNotCompiled("tolower(IsLatestVersion) eq 'true'");
+    assertNotCompiled("IsLatestVersion eq 'true'");
+    assertNotCompiled("substringof('foo',PackageSize)");
+    Assert.assertNull(PackagesFilterCompiler.compile(null));
+  }
+
+  private void assertNotCompiled(@NotNull final String filter) {
+    Assert.assertNull(PackagesFilterCompiler.compile(parse(filter)), filter);
+  }
+
+  private void assertCompiled(@NotNull final String filter) {
+    final BoolCommonExpression expr = parse(filter);
+    final PackagesFilterCompiler.PackagePredicate predicate = PackagesFilterCompiler.compile(expr);
+    Assert.assertNotNull(predicate, filter);
+
+    for (NuGetIndexEntry entry : myEntries) {
+      final boolean expected = InMemoryEvaluation.evaluate(expr, new PackageEntityEx(entry, mySettings), myProperties);
+      Assert.assertEquals(predicate.matches(entry), expected, filter + " for " + entry);
+    }
+  }
+
+  @NotNull
+  private static BoolCommonExpression parse(@NotNull final String filter) {
+    return (BoolCommonExpression) ExpressionParser.parse(filter);
+  }
+
+  private void addEntry(@NotNull final String id,
+                        @NotNull final String version,
+                        final String description,
+                        final String tags,
+                        final boolean isLatest,
+                        final boolean isAbsoluteLatest) {
+    final Map<String, String> attributes = new HashMap<String, String>();
+    attributes.put("Id", id);
+    attributes.put("Version", version);
+    if (description != null) attributes.put("Description", description);
+    if (tags != null) attributes.put("Tags", tags);
+    attributes.put("IsLatestVersion", String.valueOf(isLatest));
+    attributes.put("IsAbsoluteLatestVersion", String.valueOf(isAbsoluteLatest));
+    attributes.put("IsPrerelease", String.valueOf(version.contains("-")));
+    myEntries.add(new NuGetIndexEntry(id + "." + version, attributes));
+  }
+}
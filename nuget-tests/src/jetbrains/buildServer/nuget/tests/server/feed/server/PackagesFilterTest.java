@@ -0,0 +1,135 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.tests.server.feed.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.PackagesFilter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.odata4j.core.OEntityKey;
+import org.odata4j.expression.BoolCommonExpression;
+import org.odata4j.expression.ExpressionParser;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+public class PackagesFilterTest extends BaseTestCase {
+  @Test
+  public void test_id_eq() {
+    assertFilter("Id eq 'Foo'", "Foo");
+    assertFilter("'Foo' eq Id", "Foo");
+    assertFilter("(Id eq 'Foo')", "Foo");
+  }
+
+  @Test
+  public void test_tolower_id_eq() {
+    assertFilter("tolower(Id) eq 'foo'", "foo");
+    assertFilter("toupper(Id) eq 'FOO'", "FOO");
+  }
+
+  @Test
+  public void test_id_eq_and() {
+    assertFilter("Id eq 'Foo' and IsLatestVersion", "Foo");
+    assertFilter("IsLatestVersion and Id eq 'Foo'", "Foo");
+    assertFilter("(IsLatestVersion and (Id eq 'Foo')) and Version eq '1.0'", "Foo");
+  }
+
+  @Test
+  public void test_not_id_filter() {
+    assertFilter("Id eq 'Foo' or Id eq 'Bar'", null);
+    assertFilter("Id ne 'Foo'", null);
+    assertFilter("not (Id eq 'Foo')", null);
+    assertFilter("Version eq '1.0'", null);
+    assertFilter("substringof('Foo', Id)", null);
+    assertFilter("IsLatestVersion", null);
+    Assert.assertNull(PackagesFilter.getPackageId((BoolCommonExpression) null));
+  }
+
+  @Test
+  public void test_latest_versions() {
+    assertLatest("IsLatestVersion", true);
+    assertLatest("IsAbsoluteLatestVersion", true);
+    assertLatest("IsLatestVersion eq true", true);
+    assertLatest("Id eq 'Foo' and (IsAbsoluteLatestVersion)", true);
+    assertLatest("IsLatestVersion eq false", false);
+    assertLatest("not IsLatestVersion", false);
+    assertLatest("IsLatestVersion or Id eq 'Foo'", false);
+    assertLatest("Id eq 'Foo'", false);
+    Assert.assertFalse(PackagesFilter.isLatestVersionsOnly(null));
+  }
+
+  @Test
+  public void test_entity_key() {
+    Assert.assertEquals(PackagesFilter.getPackageId(OEntityKey.create("Id", "Foo", "Version", "1.0")), "Foo");
+    Assert.assertNull(PackagesFilter.getPackageId(OEntityKey.create("Foo")));
+    Assert.assertNull(PackagesFilter.getPackageId((OEntityKey) null));
+  }
+
+  @Test
+  public void test_search_terms() {
+    assertSearch("substringof('foo',tolower(Id))", "foo");
+    assertSearch("(((Id ne null) and substringof('mm',tolower(Id))) or ((Description ne null) and substringof('mm',tolower(Description)))) or ((Tags ne null) and substringof(' mm ',tolower(Tags)))", "mm", " mm ");
+    assertSearch("IsLatestVersion and (substringof('foo',Title) or startswith(Id,'bar'))", "foo", "bar");
+    assertSearch("substringof('foo',Id) or substringof('foo',Summary)", "foo");
+    assertSearch("substringof('foo',Id) or IsLatestVersion");
+    assertSearch("substringof('foo',Authors)");
+    assertSearch("substringof('foo',toupper(Id))");
+    assertSearch("not substringof('foo',Id)");
+    assertSearch("IsLatestVersion");
+    Assert.assertNull(PackagesFilter.getSearchTerms(null));
+  }
+
+  @Test
+  public void test_ordered_by_id() {
+    assertOrderedById("Id", true);
+    assertOrderedById("Id asc", true);
+    assertOrderedById("Id desc", false);
+    assertOrderedById("Id,Version", false);
+    assertOrderedById("Version", false);
+    assertOrderedById("DownloadCount desc,Id", false);
+    assertOrderedById("tolower(Id)", false);
+    Assert.assertFalse(PackagesFilter.isOrderedById(null));
+  }
+
+  private static void assertOrderedById(@NotNull final String orderBy, final boolean expected) {
+    Assert.assertEquals(PackagesFilter.isOrderedById(ExpressionParser.parseOrderBy(orderBy)), expected, orderBy);
+  }
+
+  private static void assertSearch(@NotNull final String filter, @NotNull final String... expected) {
+    final BoolCommonExpression expr = (BoolCommonExpression) ExpressionParser.parse(filter);
+    final Collection<String> terms = PackagesFilter.getSearchTerms(expr);
+    if (expected.length == 0) {
+      Assert.assertNull(terms, filter);
+    } else {
+      Assert.assertNotNull(terms, filter);
+      Assert.assertEquals(new ArrayList<String>(terms), Arrays.asList(expected), filter);
+    }
+  }
+
+  private static void assertLatest(@NotNull final String filter, final boolean expected) {
+    final BoolCommonExpression expr = (BoolCommonExpression) ExpressionParser.parse(filter);
+    Assert.assertEquals(PackagesFilter.isLatestVersionsOnly(expr), expected, filter);
+  }
+
+  private static void assertFilter(@NotNull final String filter, @Nullable final String expectedId) {
+    final BoolCommonExpression expr = (BoolCommonExpression) ExpressionParser.parse(filter);
+    Assert.assertEquals(PackagesFilter.getPackageId(expr), expectedId, filter);
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.tests.server.feed.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.PackagesIndexingPool;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PackagesIndexingPoolTest extends BaseTestCase {
+
+  @Test
+  public void test_results_order() throws InterruptedException {
+    final PackagesIndexingPool pool = new PackagesIndexingPool(4, 2);
+    try {
+      final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+      for (int i = 0; i < 50; i++) {
+        final int value = i;
+        tasks.add(new Callable<Integer>() {
+          public Integer call() throws Exception {
+            Thread.sleep(value % 3);
+            return value;
+          }
+        });
+      }
+
+      final List<Integer> results = pool.index(tasks);
+      Assert.assertEquals(results.size(), 50);
+      for (int i = 0; i < 50; i++) {
+        Assert.assertEquals(results.get(i), Integer.valueOf(i));
+      }
+      Assert.assertEquals(pool.getIndexedPackages(), 50);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void test_parallel() throws InterruptedException {
+    final PackagesIndexingPool pool = new PackagesIndexingPool(3, 10);
+    try {
+      final CountDownLatch latch = new CountDownLatch(3);
+      final List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+      for (int i = 0; i < 3; i++) {
+        tasks.add(new Callable<Boolean>() {
+          public Boolean call() throws Exception {
+            latch.countDown();
+            return latch.await(10, TimeUnit.SECONDS);
+          }
+        });
+      }
+
+      for (Boolean result : pool.index(tasks)) {
+        Assert.assertTrue(result);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void test_caller_runs_when_queue_is_full() throws InterruptedException {
+    final PackagesIndexingPool pool = new PackagesIndexingPool(2, 1);
+    try {
+      final Thread caller = Thread.currentThread();
+      final AtomicInteger inCaller = new AtomicInteger();
+      final AtomicInteger running = new AtomicInteger();
+      final AtomicInteger maxRunning = new AtomicInteger();
+
+      final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+      for (int i = 0; i < 20; i++) {
+        tasks.add(new Callable<Object>() {
+          public Object call() throws Exception {
+            final int now = running.incrementAndGet();
+            synchronized (maxRunning) {
+              if (now > maxRunning.get()) maxRunning.set(now);
+            }
+            if (Thread.currentThread() == caller) inCaller.incrementAndGet();
+            Thread.sleep(20);
+            running.decrementAndGet();
+            return null;
+          }
+        });
+      }
+
+      pool.index(tasks);
+      Assert.assertTrue(inCaller.get() > 0);
+      Assert.assertTrue(maxRunning.get() <= 3, "running: " + maxRunning.get());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void test_single_thread() throws InterruptedException {
+    final PackagesIndexingPool pool = new PackagesIndexingPool(1, 1);
+    final Thread caller = Thread.currentThread();
+    final List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+    for (int i = 0; i < 5; i++) {
+      tasks.add(new Callable<Boolean>() {
+        public Boolean call() {
+          return Thread.currentThread() == caller;
+        }
+      });
+    }
+
+    for (Boolean result : pool.index(tasks)) {
+      Assert.assertTrue(result);
+    }
+  }
+
+  @Test
+  public void test_after_shutdown() throws InterruptedException {
+    final PackagesIndexingPool pool = new PackagesIndexingPool(2, 1);
+    pool.shutdown();
+
+    final List<Integer> results = pool.index(tasks(3));
+    Assert.assertEquals(results.size(), 3);
+    Assert.assertEquals(results.get(2), Integer.valueOf(2));
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void test_exception() throws InterruptedException {
+    final PackagesIndexingPool pool = new PackagesIndexingPool(2, 1);
+    try {
+      final List<Callable<Integer>> tasks = tasks(3);
+      tasks.add(new Callable<Integer>() {
+        public Integer call() {
+          throw new IllegalStateException();
+        }
+      });
+      pool.index(tasks);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void test_interrupted() throws InterruptedException {
+    final PackagesIndexingPool pool = new PackagesIndexingPool(2, 10);
+    try {
+      final CountDownLatch started = new CountDownLatch(2);
+      final CountDownLatch cancelled = new CountDownLatch(2);
+      final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+      for (int i = 0; i < 2; i++) {
+        tasks.add(new Callable<Object>() {
+          public Object call() throws Exception {
+            started.countDown();
+            try {
+              new CountDownLatch(1).await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              cancelled.countDown();
+            }
+            return null;
+          }
+        });
+      }
+
+      final Thread caller = Thread.currentThread();
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            if (started.await(10, TimeUnit.SECONDS)) caller.interrupt();
+          } catch (InterruptedException e) {
+            //test fails on timeout
+          }
+        }
+      }).start();
+
+      try {
+        pool.index(tasks);
+        Assert.fail("interruption expected");
+      } catch (InterruptedException e) {
+        //expected
+      }
+      Assert.assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+    } finally {
+      Thread.interrupted();
+      pool.shutdown();
+    }
+  }
+
+  @NotNull
+  private static List<Callable<Integer>> tasks(final int count) {
+    final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+    for (int i = 0; i < count; i++) {
+      final int value = i;
+      tasks.add(new Callable<Integer>() {
+        public Integer call() {
+          return value;
+        }
+      });
+    }
+    return tasks;
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.tests.server.feed.server;
+
+import com.sun.jersey.core.util.MultivaluedMapImpl;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.server.feed.server.NuGetServerSettings;
+import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
+import jetbrains.buildServer.nuget.server.feed.server.index.PackagesIndex;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.ODataDataFormat;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.NuGetProducer;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.format.PackagesJsonFeedWriter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.odata4j.format.json.JsonFeedFormatWriter;
+import org.odata4j.producer.EntitiesResponse;
+import org.odata4j.producer.InlineCount;
+import org.odata4j.producer.QueryInfo;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.*;
+
+public class PackagesJsonFeedWriterTest extends BaseTestCase {
+  private static final String FEED_PATH = "/app/nuget/v1/FeedService.svc";
+  private static final String BASE_URI = "http://localhost:8111" + FEED_PATH + "/";
+
+  private Mockery m;
+  private List<NuGetIndexEntry> myEntries;
+  private NuGetProducer myProducer;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myEntries = new ArrayList<NuGetIndexEntry>();
+    final PackagesIndex index = m.mock(PackagesIndex.class);
+    final NuGetServerSettings settings = m.mock(NuGetServerSettings.class);
+    m.checking(new Expectations() {{
+      allowing(index).getNuGetEntries(); will(new CustomAction("return packages") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return myEntries.iterator();
+        }
+      });
+      allowing(index).isSorted(); will(returnValue(false));
+      allowing(settings).getNuGetFeedControllerPath(); will(returnValue(FEED_PATH));
+    }});
+    myProducer = new NuGetProducer(index, settings);
+  }
+
+  @Test
+  public void test_same_as_odata4j() throws Exception {
+    addEntry("Foo", "1.0.0");
+    addEntry("Bar", "2.0.0-beta");
+    final String feed = assertSameFeed(query(null, null), null);
+    Assert.assertTrue(feed.startsWith("{\n\"d\" : {\n\"results\" : [\n{\n\"__metadata\" : {\n\"uri\" : \"" + BASE_URI + "Packages(Id='Foo',Version='1.0.0')\""), feed);
+  }
+
+  @Test
+  public void test_escaping() throws Exception {
+    final Map<String, String> attributes = addEntry("Foo\"\\", "1.0.0");
+    attributes.put("Description", "Quotes \" and ' \u043f\u0440\u0438\u0432\u0435\u0442 \ud83d\ude00 \ud83d\n\r\t\b\f </script>");
+    attributes.put("Tags", "");
+    assertSameFeed(query(null, null), null);
+  }
+
+  @Test
+  public void test_control_characters() throws Exception {
+    final Map<String, String> attributes = addEntry("Foo", "1.0.0");
+    attributes.put("Description", "a\u0001b");
+
+    final ByteArrayOutputStream actual = write(myProducer.getProducer().getEntities("Packages", query(null, null)), null);
+    Assert.assertTrue(actual.toString("utf-8").contains("\"Description\" : \"a\\u0001b\""));
+  }
+
+  @Test
+  public void test_missing_values() throws Exception {
+    final Map<String, String> attributes = addEntry("Foo", "1.0.0");
+    attributes.remove("Authors");
+    attributes.remove(PackagesIndex.TEAMCITY_DOWNLOAD_URL);
+    assertSameFeed(query(null, null), null);
+  }
+
+  @Test
+  public void test_count_and_next_link() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      addEntry("Foo", "1.0." + i);
+    }
+    final EntitiesResponse response = myProducer.getProducer().getEntities("Packages", query(2, InlineCount.ALLPAGES));
+    Assert.assertNotNull(response.getSkipToken());
+    final String feed = assertSameFeed(response, null);
+    Assert.assertTrue(feed.contains("\"__count\" : \"5\", \"__next\" : \""), feed);
+  }
+
+  @Test
+  public void test_callback() throws Exception {
+    addEntry("Foo", "1.0.0");
+    final String feed = assertSameFeed(query(null, null), "callback");
+    Assert.assertTrue(feed.startsWith("callback({"), feed);
+    Assert.assertTrue(feed.endsWith("});"), feed);
+  }
+
+  @Test
+  public void test_empty_feed() throws Exception {
+    assertSameFeed(query(null, null), null);
+  }
+
+  @NotNull
+  private String assertSameFeed(@NotNull final QueryInfo query, @Nullable final String callback) throws Exception {
+    return assertSameFeed(myProducer.getProducer().getEntities("Packages", query), callback);
+  }
+
+  @NotNull
+  private String assertSameFeed(@NotNull final EntitiesResponse response, @Nullable final String callback) throws Exception {
+    final StringWriter expected = new StringWriter();
+    new JsonFeedFormatWriter(callback).write(uriInfo(), expected, response);
+
+    final String actual = write(response, callback).toString("utf-8");
+    //odata4j response is sent in UTF-8 too
+    Assert.assertEquals(actual, new String(expected.toString().getBytes("utf-8"), "utf-8"));
+    return actual;
+  }
+
+  @NotNull
+  private ByteArrayOutputStream write(@NotNull final EntitiesResponse response, @Nullable final String callback) throws Exception {
+    final PackagesJsonFeedWriter writer = PackagesJsonFeedWriter.getInstance(response);
+    Assert.assertNotNull(writer);
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    writer.write(uriInfo(), actual, response, callback);
+    return actual;
+  }
+
+  @NotNull
+  private static QueryInfo query(final Integer top, final InlineCount inlineCount) {
+    return new QueryInfo(inlineCount, top, null, null, null, null, null, null, null);
+  }
+
+  @NotNull
+  private UriInfo uriInfo() {
+    final UriInfo uriInfo = m.mock(UriInfo.class, "uriInfo" + System.nanoTime());
+    final MultivaluedMap<String, String> parameters = new MultivaluedMapImpl();
+    parameters.putSingle("$top", "2");
+    m.checking(new Expectations() {{
+      allowing(uriInfo).getBaseUri(); will(returnValue(URI.create(BASE_URI)));
+      allowing(uriInfo).getPath(); will(returnValue("Packages()"));
+      allowing(uriInfo).getQueryParameters(); will(returnValue(parameters));
+      allowing(uriInfo).getRequestUriBuilder(); will(new CustomAction("new builder") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return UriBuilder.fromUri(BASE_URI + "Packages()?$top=2&$format=json");
+        }
+      });
+    }});
+    return uriInfo;
+  }
+
+  @NotNull
+  private Map<String, String> addEntry(@NotNull final String id, @NotNull final String version) {
+    final Map<String, String> attributes = new HashMap<String, String>();
+    attributes.put(NuGetIndexEntry.ID, id);
+    attributes.put(NuGetIndexEntry.VERSION, version);
+    attributes.put("Authors", "Author");
+    attributes.put("Description", "Description of " + id);
+    attributes.put("IsPrerelease", String.valueOf(version.contains("-")));
+    attributes.put("IsLatestVersion", "true");
+    attributes.put("PackageSize", "1234");
+    attributes.put("LastUpdated", ODataDataFormat.formatDate(new Date(1326285600000L + myEntries.size() * 1000L)));
+    attributes.put(PackagesIndex.TEAMCITY_DOWNLOAD_URL, "/repository/download/bt1/1:id/" + id + "." + version + ".nupkg");
+    myEntries.add(new NuGetIndexEntry(id + "." + version, attributes));
+    return attributes;
+  }
+}
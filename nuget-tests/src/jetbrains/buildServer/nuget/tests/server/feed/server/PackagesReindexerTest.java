@@ -0,0 +1,418 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.tests.server.feed.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.*;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache.ResponseCacheReset;
+import jetbrains.buildServer.serverSide.BuildHistory;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.BuildsManager;
+import jetbrains.buildServer.serverSide.SFinishedBuild;
+import jetbrains.buildServer.serverSide.artifacts.BuildArtifact;
+import jetbrains.buildServer.serverSide.artifacts.BuildArtifacts;
+import jetbrains.buildServer.serverSide.artifacts.BuildArtifactsViewMode;
+import jetbrains.buildServer.serverSide.metadata.BuildMetadataEntry;
+import jetbrains.buildServer.serverSide.metadata.MetadataStorage;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.ItemProcessor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Imposteriser;
+import org.jmock.api.Invocation;
+import org.jmock.api.Invokable;
+import org.jmock.lib.JavaReflectionImposteriser;
+import org.jmock.lib.action.CustomAction;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static jetbrains.buildServer.nuget.server.feed.server.index.impl.NuGetArtifactsMetadataProvider.NUGET_PROVIDER_ID;
+
+public class PackagesReindexerTest extends BaseTestCase {
+  private Mockery m;
+  private File myTempDir;
+  private File myStateFile;
+  private Map<Long, SFinishedBuild> myBuilds;
+  private Map<Long, Map<String, Map<String, String>>> myEntries;
+  private Set<String> myResetPackages;
+  private IndexedPackages myPackages;
+  private PackagesReindexer myReindexer;
+  private int myThreads;
+  private long myBytesPerSecond;
+  private volatile long myBlockedBuildId;
+  private CountDownLatch myBlockedEntered;
+  private CountDownLatch myBlockedReleased;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    //mocks are called by re-index threads, the mockery is not thread-safe
+    m.setImposteriser(new Imposteriser() {
+      public boolean canImposterise(Class<?> type) {
+        return JavaReflectionImposteriser.INSTANCE.canImposterise(type);
+      }
+
+      public <T> T imposterise(final Invokable mockObject, Class<T> mockedType, Class<?>... ancilliaryTypes) {
+        return JavaReflectionImposteriser.INSTANCE.imposterise(new Invokable() {
+          public Object invoke(Invocation invocation) throws Throwable {
+            synchronized (m) {
+              return mockObject.invoke(invocation);
+            }
+          }
+        }, mockedType, ancilliaryTypes);
+      }
+    });
+
+    myTempDir = createTempDir();
+    myStateFile = new File(myTempDir, "state/reindex.properties");
+    myBuilds = new TreeMap<Long, SFinishedBuild>();
+    myEntries = Collections.synchronizedMap(new HashMap<Long, Map<String, Map<String, String>>>());
+    myResetPackages = Collections.synchronizedSet(new HashSet<String>());
+    myThreads = 2;
+    myBytesPerSecond = 0;
+    myBlockedBuildId = -1;
+    myBlockedEntered = new CountDownLatch(1);
+    myBlockedReleased = new CountDownLatch(1);
+
+    final MetadataStorage storage = m.mock(MetadataStorage.class);
+    final BuildHistory history = m.mock(BuildHistory.class);
+    final BuildsManager buildsManager = m.mock(BuildsManager.class);
+    final ResponseCacheReset reset = m.mock(ResponseCacheReset.class);
+    m.checking(new Expectations() {{
+      allowing(storage).getAllEntries(NUGET_PROVIDER_ID); will(new CustomAction("return stored entries") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return storedEntries().iterator();
+        }
+      });
+      allowing(storage).deleteBuildEntry(with(any(long.class)), with(equal(NUGET_PROVIDER_ID))); will(new CustomAction("delete entries") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return myEntries.remove((Long) invocation.getParameter(0)) != null;
+        }
+      });
+      allowing(storage).addBuildEntry(with(any(long.class)), with(equal(NUGET_PROVIDER_ID)), with(any(String.class)), with(any(Map.class)), with(equal(true)));
+      will(new CustomAction("add entry") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          //noinspection unchecked
+          entries((Long) invocation.getParameter(0)).put((String) invocation.getParameter(2), (Map<String, String>) invocation.getParameter(3));
+          return null;
+        }
+      });
+
+      allowing(history).processEntries(with(any(ItemProcessor.class))); will(new CustomAction("process builds from the latest") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          //noinspection unchecked
+          final ItemProcessor<SFinishedBuild> processor = (ItemProcessor<SFinishedBuild>) invocation.getParameter(0);
+          final List<SFinishedBuild> builds = new ArrayList<SFinishedBuild>(myBuilds.values());
+          Collections.reverse(builds);
+          for (SFinishedBuild build : builds) {
+            if (!processor.processItem(build)) break;
+          }
+          return null;
+        }
+      });
+      allowing(buildsManager).findBuildInstanceById(with(any(long.class))); will(new CustomAction("find build") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return myBuilds.get((Long) invocation.getParameter(0));
+        }
+      });
+
+      allowing(reset).resetCache();
+      allowing(reset).resetPackage(with(any(String.class))); will(new CustomAction("reset package") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          myResetPackages.add((String) invocation.getParameter(0));
+          return null;
+        }
+      });
+    }});
+
+    myPackages = new IndexedPackages(storage, reset, EventDispatcher.create(BuildServerListener.class));
+    final NuGetArtifactsMetadataProvider provider = new NuGetArtifactsMetadataProvider(
+            new LocalNuGetPackageItemsFactory(), reset, myPackages, new PackagesIndexingPool(1, 1));
+
+    myReindexer = new PackagesReindexer(history, buildsManager, storage, provider, myPackages, myStateFile) {
+      @Override
+      protected int getThreads() {
+        return myThreads;
+      }
+
+      @Override
+      protected long getBytesPerSecond() {
+        return myBytesPerSecond;
+      }
+    };
+  }
+
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    myBlockedReleased.countDown();
+    myReindexer.stop(true);
+    myReindexer.waitFor();
+    FileUtil.delete(myTempDir);
+    super.tearDown();
+  }
+
+  @Test
+  public void test_reindex_all() throws Exception {
+    for (long id = 1; id <= 5; id++) addBuild(id);
+
+    Assert.assertTrue(myReindexer.start());
+    myReindexer.waitFor();
+
+    Assert.assertEquals(myEntries.keySet(), new HashSet<Long>(Arrays.asList(1L, 2L, 3L, 4L, 5L)));
+    final Map<String, String> metadata = myEntries.get(3L).get("Foo.1.0.3.nupkg");
+    Assert.assertEquals(metadata.get("Id"), "Foo");
+    Assert.assertEquals(metadata.get("Version"), "1.0.3");
+
+    final PackagesReindexer.Status status = myReindexer.getStatus();
+    Assert.assertFalse(status.isRunning());
+    Assert.assertEquals(status.getBuildsTotal(), 5);
+    Assert.assertEquals(status.getBuildsProcessed(), 5);
+    Assert.assertEquals(status.getBuildsFailed(), 0);
+    Assert.assertEquals(status.getPackages(), 5);
+    Assert.assertTrue(status.getBytes() > 0);
+    Assert.assertFalse(myStateFile.exists());
+  }
+
+  @Test
+  public void test_replaces_entries() throws Exception {
+    addBuild(1);
+    entries(1).put("Stale.nupkg", Collections.singletonMap("Id", "Stale"));
+
+    myReindexer.start();
+    myReindexer.waitFor();
+
+    Assert.assertEquals(myEntries.get(1L).keySet(), Collections.singleton("Foo.1.0.1.nupkg"));
+  }
+
+  @Test
+  public void test_resets_removed_packages() throws Exception {
+    addBuild(1);
+    final Map<String, String> stale = new HashMap<String, String>();
+    stale.put("Id", "Stale");
+    stale.put("Version", "1.0");
+    entries(1).put("Stale.1.0.nupkg", stale);
+    Assert.assertEquals(myPackages.getPackages().size(), 1);
+
+    myReindexer.start();
+    myReindexer.waitFor();
+
+    Assert.assertEquals(myResetPackages, new HashSet<String>(Arrays.asList("Stale", "Foo")));
+    final List<String> ids = new ArrayList<String>();
+    for (IndexedPackageVersions versions : myPackages.getPackages()) {
+      ids.add(versions.getId());
+    }
+    Assert.assertEquals(ids, Collections.singletonList("Foo"));
+  }
+
+  @Test
+  public void test_keeps_entries_if_package_fails_to_load() throws Exception {
+    addBuild(1);
+    addBuild(2);
+    entries(2).put("Foo.1.0.2.nupkg", Collections.singletonMap("Id", "Foo"));
+    FileUtil.writeFileAndReportErrors(packageFile(2), "broken package");
+
+    myReindexer.start();
+    myReindexer.waitFor();
+
+    Assert.assertEquals(myEntries.get(1L).keySet(), Collections.singleton("Foo.1.0.1.nupkg"));
+    Assert.assertEquals(myEntries.get(2L).get("Foo.1.0.2.nupkg"), Collections.singletonMap("Id", "Foo"));
+
+    final PackagesReindexer.Status status = myReindexer.getStatus();
+    Assert.assertEquals(status.getBuildsProcessed(), 2);
+    Assert.assertEquals(status.getBuildsFailed(), 1);
+    Assert.assertEquals(status.getPackages(), 1);
+    Assert.assertTrue(status.getDescription().contains("1 failed"), status.getDescription());
+  }
+
+  @Test
+  public void test_stop_and_resume() throws Exception {
+    myThreads = 1;
+    for (long id = 1; id <= 5; id++) addBuild(id);
+    myBlockedBuildId = 2;
+
+    myReindexer.start();
+    Assert.assertTrue(myBlockedEntered.await(10, TimeUnit.SECONDS));
+    Assert.assertTrue(myReindexer.getStatus().isRunning());
+    Assert.assertFalse(myReindexer.start());
+
+    myReindexer.stop(false);
+    myBlockedReleased.countDown();
+    myReindexer.waitFor();
+
+    Assert.assertEquals(myEntries.keySet(), new HashSet<Long>(Arrays.asList(1L, 2L)));
+    Assert.assertTrue(myStateFile.isFile());
+
+    //builds finished after re-index was started are indexed by the metadata provider
+    addBuild(6);
+    Assert.assertTrue(myReindexer.resume());
+    myReindexer.waitFor();
+
+    Assert.assertEquals(myEntries.keySet(), new HashSet<Long>(Arrays.asList(1L, 2L, 3L, 4L, 5L)));
+    Assert.assertEquals(myReindexer.getStatus().getBuildsProcessed(), 3);
+    Assert.assertFalse(myStateFile.exists());
+    Assert.assertFalse(myReindexer.resume());
+  }
+
+  @Test
+  public void test_cancel() throws Exception {
+    myThreads = 1;
+    for (long id = 1; id <= 3; id++) addBuild(id);
+    myBlockedBuildId = 1;
+
+    myReindexer.start();
+    Assert.assertTrue(myBlockedEntered.await(10, TimeUnit.SECONDS));
+    myReindexer.stop(true);
+    myBlockedReleased.countDown();
+    myReindexer.waitFor();
+
+    Assert.assertEquals(myEntries.keySet(), Collections.singleton(1L));
+    Assert.assertFalse(myStateFile.exists());
+    Assert.assertFalse(myReindexer.resume());
+  }
+
+  @Test
+  public void test_throttle() throws Exception {
+    for (long id = 1; id <= 4; id++) addBuild(id);
+    //every package takes 50ms at this rate
+    myBytesPerSecond = packageFile(1).length() * 20;
+
+    final long start = System.currentTimeMillis();
+    myReindexer.start();
+    myReindexer.waitFor();
+    final long time = System.currentTimeMillis() - start;
+
+    Assert.assertEquals(myEntries.size(), 4);
+    Assert.assertTrue(time >= 150, "time: " + time);
+  }
+
+  @NotNull
+  private Map<String, Map<String, String>> entries(final long buildId) {
+    synchronized (myEntries) {
+      Map<String, Map<String, String>> entries = myEntries.get(buildId);
+      if (entries == null) {
+        entries = new HashMap<String, Map<String, String>>();
+        myEntries.put(buildId, entries);
+      }
+      return entries;
+    }
+  }
+
+  @NotNull
+  private List<BuildMetadataEntry> storedEntries() {
+    final List<BuildMetadataEntry> result = new ArrayList<BuildMetadataEntry>();
+    synchronized (myEntries) {
+      for (final Map.Entry<Long, Map<String, Map<String, String>>> build : myEntries.entrySet()) {
+        for (final Map.Entry<String, Map<String, String>> entry : build.getValue().entrySet()) {
+          result.add(new BuildMetadataEntry() {
+            public long getBuildId() {
+              return build.getKey();
+            }
+
+            @NotNull
+            public String getKey() {
+              return entry.getKey();
+            }
+
+            @NotNull
+            public Map<String, String> getMetadata() {
+              return entry.getValue();
+            }
+          });
+        }
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private File packageFile(final long buildId) {
+    return new File(new File(myTempDir, "artifacts/" + buildId), "Foo.1.0." + buildId + ".nupkg");
+  }
+
+  private void addBuild(final long buildId) throws IOException {
+    final File file = packageFile(buildId);
+    FileUtil.createParentDirs(file);
+    final ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      zip.putNextEntry(new ZipEntry("Foo.nuspec"));
+      zip.write(("<?xml version=\"1.0\"?>\n" +
+              "<package xmlns=\"http://schemas.microsoft.com/packaging/2010/07/nuspec.xsd\">\n" +
+              "  <metadata><id>Foo</id><version>1.0." + buildId + "</version></metadata>\n" +
+              "</package>").getBytes("utf-8"));
+      zip.closeEntry();
+    } finally {
+      zip.close();
+    }
+
+    final SFinishedBuild build = m.mock(SFinishedBuild.class, "build#" + buildId);
+    final BuildArtifacts artifacts = m.mock(BuildArtifacts.class, "artifacts#" + buildId);
+    final BuildArtifact root = m.mock(BuildArtifact.class, "root#" + buildId);
+    final BuildArtifact artifact = m.mock(BuildArtifact.class, "artifact#" + buildId);
+    m.checking(new Expectations() {{
+      allowing(build).getBuildId(); will(returnValue(buildId));
+      allowing(build).getBuildTypeId(); will(returnValue("bt"));
+      allowing(build).getBuildTypeName(); will(returnValue("Build Type"));
+      allowing(build).getBuildType(); will(returnValue(null));
+      allowing(build).isFinished(); will(returnValue(true));
+      allowing(build).getFinishDate(); will(returnValue(new Date()));
+      allowing(build).getArtifactsDirectory(); will(returnValue(file.getParentFile()));
+      allowing(build).getArtifacts(BuildArtifactsViewMode.VIEW_ALL); will(returnValue(artifacts));
+      //the build is described in logs
+      ignoring(build);
+
+      allowing(artifacts).getRootArtifact(); will(returnValue(root));
+      allowing(root).isDirectory(); will(returnValue(true));
+      allowing(root).getChildren(); will(returnValue(Collections.singletonList(artifact)));
+
+      allowing(artifact).isDirectory(); will(returnValue(false));
+      allowing(artifact).getName(); will(returnValue(file.getName()));
+      allowing(artifact).getRelativePath(); will(returnValue(file.getName()));
+      allowing(artifact).getSize(); will(new CustomAction("file size") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return file.length();
+        }
+      });
+      allowing(artifact).getInputStream(); will(new CustomAction("open file") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          if (buildId == myBlockedBuildId) {
+            myBlockedEntered.countDown();
+            myBlockedReleased.await();
+          }
+          return new FileInputStream(file);
+        }
+      });
+    }});
+    myBuilds.put(buildId, build);
+  }
+}
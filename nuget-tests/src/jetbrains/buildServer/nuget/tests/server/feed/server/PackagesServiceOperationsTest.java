@@ -0,0 +1,220 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.tests.server.feed.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.server.feed.server.index.NuGetIndexEntry;
+import jetbrains.buildServer.nuget.server.feed.server.index.PackagesIndex;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.PackagesFilter;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.PackagesFilterCompiler;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.PackagesServiceOperations;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.odata4j.expression.BoolCommonExpression;
+import org.odata4j.expression.ExpressionParser;
+import org.odata4j.producer.exceptions.BadRequestException;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+public class PackagesServiceOperationsTest extends BaseTestCase {
+  private PackagesIndex myIndex;
+  private List<NuGetIndexEntry> myEntries;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    final Mockery m = new Mockery();
+    myIndex = m.mock(PackagesIndex.class);
+    myEntries = new ArrayList<NuGetIndexEntry>();
+    m.checking(new Expectations() {{
+      allowing(myIndex).getNuGetEntries(with(any(String.class))); will(new CustomAction("return packages by id") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          final String id = (String) invocation.getParameter(0);
+          final List<NuGetIndexEntry> result = new ArrayList<NuGetIndexEntry>();
+          for (NuGetIndexEntry e : myEntries) {
+            if (id.equalsIgnoreCase(e.getAttributes().get(NuGetIndexEntry.ID))) result.add(e);
+          }
+          return result.iterator();
+        }
+      });
+    }});
+
+    addEntry("Foo", "1.0");
+    addEntry("Foo", "1.1");
+    addEntry("Foo", "2.0-beta");
+    addEntry("Foo", "1.2");
+    addEntry("Bar", "1.0");
+    addEntry("Bar", "3.0");
+  }
+
+  @Test
+  public void test_find_packages_by_id() {
+    final BoolCommonExpression filter = PackagesServiceOperations.getFilter(
+            PackagesServiceOperations.FIND_PACKAGES_BY_ID, null, options("id", "'Foo'"));
+
+    Assert.assertEquals(PackagesFilter.getPackageId(filter), "foo");
+    Assert.assertNotNull(PackagesFilterCompiler.compile(filter));
+  }
+
+  @Test
+  public void test_find_packages_by_id_filtered() {
+    final BoolCommonExpression filter = PackagesServiceOperations.getFilter(
+            PackagesServiceOperations.FIND_PACKAGES_BY_ID, parse("IsLatestVersion"), options("id", "'Foo'"));
+
+    Assert.assertEquals(PackagesFilter.getPackageId(filter), "foo");
+    Assert.assertTrue(PackagesFilter.isLatestVersionsOnly(filter));
+  }
+
+  @Test(expectedExceptions = BadRequestException.class)
+  public void test_find_packages_by_id_no_id() {
+    PackagesServiceOperations.getFilter(PackagesServiceOperations.FIND_PACKAGES_BY_ID, null, options());
+  }
+
+  @Test
+  public void test_search() {
+    final BoolCommonExpression filter = PackagesServiceOperations.getFilter(
+            PackagesServiceOperations.SEARCH, parse("IsLatestVersion"), options("searchTerm", "'Foo  bar'", "includePrerelease", "true"));
+
+    Assert.assertEquals(PackagesFilter.getSearchTerms(filter), Arrays.asList("foo", "bar"));
+    Assert.assertTrue(PackagesFilter.isLatestVersionsOnly(filter));
+    Assert.assertNotNull(PackagesFilterCompiler.compile(filter));
+  }
+
+  @Test
+  public void test_search_no_prerelease() {
+    final BoolCommonExpression filter = PackagesServiceOperations.getFilter(
+            PackagesServiceOperations.SEARCH, null, options("searchTerm", "''", "includePrerelease", "false"));
+
+    Assert.assertNull(PackagesFilter.getSearchTerms(filter));
+    final PackagesFilterCompiler.PackagePredicate predicate = PackagesFilterCompiler.compile(filter);
+    Assert.assertNotNull(predicate);
+    Assert.assertTrue(predicate.matches(myEntries.get(0)));
+    Assert.assertFalse(predicate.matches(myEntries.get(2)));
+  }
+
+  @Test
+  public void test_search_no_options() {
+    Assert.assertNull(PackagesServiceOperations.getFilter(PackagesServiceOperations.SEARCH, null, options("includePrerelease", "true")));
+  }
+
+  @Test
+  public void test_get_updates() {
+    assertUpdates(options("packageIds", "'Foo|bar'", "versions", "'1.0|1.0'"), "Foo 1.2", "Bar 3.0");
+  }
+
+  @Test
+  public void test_get_updates_all_versions() {
+    assertUpdates(options("packageIds", "'Foo|Bar'", "versions", "'1.0|3.0'", "includeAllVersions", "true"), "Foo 1.1", "Foo 1.2");
+  }
+
+  @Test
+  public void test_get_updates_prerelease() {
+    assertUpdates(options("packageIds", "'Foo'", "versions", "'1.0'", "includePrerelease", "true"), "Foo 2.0-beta");
+    assertUpdates(options("packageIds", "'Foo'", "versions", "'1.0'", "includePrerelease", "true", "includeAllVersions", "true"), "Foo 1.1", "Foo 2.0-beta", "Foo 1.2");
+  }
+
+  @Test
+  public void test_get_updates_build_metadata_is_prerelease() {
+    addEntry("Foo", "1.3+build");
+    assertUpdates(options("packageIds", "'Foo'", "versions", "'1.0'"), "Foo 1.2");
+    assertUpdates(options("packageIds", "'Foo'", "versions", "'1.0'", "includePrerelease", "true", "includeAllVersions", "true"),
+            "Foo 1.1", "Foo 2.0-beta", "Foo 1.2", "Foo 1.3+build");
+  }
+
+  @Test
+  public void test_get_updates_constraints() {
+    assertUpdates(options("packageIds", "'Foo|Bar'", "versions", "'1.0|1.0'", "versionConstraints", "'[1.0,1.2)|'"), "Foo 1.1", "Bar 3.0");
+    assertUpdates(options("packageIds", "'Foo|Bar'", "versions", "'1.0|1.0'", "versionConstraints", "'(,1.1]|[3.0]'"), "Foo 1.1", "Bar 3.0");
+    assertUpdates(options("packageIds", "'Foo'", "versions", "'1.0'", "versionConstraints", "'1.5'"));
+  }
+
+  @Test
+  public void test_get_updates_duplicate_ids() {
+    assertUpdates(options("packageIds", "'Foo|foo'", "versions", "'1.0|1.1'"), "Foo 1.2");
+  }
+
+  @Test
+  public void test_get_updates_unknown() {
+    assertUpdates(options("packageIds", "'Qqq'", "versions", "'1.0'"));
+    assertUpdates(options("packageIds", "''", "versions", "''"));
+  }
+
+  @Test(expectedExceptions = BadRequestException.class)
+  public void test_get_updates_versions_mismatch() {
+    PackagesServiceOperations.getUpdates(myIndex, options("packageIds", "'Foo|Bar'", "versions", "'1.0'"));
+  }
+
+  @Test(expectedExceptions = BadRequestException.class)
+  public void test_get_updates_constraints_mismatch() {
+    PackagesServiceOperations.getUpdates(myIndex, options("packageIds", "'Foo|Bar'", "versions", "'1.0|1.0'", "versionConstraints", "'1.0'"));
+  }
+
+  @Test
+  public void test_package_ids() {
+    Assert.assertEquals(PackagesServiceOperations.getPackageIds(
+            PackagesServiceOperations.FIND_PACKAGES_BY_ID, parse("IsLatestVersion"), options("id", "'Foo'")), Arrays.asList("foo"));
+    Assert.assertEquals(PackagesServiceOperations.getPackageIds(
+            PackagesServiceOperations.GET_UPDATES, null, options("packageIds", "'Foo|Bar'", "versions", "'1.0|1.0'")), Arrays.asList("Foo", "Bar"));
+    Assert.assertEquals(PackagesServiceOperations.getPackageIds(
+            "Packages", parse("Id eq 'Foo' and IsLatestVersion"), options()), Arrays.asList("Foo"));
+  }
+
+  @Test
+  public void test_package_ids_all_packages() {
+    Assert.assertNull(PackagesServiceOperations.getPackageIds("Packages", null, options()));
+    Assert.assertNull(PackagesServiceOperations.getPackageIds("Packages", parse("Id eq 'Foo' or Id eq 'Bar'"), options()));
+    Assert.assertNull(PackagesServiceOperations.getPackageIds(
+            PackagesServiceOperations.SEARCH, null, options("searchTerm", "'foo'", "includePrerelease", "true")));
+  }
+
+  private void assertUpdates(@NotNull final Map<String, String> options, @NotNull final String... expected) {
+    final List<String> actual = new ArrayList<String>();
+    for (NuGetIndexEntry e : PackagesServiceOperations.getUpdates(myIndex, options)) {
+      actual.add(e.getAttributes().get(NuGetIndexEntry.ID) + " " + e.getAttributes().get(NuGetIndexEntry.VERSION));
+    }
+    Assert.assertEquals(actual, Arrays.asList(expected));
+  }
+
+  private void addEntry(@NotNull final String id, @NotNull final String version) {
+    final Map<String, String> attributes = new HashMap<String, String>();
+    attributes.put(NuGetIndexEntry.ID, id);
+    attributes.put(NuGetIndexEntry.VERSION, version);
+    attributes.put("IsPrerelease", String.valueOf(!version.matches("^\\d+(\\.\\d+)+$")));
+    myEntries.add(new NuGetIndexEntry(id + "." + version, attributes));
+  }
+
+  @NotNull
+  private static Map<String, String> options(@NotNull final String... keyValues) {
+    final Map<String, String> result = new HashMap<String, String>();
+    for (int i = 0; i < keyValues.length; i += 2) {
+      result.put(keyValues[i], keyValues[i + 1]);
+    }
+    return result;
+  }
+
+  @NotNull
+  private static BoolCommonExpression parse(@NotNull final String filter) {
+    return (BoolCommonExpression) ExpressionParser.parse(filter);
+  }
+}
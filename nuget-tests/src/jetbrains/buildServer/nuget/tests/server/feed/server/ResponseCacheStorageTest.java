@@ -0,0 +1,208 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.tests.server.feed.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache.ResponseCacheEntry;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache.ResponseCacheStorage;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ResponseCacheStorageTest extends BaseTestCase {
+  private static final long TTL = 60 * 1000L;
+
+  private long myTime;
+  private ResponseCacheStorage myStorage;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTime = 1000000L;
+    myStorage = new ResponseCacheStorage(1000, TTL) {
+      @Override
+      protected long now() {
+        return myTime;
+      }
+    };
+  }
+
+  @Test
+  public void test_get_put() {
+    final ResponseCacheEntry entry = entry(100);
+    myStorage.put("a", entry);
+
+    Assert.assertSame(myStorage.get("a"), entry);
+    Assert.assertNull(myStorage.get("b"));
+    Assert.assertEquals(myStorage.getSize(), 102);
+  }
+
+  @Test
+  public void test_replace() {
+    myStorage.put("a", entry(100));
+    final ResponseCacheEntry entry = entry(200);
+    myStorage.put("a", entry);
+
+    Assert.assertSame(myStorage.get("a"), entry);
+    Assert.assertEquals(myStorage.getCount(), 1);
+    Assert.assertEquals(myStorage.getSize(), 202);
+  }
+
+  @Test
+  public void test_expiration() {
+    myStorage.put("a", entry(100));
+    myTime += TTL - 1;
+    Assert.assertNotNull(myStorage.get("a"));
+
+    myTime += 1;
+    Assert.assertNull(myStorage.get("a"));
+    Assert.assertEquals(myStorage.getSize(), 0);
+  }
+
+  @Test
+  public void test_evicts_least_recently_used() {
+    for (int i = 0; i < 4; i++) {
+      myStorage.put("k" + i, entry(198));
+    }
+    Assert.assertNotNull(myStorage.get("k0"));
+
+    myStorage.put("k4", entry(198));
+
+    Assert.assertNotNull(myStorage.get("k0"));
+    Assert.assertNull(myStorage.get("k1"));
+    Assert.assertNull(myStorage.get("k2"));
+    Assert.assertNotNull(myStorage.get("k3"));
+    Assert.assertNotNull(myStorage.get("k4"));
+    Assert.assertTrue(myStorage.getSize() <= 750, "size: " + myStorage.getSize());
+  }
+
+  @Test
+  public void test_too_large_entry() {
+    myStorage.put("a", entry(100));
+    myStorage.put("b", entry(2000));
+
+    Assert.assertNull(myStorage.get("b"));
+    Assert.assertNotNull(myStorage.get("a"));
+  }
+
+  @Test
+  public void test_clear() {
+    myStorage.put("a", entry(100));
+    myStorage.put("b", entry(100));
+    myStorage.clear();
+
+    Assert.assertNull(myStorage.get("a"));
+    Assert.assertEquals(myStorage.getCount(), 0);
+    Assert.assertEquals(myStorage.getSize(), 0);
+  }
+
+  @Test
+  public void test_invalidate_package() {
+    myStorage.put("foo", entry(10), myStorage.getGeneration(), ids("foo"));
+    myStorage.put("bar", entry(10), myStorage.getGeneration(), ids("bar", "qux"));
+    myStorage.put("all", entry(10));
+
+    myStorage.invalidate("Foo");
+
+    Assert.assertNull(myStorage.get("foo"));
+    Assert.assertNotNull(myStorage.get("bar"));
+    Assert.assertNull(myStorage.get("all"));
+
+    myStorage.invalidate("QUX");
+    Assert.assertNull(myStorage.get("bar"));
+  }
+
+  @Test
+  public void test_change_during_computation() {
+    final long generation = myStorage.getGeneration();
+    myStorage.invalidate("foo");
+    myStorage.put("foo", entry(10), generation, ids("foo"));
+    myStorage.put("all", entry(10), generation, null);
+
+    Assert.assertNull(myStorage.get("foo"));
+    Assert.assertNull(myStorage.get("all"));
+  }
+
+  @Test
+  public void test_change_before_computation() {
+    myStorage.invalidate("foo");
+    myStorage.put("foo", entry(10), myStorage.getGeneration(), ids("foo"));
+    myStorage.put("all", entry(10));
+
+    Assert.assertNotNull(myStorage.get("foo"));
+    Assert.assertNotNull(myStorage.get("all"));
+  }
+
+  @Test
+  public void test_clear_during_computation() {
+    final long generation = myStorage.getGeneration();
+    myStorage.clear();
+    myStorage.put("foo", entry(10), generation, ids("foo"));
+
+    Assert.assertNull(myStorage.get("foo"));
+  }
+
+  @Test
+  public void test_concurrent_size_is_bounded() throws Exception {
+    final ResponseCacheStorage storage = new ResponseCacheStorage(10000, TTL);
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+      for (int t = 0; t < 8; t++) {
+        final int thread = t;
+        futures.add(executor.submit(new Callable<Object>() {
+          public Object call() throws Exception {
+            for (int i = 0; i < 2000; i++) {
+              final String key = "k" + ((thread * 31 + i) % 300);
+              if (storage.get(key) == null) storage.put(key, entry(100));
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Object> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    storage.put("last", entry(100));
+    Assert.assertTrue(storage.getSize() <= 10000, "size: " + storage.getSize());
+
+    storage.clear();
+    Assert.assertEquals(storage.getSize(), 0);
+  }
+
+  @NotNull
+  private static Set<String> ids(@NotNull final String... ids) {
+    return new HashSet<String>(Arrays.asList(ids));
+  }
+
+  @NotNull
+  private static ResponseCacheEntry entry(final int size) {
+    return new ResponseCacheEntry(Collections.<String, String>emptyMap(), new byte[size], 200);
+  }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.tests.server.feed.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache.ResponseAccessScope;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache.ResponseCache;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache.ResponseDiskCache;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache.ResponsePackageIds;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.serverSide.auth.SecurityContext;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+public class ResponseCacheTest extends BaseTestCase {
+  private Mockery m;
+  private ResponseCache myCache;
+  private AtomicInteger myComputations;
+  private volatile Set<String> myReadableProjects;
+  private Map<String, String> myResponseHeaders;
+  private volatile long myTime;
+  private ResponseAccessScope myScope;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myComputations = new AtomicInteger();
+    myTime = 1000L * 3600 * 1000 + 10000;
+    myReadableProjects = new HashSet<String>(Arrays.asList("p1", "p2"));
+
+    m = new Mockery();
+    final List<SProject> projects = new ArrayList<SProject>();
+    for (final String projectId : Arrays.asList("p1", "p2", "p3")) {
+      final SProject project = m.mock(SProject.class, projectId);
+      m.checking(new Expectations() {{
+        allowing(project).getProjectId(); will(returnValue(projectId));
+      }});
+      projects.add(project);
+    }
+    final ProjectManager projectManager = m.mock(ProjectManager.class);
+    final AuthorityHolder holder = m.mock(AuthorityHolder.class);
+    final SecurityContext context = m.mock(SecurityContext.class);
+    m.checking(new Expectations() {{
+      allowing(projectManager).getProjects(); will(returnValue(projects));
+      allowing(context).getAuthorityHolder(); will(returnValue(holder));
+      //permissions are taken from the current set of readable projects
+      allowing(holder).isPermissionGrantedForProject(with(any(String.class)), with(equal(Permission.VIEW_PROJECT)));
+      will(new CustomAction("check readable projects") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return myReadableProjects.contains((String) invocation.getParameter(0));
+        }
+      });
+    }});
+
+    myScope = new ResponseAccessScope(projectManager, context);
+    myCache = createCache(new ResponseDiskCache(null, 0, 0));
+  }
+
+  @NotNull
+  private ResponseCache createCache(@NotNull final ResponseDiskCache diskCache) {
+    return new ResponseCache(EventDispatcher.create(BuildServerListener.class), myScope, diskCache) {
+      @Override
+      protected long now() {
+        return myTime;
+      }
+    };
+  }
+
+  @Test
+  public void test_cached() throws Exception {
+    final ResponseCache.ComputeAction action = action("feed", null, null);
+
+    Assert.assertEquals(request(action), "feed");
+    Assert.assertEquals(request(action), "feed");
+    Assert.assertEquals(myComputations.get(), 1);
+
+    myCache.resetCache();
+    Assert.assertEquals(request(action), "feed");
+    Assert.assertEquals(myComputations.get(), 2);
+  }
+
+  @Test
+  public void test_gzip_accepted() throws Exception {
+    final ResponseCache.ComputeAction action = action("feed", null, null);
+
+    for (String acceptEncoding : Arrays.asList("gzip", "deflate, gzip", "GZIP;q=0.5", "x-gzip", "*", "identity;q=1, *;q=0.1")) {
+      Assert.assertEquals(request(action, acceptEncoding), "feed");
+      Assert.assertEquals(myResponseHeaders.get("Content-Encoding"), "gzip", acceptEncoding);
+      Assert.assertEquals(myResponseHeaders.get("Vary"), "Accept-Encoding");
+    }
+    Assert.assertEquals(myComputations.get(), 1);
+  }
+
+  @Test
+  public void test_gzip_not_accepted() throws Exception {
+    final ResponseCache.ComputeAction action = action("feed", null, null);
+
+    for (String acceptEncoding : Arrays.asList(null, "", "identity", "deflate", "gzip;q=0", "*;q=0", "gzip;q=0, *")) {
+      Assert.assertEquals(request(action, acceptEncoding), "feed");
+      Assert.assertNull(myResponseHeaders.get("Content-Encoding"), acceptEncoding);
+      Assert.assertEquals(myResponseHeaders.get("Vary"), "Accept-Encoding");
+    }
+    Assert.assertEquals(myComputations.get(), 1);
+  }
+
+  @Test
+  public void test_shared_by_same_access_scope() throws Exception {
+    final ResponseCache.ComputeAction action = action("feed", null, null);
+
+    Assert.assertEquals(request(action), "feed");
+    //another user with the same readable projects
+    myReadableProjects = new HashSet<String>(Arrays.asList("p2", "p1"));
+    Assert.assertEquals(request(action), "feed");
+    Assert.assertEquals(myComputations.get(), 1);
+  }
+
+  @Test
+  public void test_not_shared_by_different_access_scopes() throws Exception {
+    final ResponseCache.ComputeAction action = action("feed", null, null);
+
+    Assert.assertEquals(request(action), "feed");
+    myReadableProjects = new HashSet<String>(Arrays.asList("p1"));
+    Assert.assertEquals(request(action), "feed");
+    myReadableProjects = new HashSet<String>(Arrays.asList("p1", "p3"));
+    Assert.assertEquals(request(action), "feed");
+    Assert.assertEquals(myComputations.get(), 3);
+
+    myReadableProjects = new HashSet<String>(Arrays.asList("p1"));
+    Assert.assertEquals(request(action), "feed");
+    Assert.assertEquals(myComputations.get(), 3);
+  }
+
+  @Test
+  public void test_etag() throws Exception {
+    Assert.assertFalse(isNotModified(headers()));
+    final String eTag = myResponseHeaders.get("ETag");
+    Assert.assertTrue(eTag.startsWith("W/\""), eTag);
+
+    Assert.assertTrue(isNotModified(headers("If-None-Match", eTag)));
+    Assert.assertEquals(myResponseHeaders.get("status"), "304");
+    Assert.assertTrue(isNotModified(headers("If-None-Match", "\"foo\", " + eTag.substring(2))));
+    Assert.assertTrue(isNotModified(headers("If-None-Match", "*")));
+    Assert.assertFalse(isNotModified(headers("If-None-Match", "\"foo\"")));
+    Assert.assertNull(myResponseHeaders.get("status"));
+
+    myCache.resetPackage("Foo");
+    Assert.assertFalse(isNotModified(headers("If-None-Match", eTag)));
+    Assert.assertFalse(eTag.equals(myResponseHeaders.get("ETag")));
+  }
+
+  @Test
+  public void test_etag_depends_on_request() throws Exception {
+    Assert.assertFalse(isNotModified(headers()));
+    final String eTag = myResponseHeaders.get("ETag");
+
+    Assert.assertFalse(isNotModified(headers("If-None-Match", eTag, "Accept", "application/json")));
+
+    myReadableProjects = new HashSet<String>(Arrays.asList("p3"));
+    Assert.assertFalse(isNotModified(headers("If-None-Match", eTag)));
+  }
+
+  @Test
+  public void test_etag_expires() throws Exception {
+    Assert.assertFalse(isNotModified(headers()));
+    final String eTag = myResponseHeaders.get("ETag");
+
+    myTime += 3600 * 1000L;
+    Assert.assertFalse(isNotModified(headers("If-None-Match", eTag)));
+  }
+
+  @Test
+  public void test_if_modified_since_is_ignored() throws Exception {
+    final long changed = myTime;
+    myTime += 2000;
+    //responses depend on the access scope which If-Modified-Since does not cover
+    Assert.assertFalse(isNotModified(headers()));
+    Assert.assertNull(myResponseHeaders.get("Last-Modified"));
+    Assert.assertFalse(isNotModified(headers("If-Modified-Since", changed + 1500)));
+
+    final String eTag = myResponseHeaders.get("ETag");
+    Assert.assertTrue(isNotModified(headers("If-Modified-Since", changed, "If-None-Match", eTag)));
+  }
+
+  @Test
+  public void test_disk_cache_survives_restart() throws Exception {
+    final File directory = createTempDir();
+    final ResponseCache.ComputeAction action = action("feed", null, null);
+    final ResponseDiskCache diskCache = new ResponseDiskCache(directory, 1024 * 1024, 60 * 1000L);
+    myCache = createCache(diskCache);
+    Assert.assertEquals(request(action), "feed");
+    diskCache.shutdown();
+
+    myCache = createCache(new ResponseDiskCache(directory, 1024 * 1024, 60 * 1000L));
+    Assert.assertEquals(request(action), "feed");
+    Assert.assertEquals(myComputations.get(), 1);
+
+    myCache.resetPackage("foo");
+    Assert.assertEquals(request(action), "feed");
+    Assert.assertEquals(myComputations.get(), 2);
+  }
+
+  @Test
+  public void test_disk_hit_racing_reset_package() throws Exception {
+    final AtomicBoolean delayInvalidate = new AtomicBoolean();
+    final ResponseDiskCache diskCache = new ResponseDiskCache(createTempDir(), 1024 * 1024, 60 * 1000L) {
+      @Override
+      public void invalidate(@NotNull final String packageId) {
+        if (!delayInvalidate.get()) {
+          super.invalidate(packageId);
+        }
+      }
+    };
+    myCache = createCache(diskCache);
+    final ResponseCache.ComputeAction foo = new ResponseCache.ComputeAction() {
+      public void compute(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        ResponsePackageIds.set(Arrays.asList("Foo"));
+        action("foo " + myComputations.get(), null, null).compute(request, response);
+      }
+    };
+    Assert.assertEquals(request(foo), "foo 0");
+
+    //the package changes in memory while the disk cache still has the response
+    delayInvalidate.set(true);
+    myCache.resetPackage("Foo");
+    Assert.assertEquals(request(foo), "foo 1");
+    Assert.assertEquals(myComputations.get(), 2);
+  }
+
+  @Test
+  public void test_reset_package() throws Exception {
+    final ResponseCache.ComputeAction foo = new ResponseCache.ComputeAction() {
+      public void compute(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        ResponsePackageIds.set(Arrays.asList("Foo"));
+        action("foo", null, null).compute(request, response);
+      }
+    };
+
+    Assert.assertEquals(request(foo), "foo");
+    myCache.resetPackage("Bar");
+    Assert.assertEquals(request(foo), "foo");
+    Assert.assertEquals(myComputations.get(), 1);
+
+    myCache.resetPackage("foo");
+    Assert.assertEquals(request(foo), "foo");
+    Assert.assertEquals(myComputations.get(), 2);
+  }
+
+  @Test
+  public void test_reset_package_resets_all_packages_responses() throws Exception {
+    final ResponseCache.ComputeAction action = action("feed", null, null);
+
+    Assert.assertEquals(request(action), "feed");
+    myCache.resetPackage("Bar");
+    Assert.assertEquals(request(action), "feed");
+    Assert.assertEquals(myComputations.get(), 2);
+  }
+
+  @Test
+  public void test_concurrent_misses_are_computed_once() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final ResponseCache.ComputeAction action = action("feed", started, release);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(10);
+    try {
+      final List<Future<String>> responses = new ArrayList<Future<String>>();
+      responses.add(executor.submit(requestTask(action)));
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+      for (int i = 0; i < 9; i++) {
+        responses.add(executor.submit(requestTask(action)));
+      }
+      Thread.sleep(200);
+      release.countDown();
+
+      for (Future<String> response : responses) {
+        Assert.assertEquals(response.get(10, TimeUnit.SECONDS), "feed");
+      }
+    } finally {
+      executor.shutdown();
+    }
+    Assert.assertEquals(myComputations.get(), 1);
+  }
+
+  @Test
+  public void test_failed_computation_is_not_cached() throws Exception {
+    final ResponseCache.ComputeAction failing = new ResponseCache.ComputeAction() {
+      public void compute(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        myComputations.incrementAndGet();
+        throw new IOException("failed");
+      }
+    };
+
+    try {
+      request(failing);
+      Assert.fail("exception expected");
+    } catch (IOException e) {
+      Assert.assertEquals(e.getMessage(), "failed");
+    }
+
+    Assert.assertEquals(request(action("feed", null, null)), "feed");
+    Assert.assertEquals(myComputations.get(), 2);
+  }
+
+  @NotNull
+  private static Map<String, Object> headers(@NotNull final Object... nameValues) {
+    final Map<String, Object> headers = new HashMap<String, Object>();
+    for (int i = 0; i < nameValues.length; i += 2) {
+      headers.put((String) nameValues[i], nameValues[i + 1]);
+    }
+    return headers;
+  }
+
+  private boolean isNotModified(@NotNull final Map<String, Object> requestHeaders) {
+    final Map<String, String> headers = new HashMap<String, String>();
+    myResponseHeaders = headers;
+    final Mockery servlet = new Mockery();
+    final HttpServletRequest request = mockRequest(servlet);
+    final HttpServletResponse response = servlet.mock(HttpServletResponse.class);
+    servlet.checking(new Expectations() {{
+      allowing(request).getHeader(with(any(String.class))); will(new CustomAction("get header") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return requestHeaders.get((String) invocation.getParameter(0));
+        }
+      });
+      allowing(request).getDateHeader(with(any(String.class))); will(new CustomAction("get date header") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          final Long date = (Long) requestHeaders.get((String) invocation.getParameter(0));
+          return date != null ? date : -1L;
+        }
+      });
+      allowing(response).setHeader(with(any(String.class)), with(any(String.class))); will(putHeader(headers));
+      allowing(response).setDateHeader(with(any(String.class)), with(any(long.class))); will(putHeader(headers));
+      allowing(response).setStatus(with(any(int.class))); will(new CustomAction("set status") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          headers.put("status", String.valueOf(invocation.getParameter(0)));
+          return null;
+        }
+      });
+    }});
+    return myCache.handleNotModified(request, response);
+  }
+
+  @NotNull
+  private Callable<String> requestTask(@NotNull final ResponseCache.ComputeAction action) throws IOException {
+    return requestTask(action, "gzip, deflate");
+  }
+
+  @NotNull
+  private ResponseCache.ComputeAction action(@NotNull final String content,
+                                             final CountDownLatch started,
+                                             final CountDownLatch release) {
+    return new ResponseCache.ComputeAction() {
+      public void compute(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        myComputations.incrementAndGet();
+        if (started != null) started.countDown();
+        if (release != null) release.await(10, TimeUnit.SECONDS);
+
+        final ServletOutputStream os = response.getOutputStream();
+        os.write(content.getBytes("utf-8"));
+        os.flush();
+      }
+    };
+  }
+
+  /**
+   * @return content of the response
+   */
+  @NotNull
+  private String request(@NotNull final ResponseCache.ComputeAction action) throws Exception {
+    return request(action, "gzip, deflate");
+  }
+
+  /**
+   * @return decoded content of the response
+   */
+  @NotNull
+  private String request(@NotNull final ResponseCache.ComputeAction action,
+                         @Nullable final String acceptEncoding) throws Exception {
+    return requestTask(action, acceptEncoding).call();
+  }
+
+  /**
+   * Mocks are not thread-safe, so each request gets its own mockery
+   * and the access scope is computed by the calling thread
+   * @return task returning decoded content of the response
+   */
+  @NotNull
+  private Callable<String> requestTask(@NotNull final ResponseCache.ComputeAction action,
+                                       @Nullable final String acceptEncoding) throws IOException {
+    final Map<String, String> headers = new HashMap<String, String>();
+    myResponseHeaders = headers;
+    final ByteArrayOutputStream content = new ByteArrayOutputStream();
+    final ServletOutputStream output = new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        content.write(b);
+      }
+    };
+    final Mockery servlet = new Mockery();
+    final HttpServletRequest request = mockRequest(servlet);
+    final HttpServletResponse response = servlet.mock(HttpServletResponse.class);
+    servlet.checking(new Expectations() {{
+      allowing(request).getHeader("Accept-Encoding"); will(returnValue(acceptEncoding));
+      allowing(request).getHeader(with(any(String.class))); will(returnValue(null));
+      allowing(response).getOutputStream(); will(returnValue(output));
+      allowing(response).setHeader(with(any(String.class)), with(any(String.class))); will(putHeader(headers));
+      allowing(response).setStatus(with(any(int.class)));
+      allowing(response).setContentLength(with(any(int.class)));
+    }});
+    myScope.getScope(request);
+
+    return new Callable<String>() {
+      public String call() throws Exception {
+        myCache.getOrCompute(request, response, action);
+        if (!"gzip".equals(headers.get("Content-Encoding"))) return content.toString("utf-8");
+
+        final GZIPInputStream stream = new GZIPInputStream(new ByteArrayInputStream(content.toByteArray()));
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = stream.read(buffer)) > 0) {
+          result.write(buffer, 0, read);
+        }
+        return result.toString("utf-8");
+      }
+    };
+  }
+
+  /**
+   * @return GET request of the packages feed with request attributes
+   */
+  @NotNull
+  private static HttpServletRequest mockRequest(@NotNull final Mockery servlet) {
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    final HttpServletRequest request = servlet.mock(HttpServletRequest.class);
+    servlet.checking(new Expectations() {{
+      allowing(request).getMethod(); will(returnValue("GET"));
+      allowing(request).getRequestURL(); will(returnValue(new StringBuffer("http://localhost/app/nuget/v1/FeedService.svc/Packages()")));
+      allowing(request).getAttribute(with(any(String.class))); will(new CustomAction("get attribute") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          return attributes.get((String) invocation.getParameter(0));
+        }
+      });
+      allowing(request).setAttribute(with(any(String.class)), with(any(Object.class))); will(new CustomAction("set attribute") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          attributes.put((String) invocation.getParameter(0), invocation.getParameter(1));
+          return null;
+        }
+      });
+    }});
+    return request;
+  }
+
+  @NotNull
+  private static CustomAction putHeader(@NotNull final Map<String, String> headers) {
+    return new CustomAction("put header") {
+      public Object invoke(Invocation invocation) throws Throwable {
+        headers.put((String) invocation.getParameter(0), String.valueOf(invocation.getParameter(1)));
+        return null;
+      }
+    };
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.tests.server.feed.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache.ResponseCacheEntry;
+import jetbrains.buildServer.nuget.server.feed.server.javaFeed.cache.ResponseDiskCache;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.*;
+
+public class ResponseDiskCacheTest extends BaseTestCase {
+  private static final long TTL = 60 * 1000L;
+
+  private File myDirectory;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDirectory = createTempDir();
+  }
+
+  @Test
+  public void test_get_put() {
+    final ResponseDiskCache cache = createCache();
+    cache.put("a", entry(100, "text/xml"), 0, null);
+    cache.put("b", entry(10, "application/json"), 5, ids("foo", "bar"));
+
+    final ResponseDiskCache.Response a = cache.get("a");
+    Assert.assertNotNull(a);
+    Assert.assertNull(a.getPackageIds());
+    Assert.assertEquals(a.getEntry().getSize(), entry(100, "text/xml").getSize());
+
+    final ResponseDiskCache.Response b = cache.get("b");
+    Assert.assertNotNull(b);
+    Assert.assertEquals(b.getPackageIds(), ids("foo", "bar"));
+    Assert.assertEquals(b.getGeneration(), 5);
+
+    Assert.assertNull(cache.get("c"));
+    Assert.assertEquals(cache.getCount(), 2);
+  }
+
+  @Test
+  public void test_invalidate() {
+    final ResponseDiskCache cache = createCache();
+    cache.put("foo", entry(10, "text/xml"), 0, ids("foo"));
+    cache.put("bar", entry(10, "text/xml"), 0, ids("bar"));
+    cache.put("all", entry(10, "text/xml"), 0, null);
+
+    cache.invalidate("Foo");
+
+    Assert.assertNull(cache.get("foo"));
+    Assert.assertNotNull(cache.get("bar"));
+    Assert.assertNull(cache.get("all"));
+    Assert.assertEquals(responseFiles().length, 1);
+
+    cache.clear();
+    Assert.assertNull(cache.get("bar"));
+    Assert.assertEquals(responseFiles().length, 0);
+    Assert.assertEquals(cache.getSize(), 0);
+  }
+
+  @Test
+  public void test_restart() {
+    final ResponseDiskCache cache = createCache();
+    cache.put("a", entry(100, "text/xml"), 5, ids("foo"));
+    cache.shutdown();
+
+    final ResponseDiskCache restarted = createCache();
+    Assert.assertEquals(restarted.getCount(), 1);
+    final ResponseDiskCache.Response a = restarted.get("a");
+    Assert.assertNotNull(a);
+    Assert.assertEquals(a.getPackageIds(), ids("foo"));
+    Assert.assertEquals(a.getGeneration(), 0);
+  }
+
+  @Test
+  public void test_restart_after_crash() {
+    final ResponseDiskCache cache = createCache();
+    cache.put("a", entry(100, "text/xml"), 0, null);
+
+    final ResponseDiskCache restarted = createCache();
+    Assert.assertNull(restarted.get("a"));
+    Assert.assertEquals(responseFiles().length, 0);
+  }
+
+  @Test
+  public void test_restart_ignores_unknown_files() throws Exception {
+    final ResponseDiskCache cache = createCache();
+    cache.put("a", entry(100, "text/xml"), 0, null);
+    new FileOutputStream(new File(myDirectory, "garbage.response")).close();
+    cache.shutdown();
+
+    final ResponseDiskCache restarted = createCache();
+    Assert.assertEquals(restarted.getCount(), 1);
+    Assert.assertEquals(responseFiles().length, 1);
+  }
+
+  @Test
+  public void test_corrupted_file() throws Exception {
+    final ResponseDiskCache cache = createCache();
+    cache.put("a", entry(100, "text/xml"), 0, null);
+
+    final File[] files = responseFiles();
+    Assert.assertEquals(files.length, 1);
+    new FileOutputStream(files[0]).close();
+
+    Assert.assertNull(cache.get("a"));
+    Assert.assertEquals(cache.getCount(), 0);
+  }
+
+  @Test
+  public void test_size_is_bounded() {
+    final ResponseDiskCache cache = new ResponseDiskCache(myDirectory, 1000, TTL);
+    for (int i = 0; i < 10; i++) {
+      cache.put("k" + i, entry(200, "text/xml"), 0, null);
+    }
+
+    Assert.assertTrue(cache.getSize() <= 1000, "size: " + cache.getSize());
+    Assert.assertNotNull(cache.get("k9"));
+    Assert.assertNull(cache.get("k0"));
+  }
+
+  @Test
+  public void test_disabled() {
+    final ResponseDiskCache cache = new ResponseDiskCache(null, 1000, TTL);
+    cache.put("a", entry(100, "text/xml"), 0, null);
+    Assert.assertNull(cache.get("a"));
+    cache.shutdown();
+  }
+
+  @NotNull
+  private ResponseDiskCache createCache() {
+    return new ResponseDiskCache(myDirectory, 1024 * 1024, TTL);
+  }
+
+  @NotNull
+  private File[] responseFiles() {
+    final File[] files = myDirectory.listFiles();
+    Assert.assertNotNull(files);
+    final List<File> result = new ArrayList<File>();
+    for (File file : files) {
+      if (file.getName().endsWith(".response")) result.add(file);
+    }
+    return result.toArray(new File[result.size()]);
+  }
+
+  @NotNull
+  private static Set<String> ids(@NotNull final String... ids) {
+    return new HashSet<String>(Arrays.asList(ids));
+  }
+
+  @NotNull
+  private static ResponseCacheEntry entry(final int size, @NotNull final String contentType) {
+    return new ResponseCacheEntry(Collections.singletonMap("Content-Type", contentType), new byte[size], 200);
+  }
+}
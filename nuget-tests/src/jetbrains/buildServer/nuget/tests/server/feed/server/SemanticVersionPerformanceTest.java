@@ -0,0 +1,80 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.nuget.tests.server.feed.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.SemanticVersion;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.SemanticVersionsComparer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * Compares sorting of version strings with sorting of pre-parsed versions
+ */
+public class SemanticVersionPerformanceTest extends BaseTestCase {
+  private static final int VERSIONS = 100000;
+  private static final int RUNS = 10;
+
+  @Test
+  public void test_sort_parsed_versions() {
+    final List<String> versions = generateVersions();
+
+    final long stringsTime = measure(new Runnable() {
+      public void run() {
+        final List<String> copy = new ArrayList<String>(versions);
+        Collections.sort(copy, SemanticVersionsComparer.getSemanticVersionsComparator());
+      }
+    });
+
+    final List<SemanticVersion> parsed = new ArrayList<SemanticVersion>(versions.size());
+    for (String version : versions) {
+      parsed.add(SemanticVersion.valueOf(version));
+    }
+    final long parsedTime = measure(new Runnable() {
+      public void run() {
+        final List<SemanticVersion> copy = new ArrayList<SemanticVersion>(parsed);
+        Collections.sort(copy);
+      }
+    });
+
+    Assert.assertTrue(parsedTime < stringsTime,
+            "Pre-parsed versions must be sorted faster: strings " + stringsTime + "ms, pre-parsed " + parsedTime + "ms");
+  }
+
+  private static long measure(Runnable action) {
+    //warm up
+    action.run();
+
+    final long start = System.currentTimeMillis();
+    for (int i = 0; i < RUNS; i++) {
+      action.run();
+    }
+    return (System.currentTimeMillis() - start) / RUNS;
+  }
+
+  private static List<String> generateVersions() {
+    final Random random = new Random(42);
+    final String[] prerelease = {"", "-alpha", "-beta.2", "-rc.1", "-beta.11+build.5"};
+    final List<String> result = new ArrayList<String>(VERSIONS);
+    for (int i = 0; i < VERSIONS; i++) {
+      result.add(random.nextInt(5) + "." + random.nextInt(20) + "." + random.nextInt(100) + "." + random.nextInt(1000) + prerelease[random.nextInt(prerelease.length)]);
+    }
+    return result;
+  }
+}
@@ -17,6 +17,7 @@
 package jetbrains.buildServer.nuget.tests.server.feed.server;
 
 import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.nuget.server.feed.server.index.impl.SemanticVersion;
 import jetbrains.buildServer.nuget.server.feed.server.index.impl.SemanticVersionsComparer;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -157,6 +158,57 @@ public class VersionComparatorTest extends BaseTestCase {
             );
   }
 
+  @Test
+  public void test_numbers_vs_text() {
+    doTest("1.0.0-1", "1.0.0-a", "1.0.0-b");
+    doTest("1.2147483647", "1.2147483648", "1.x");
+  }
+
+  @Test
+  public void test_empty_elements() {
+    doTest("1", "1.0.0", ".1");
+    doTest("1.0.1", "1..0");
+    doTest("1.0.0.", "1.0.0.1");
+  }
+
+  @Test
+  public void test_dash_in_build_part() {
+    doTest("1.0.0", "1.0.0+build-1", "1.0.0+build-2");
+    Assert.assertFalse(SemanticVersion.valueOf("1.0.0+build-1").hasPrereleasePart());
+    Assert.assertTrue(SemanticVersion.valueOf("1.0.0-beta+build-1").hasPrereleasePart());
+  }
+
+  @Test
+  public void test_equal_versions() {
+    doTestEqual("1.0", "1.00", "01.0");
+    doTestEqual("1.0.0-beta.01", "1.0.0-beta.1");
+    doTestEqual("1.0.0-beta.2+build.01", "1.0.0-beta.2+build.1");
+  }
+
+  @Test
+  public void test_parse_once_equals_compare() {
+    final String[] versions = {"1.0.0-beta", "1.0.0", "1.0.0+b", "1.0.1", "2.0"};
+    for (String v1 : versions) {
+      for (String v2 : versions) {
+        final int expected = SemanticVersionsComparer.getSemanticVersionsComparator().compare(v1, v2);
+        Assert.assertEquals(SemanticVersion.valueOf(v1).compareTo(SemanticVersion.valueOf(v2)), expected, v1 + " : " + v2);
+      }
+    }
+  }
+
+  private void doTestEqual(String... vs) {
+    for (String v1 : vs) {
+      for (String v2 : vs) {
+        final SemanticVersion sv1 = SemanticVersion.valueOf(v1);
+        final SemanticVersion sv2 = SemanticVersion.valueOf(v2);
+        Assert.assertEquals(sv1.compareTo(sv2), 0, v1 + " : " + v2);
+        Assert.assertEquals(sv1, sv2);
+        Assert.assertEquals(sv1.hashCode(), sv2.hashCode());
+        Assert.assertEquals(SemanticVersionsComparer.getSemanticVersionsComparator().compare(v1, v2), 0, v1 + " : " + v2);
+      }
+    }
+  }
+
   private void doTest(String... vs) {
     doTest(Arrays.asList(vs));
   }
@@ -190,6 +242,20 @@ public class VersionComparatorTest extends BaseTestCase {
       Collections.sort(copy, SemanticVersionsComparer.getSemanticVersionsComparator());
       Assert.assertEquals(copy, initial);
     }
+
+    final List<SemanticVersion> parsed = new ArrayList<SemanticVersion>();
+    for (String v : initial) {
+      parsed.add(SemanticVersion.valueOf(v));
+    }
+    for (int i = 0; i < 10; i++) {
+      Collections.shuffle(parsed);
+      Collections.sort(parsed);
+      final List<String> actual = new ArrayList<String>();
+      for (SemanticVersion v : parsed) {
+        actual.add(v.getVersion());
+      }
+      Assert.assertEquals(actual, initial);
+    }
   }
 
   @Test